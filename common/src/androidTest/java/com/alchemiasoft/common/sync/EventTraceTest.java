@@ -0,0 +1,143 @@
+/*
+ * Copyright 2015 Simone Casagranda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alchemiasoft.common.sync;
+
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that a recorded trace is replayed exactly and that its file is capped.
+ * <p/>
+ * Created by Simone Casagranda on 06/05/15.
+ */
+public class EventTraceTest extends AndroidTestCase {
+
+    private static final String[] NODES = {"phone", "watch", "watch-2"};
+    private static final String[] PATHS = {"/books/1", "/books/2", "/books", DataItemSweeper.ACK_PATH, SyncResume.CHANGE_PATH, LinkMonitor.PING_PATH};
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        EventTrace.stopRecording();
+        mFile = new File(getContext().getCacheDir(), "test.trace");
+        mFile.delete();
+        EventTrace.rotatedFile(mFile).delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        EventTrace.stopRecording();
+        mFile.delete();
+        EventTrace.rotatedFile(mFile).delete();
+        super.tearDown();
+    }
+
+    public void testRoundTrip() {
+        final Random random = new Random(23L);
+        final List<String> expected = new ArrayList<>();
+        assertTrue(EventTrace.startRecording(mFile));
+        for (int i = 0; i < 2000; i++) {
+            final int kind = EventTrace.KIND_DATA + random.nextInt(EventTrace.KIND_UI_MESSAGE);
+            final String nodeId = NODES[random.nextInt(NODES.length)];
+            final boolean peer = kind == EventTrace.KIND_PEER_CONNECTED || kind == EventTrace.KIND_PEER_DISCONNECTED;
+            final String path = peer ? null : PATHS[random.nextInt(PATHS.length)];
+            final byte[] data = peer ? null : new byte[random.nextInt(64)];
+            if (data != null) {
+                random.nextBytes(data);
+            }
+            EventTrace.record(kind, nodeId, path, data);
+            expected.add(Recorded.toString(kind == EventTrace.KIND_UI_MESSAGE ? EventTrace.KIND_MESSAGE : kind, nodeId, path, data));
+        }
+        EventTrace.stopRecording();
+
+        final Recorded recorded = new Recorded();
+        assertEquals(expected.size(), EventTrace.Player.from(mFile).speed(0f).uiMessages(true).replay(recorded));
+        assertEquals(expected, recorded.mEvents);
+        assertFalse(EventTrace.rotatedFile(mFile).exists());
+    }
+
+    public void testUiMessagesSkippedByDefault() {
+        assertTrue(EventTrace.startRecording(mFile));
+        EventTrace.record(EventTrace.KIND_UI_MESSAGE, NODES[0], PATHS[0], new byte[1]);
+        EventTrace.record(EventTrace.KIND_MESSAGE, NODES[1], PATHS[1], new byte[2]);
+        EventTrace.stopRecording();
+
+        final Recorded recorded = new Recorded();
+        assertEquals(1, EventTrace.Player.from(mFile).speed(0f).replay(recorded));
+        assertEquals(Arrays.asList(Recorded.toString(EventTrace.KIND_MESSAGE, NODES[1], PATHS[1], new byte[2])), recorded.mEvents);
+    }
+
+    public void testFileIsCapped() {
+        final long maxBytes = 4 * 1024;
+        assertTrue(EventTrace.startRecording(mFile, maxBytes));
+        for (int i = 0; i < 1000; i++) {
+            EventTrace.record(EventTrace.KIND_DATA, NODES[i % NODES.length], PATHS[i % PATHS.length], new byte[32]);
+        }
+        EventTrace.stopRecording();
+
+        final File rotated = EventTrace.rotatedFile(mFile);
+        assertTrue(rotated.exists());
+        assertTrue(mFile.length() < maxBytes);
+        assertTrue(rotated.length() < maxBytes + 64);
+        // Each file can be replayed on its own and the oldest events are gone
+        final Recorded current = new Recorded();
+        final Recorded previous = new Recorded();
+        final int replayed = EventTrace.Player.from(mFile).speed(0f).replay(current) + EventTrace.Player.from(rotated).speed(0f).replay(previous);
+        assertTrue(current.mEvents.size() > 0);
+        assertTrue(previous.mEvents.size() > 0);
+        assertTrue(replayed < 1000);
+    }
+
+    /**
+     * Listener that keeps the received events as strings.
+     */
+    private static final class Recorded implements SyncTransport.Listener {
+
+        private final List<String> mEvents = new ArrayList<>();
+
+        private static String toString(int kind, String nodeId, String path, byte[] data) {
+            return kind + "|" + nodeId + "|" + path + "|" + (data == null ? "null" : Arrays.toString(data));
+        }
+
+        @Override
+        public void onDataChanged(String sourceNodeId, String path, byte[] data) {
+            mEvents.add(toString(EventTrace.KIND_DATA, sourceNodeId, path, data));
+        }
+
+        @Override
+        public void onMessageReceived(String sourceNodeId, String path, byte[] data) {
+            mEvents.add(toString(EventTrace.KIND_MESSAGE, sourceNodeId, path, data));
+        }
+
+        @Override
+        public void onPeerConnected(String nodeId) {
+            mEvents.add(toString(EventTrace.KIND_PEER_CONNECTED, nodeId, null, null));
+        }
+
+        @Override
+        public void onPeerDisconnected(String nodeId) {
+            mEvents.add(toString(EventTrace.KIND_PEER_DISCONNECTED, nodeId, null, null));
+        }
+    }
+}
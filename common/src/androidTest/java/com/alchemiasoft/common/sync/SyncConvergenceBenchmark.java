@@ -0,0 +1,434 @@
+/*
+ * Copyright 2015 Simone Casagranda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alchemiasoft.common.sync;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import com.alchemiasoft.common.content.BookContentProvider;
+import com.alchemiasoft.common.content.BookDB;
+import com.alchemiasoft.common.util.UriUtil;
+
+import java.io.File;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmark that replicates books between a phone-side and a watch-side copy of the
+ * BookContentProvider, through the BookSyncHandler and a LoopbackTransport link. The writes follow
+ * the path of the app: sync uri, change log, coalescing outbox, acks and resume.
+ * <p/>
+ * Each scenario reports convergence latency percentiles, bytes on the wire and transactions
+ * applied per second. Run it with: ./gradlew :common:connectedAndroidTest
+ * <p/>
+ * Created by Simone Casagranda on 22/04/15.
+ */
+public class SyncConvergenceBenchmark extends AndroidTestCase {
+
+    /**
+     * Tag used for logging.
+     */
+    private static final String TAG_LOG = SyncConvergenceBenchmark.class.getSimpleName();
+
+    private static final String PHONE = "phone";
+    private static final String WATCH = "watch";
+
+    private static final String WHERE_OWNED = BookDB.Book.OWNED + " = ?";
+
+    /**
+     * Maximum time waited for the two nodes to converge once the writes are over.
+     */
+    private static final long CONVERGENCE_TIMEOUT = TimeUnit.SECONDS.toMillis(60);
+
+    public void testSteadyWrites() throws Exception {
+        run("steady", Scenario.create().catalog(1000).rate(50).duration(10), LoopbackTransport.Link.create().latency(20).bandwidth(100 * 1024));
+    }
+
+    public void testBurstOnSlowLink() throws Exception {
+        run("burst", Scenario.create().catalog(1000).rate(500).duration(5), LoopbackTransport.Link.create().latency(80).bandwidth(16 * 1024));
+    }
+
+    public void testLossyLink() throws Exception {
+        run("lossy", Scenario.create().catalog(1000).rate(50).duration(10), LoopbackTransport.Link.create().latency(40).bandwidth(32 * 1024).loss(0.1f).seed(23L));
+    }
+
+    public void testBulkOperations() throws Exception {
+        run("bulk", Scenario.create().catalog(10000).rate(20).bulkEvery(50).duration(10), LoopbackTransport.Link.create().latency(20).bandwidth(100 * 1024));
+    }
+
+    /**
+     * Configuration of the write load.
+     */
+    private static final class Scenario {
+
+        private int mCatalogSize = 1000;
+        private int mWritesPerSecond = 50;
+        private int mBulkEvery;
+        private int mDurationSeconds = 10;
+        private float mPhoneShare = 0.7f;
+
+        public static Scenario create() {
+            return new Scenario();
+        }
+
+        /**
+         * @param size number of books available on both nodes.
+         */
+        public Scenario catalog(int size) {
+            mCatalogSize = size;
+            return this;
+        }
+
+        /**
+         * @param writesPerSecond generated by the two nodes together.
+         */
+        public Scenario rate(int writesPerSecond) {
+            mWritesPerSecond = writesPerSecond;
+            return this;
+        }
+
+        /**
+         * @param writes number of single book writes between two bulk operations, 0 to disable.
+         */
+        public Scenario bulkEvery(int writes) {
+            mBulkEvery = writes;
+            return this;
+        }
+
+        public Scenario duration(int seconds) {
+            mDurationSeconds = seconds;
+            return this;
+        }
+    }
+
+    /**
+     * A node made of its own provider, resolver and transport endpoint. The writes go through the
+     * outbox of the provider, as the ones of the app, and a single thread delivers it like the
+     * OutboxService does.
+     */
+    private final class Node implements SyncTransport.Listener, BookSyncHandler.Delegate {
+
+        private final BookContentProvider mProvider = new BookContentProvider();
+        private final MockContentResolver mResolver = new MockContentResolver();
+        private final LoopbackTransport mTransport;
+        private final BookSyncHandler mHandler;
+        private final ExecutorService mOutbox = Executors.newSingleThreadExecutor();
+        private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+
+        private Node(String name, LoopbackTransport transport) {
+            final Context context = new RenamingDelegatingContext(getContext(), name + ".");
+            context.deleteDatabase(BookDB.NAME);
+            mProvider.attachInfo(context, null);
+            mResolver.addProvider(BookDB.AUTHORITY, mProvider);
+            mTransport = transport;
+            final File replayFile = new File(getContext().getCacheDir(), name + ".replay_filter");
+            replayFile.delete();
+            final SharedPreferences prefs = getContext().getSharedPreferences(TAG_LOG + "." + name, Context.MODE_PRIVATE);
+            prefs.edit().clear().commit();
+            mHandler = new BookSyncHandler(mResolver, transport, ReplayFilter.load(replayFile), Watermarks.from(prefs));
+            mHandler.setDelegate(this);
+            mTransport.setListener(this);
+        }
+
+        @Override
+        public void onDataChanged(String sourceNodeId, String path, byte[] data) {
+            mHandler.onDataChanged(sourceNodeId, path, data);
+            mHandler.flushAcks();
+        }
+
+        @Override
+        public void onMessageReceived(String sourceNodeId, String path, byte[] data) {
+            // Acks, resume pages and probes, as in the BooksSyncService
+            mHandler.onMessageReceived(sourceNodeId, path, data);
+            mHandler.flushAcks();
+        }
+
+        @Override
+        public void onPeerConnected(String nodeId) {
+            mHandler.onPeerConnected(nodeId);
+        }
+
+        @Override
+        public void onPeerDisconnected(String nodeId) {
+            mHandler.onPeerDisconnected(nodeId);
+        }
+
+        @Override
+        public void onApplied(String sourceNodeId, String path, long time) {
+            // Both the DataItem(s) and the resumed changes, only once in the books
+            SyncConvergenceBenchmark.this.onApplied(path, time);
+        }
+
+        @Override
+        public void onAcked(String nodeId, byte[] data) {
+        }
+
+        @Override
+        public void onSnapshotLoaded(String nodeId) {
+        }
+
+        @Override
+        public void onBootstrapNeeded(String nodeId) {
+        }
+
+        private void write(Uri uri, ContentValues values, String where, String... whereArgs) {
+            final String path = Event.DataApi.Builder.create(uri, values).path();
+            final long time = values.getAsLong(BookDB.Book.UPDATED_AT);
+            synchronized (mInFlight) {
+                TreeMap<Long, Long> writes = mInFlight.get(path);
+                if (writes == null) {
+                    writes = new TreeMap<>();
+                    mInFlight.put(path, writes);
+                }
+                writes.put(time, System.nanoTime());
+            }
+            // The provider logs the change and queues it in the outbox within the same transaction
+            if (mResolver.update(UriUtil.withSync(uri), values, where, whereArgs) > 0) {
+                drain();
+            } else {
+                SyncConvergenceBenchmark.this.onApplied(path, time);
+            }
+        }
+
+        private void drain() {
+            if (!mDrainScheduled.compareAndSet(false, true)) {
+                return;
+            }
+            mOutbox.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // Changes written from now on need another run
+                    mDrainScheduled.set(false);
+                    OutboxService.deliver(mResolver, mTransport);
+                }
+            });
+        }
+
+        private void close() {
+            mOutbox.shutdownNow();
+            mProvider.shutdown();
+        }
+    }
+
+    /**
+     * Writes waiting to be applied by the other node, start time for each path and updated_at.
+     */
+    private final Map<String, TreeMap<Long, Long>> mInFlight = new HashMap<>();
+    private final List<Long> mLatencies = new ArrayList<>();
+    private final AtomicLong mLastApplied = new AtomicLong();
+
+    /**
+     * Time source shared by the nodes: every write gets a distinct and increasing updated_at.
+     */
+    private final AtomicLong mClock = new AtomicLong();
+
+    /**
+     * A change carries the latest state of its path, so it also delivers the older writes that
+     * the outbox has coalesced with it.
+     */
+    private void onApplied(String path, long time) {
+        final long now = System.nanoTime();
+        synchronized (mInFlight) {
+            final TreeMap<Long, Long> writes = mInFlight.get(path);
+            if (writes == null) {
+                return;
+            }
+            final SortedMap<Long, Long> delivered = writes.headMap(time, true);
+            synchronized (mLatencies) {
+                for (Long sentAt : delivered.values()) {
+                    mLatencies.add(now - sentAt);
+                }
+            }
+            if (!delivered.isEmpty()) {
+                mLastApplied.set(now);
+            }
+            delivered.clear();
+            if (writes.isEmpty()) {
+                mInFlight.remove(path);
+            }
+        }
+    }
+
+    private int inFlight() {
+        int count = 0;
+        synchronized (mInFlight) {
+            for (TreeMap<Long, Long> writes : mInFlight.values()) {
+                count += writes.size();
+            }
+        }
+        return count;
+    }
+
+    private void run(String name, Scenario scenario, LoopbackTransport.Link link) throws Exception {
+        synchronized (mInFlight) {
+            mInFlight.clear();
+        }
+        synchronized (mLatencies) {
+            mLatencies.clear();
+        }
+        mClock.set(System.currentTimeMillis());
+        final LoopbackTransport[] transports = LoopbackTransport.pair(PHONE, WATCH, link);
+        final Node phone = new Node(PHONE, transports[0]);
+        final Node watch = new Node(WATCH, transports[1]);
+        try {
+            fillCatalog(phone, scenario.mCatalogSize);
+            fillCatalog(watch, scenario.mCatalogSize);
+
+            final Random random = new Random(scenario.mCatalogSize);
+            final int total = scenario.mWritesPerSecond * scenario.mDurationSeconds;
+            final long period = TimeUnit.SECONDS.toNanos(1) / scenario.mWritesPerSecond;
+            int bulkWrites = 0;
+            final long start = System.nanoTime();
+            for (int i = 0; i < total; i++) {
+                final long wait = start + i * period - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                final Node node = random.nextFloat() < scenario.mPhoneShare ? phone : watch;
+                if (scenario.mBulkEvery > 0 && i > 0 && i % scenario.mBulkEvery == 0) {
+                    // Same operations exposed by the wearable SettingsFragment
+                    final boolean sellAll = bulkWrites++ % 2 == 0;
+                    final ContentValues cv = values();
+                    cv.put(BookDB.Book.OWNED, sellAll ? 0 : 1);
+                    node.write(BookDB.Book.CONTENT_URI, cv, WHERE_OWNED, String.valueOf(sellAll ? 1 : 0));
+                } else {
+                    final Uri uri = BookDB.Book.create(1 + random.nextInt(scenario.mCatalogSize));
+                    final ContentValues cv = values();
+                    final float op = random.nextFloat();
+                    if (op < 0.4f) {
+                        cv.put(BookDB.Book.OWNED, 1);
+                    } else if (op < 0.8f) {
+                        cv.put(BookDB.Book.OWNED, 0);
+                    } else {
+                        cv.put(BookDB.Book.NOTES, "Note " + i);
+                    }
+                    node.write(uri, cv, null);
+                }
+            }
+            final long writesEnd = System.nanoTime();
+            final long deadline = System.currentTimeMillis() + CONVERGENCE_TIMEOUT;
+            while (inFlight() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            report(name, scenario, total, start, writesEnd, transports, diverged(phone, watch));
+            final int undelivered = inFlight();
+            assertEquals("Events not delivered within the timeout: " + undelivered, 0, undelivered);
+        } finally {
+            transports[0].close();
+            transports[1].close();
+            phone.close();
+            watch.close();
+        }
+    }
+
+    private ContentValues values() {
+        final ContentValues cv = new ContentValues();
+        cv.put(BookDB.Book.UPDATED_AT, mClock.incrementAndGet());
+        return cv;
+    }
+
+    private static void fillCatalog(Node node, int size) throws Exception {
+        final ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        final Cursor c = node.mResolver.query(BookDB.Book.CONTENT_URI, new String[]{BookDB.Book._ID}, null, null, null);
+        final int existing;
+        try {
+            existing = c.getCount();
+        } finally {
+            c.close();
+        }
+        for (int i = existing; i < size; i++) {
+            ops.add(ContentProviderOperation.newInsert(BookDB.Book.CONTENT_URI)
+                    .withValue(BookDB.Book.SERVER_ID, "bench-" + i)
+                    .withValue(BookDB.Book.TITLE, "Book " + i)
+                    .withValue(BookDB.Book.AUTHOR, "Author " + (i % 97))
+                    .withValue(BookDB.Book.TAG, "bench")
+                    .withValue(BookDB.Book.OWNED, 0)
+                    .build());
+        }
+        node.mProvider.applyBatch(ops);
+    }
+
+    /**
+     * @return the number of books whose owned flag or notes differ between the two nodes.
+     */
+    private static int diverged(Node first, Node second) {
+        final String[] projection = {BookDB.Book._ID, BookDB.Book.OWNED, BookDB.Book.NOTES};
+        final Cursor a = first.mResolver.query(BookDB.Book.CONTENT_URI, projection, null, null, BookDB.Book._ID);
+        final Cursor b = second.mResolver.query(BookDB.Book.CONTENT_URI, projection, null, null, BookDB.Book._ID);
+        int diverged = 0;
+        try {
+            while (a.moveToNext() && b.moveToNext()) {
+                final String notesA = a.getString(2);
+                final String notesB = b.getString(2);
+                if (a.getInt(1) != b.getInt(1) || (notesA == null ? notesB != null : !notesA.equals(notesB))) {
+                    diverged++;
+                }
+            }
+        } finally {
+            a.close();
+            b.close();
+        }
+        return diverged;
+    }
+
+    private void report(String name, Scenario scenario, int writes, long start, long writesEnd, LoopbackTransport[] transports, int diverged) {
+        final long[] latencies;
+        synchronized (mLatencies) {
+            latencies = new long[mLatencies.size()];
+            for (int i = 0; i < latencies.length; i++) {
+                latencies[i] = mLatencies.get(i);
+            }
+        }
+        Arrays.sort(latencies);
+        final long bytes = transports[0].getStats().bytes() + transports[1].getStats().bytes();
+        final long elapsed = Math.max(writesEnd, mLastApplied.get()) - start;
+        final double applied = latencies.length * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+        Log.i(TAG_LOG, String.format("%s: catalog=%d writes=%d applied=%d p50=%.1fms p90=%.1fms p99=%.1fms max=%.1fms bytes=%d (%.1f/write) tx/s=%.1f diverged=%d",
+                name, scenario.mCatalogSize, writes, latencies.length, millis(latencies, 0.5), millis(latencies, 0.9), millis(latencies, 0.99),
+                millis(latencies, 1.0), bytes, bytes / (double) Math.max(1, writes), applied, diverged));
+        Log.i(TAG_LOG, name + ": phone " + transports[0].getStats() + ", watch " + transports[1].getStats());
+    }
+
+    private static double millis(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        final int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2015 Simone Casagranda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alchemiasoft.common.content;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+
+import com.alchemiasoft.common.model.Book;
+import com.alchemiasoft.common.util.UriUtil;
+
+/**
+ * Typed client of the actions exposed by the {@link BookContentProvider}.
+ * <p/>
+ * Every action is synced with the other nodes. An action on a single book writes the change and
+ * reads back the updated row within the same transaction and with a single call to the
+ * provider, rather than an update followed by a query. Be aware that the methods are blocking
+ * and should not be called from the main thread.
+ * <p/>
+ * Created by Simone Casagranda on 11/05/15.
+ */
+public final class BookClient {
+
+    /**
+     * Methods and extras understood by {@link BookContentProvider#call(String, String, Bundle)}.
+     */
+    static final String METHOD_BUY = "buy";
+    static final String METHOD_SELL = "sell";
+    static final String METHOD_ADD_NOTE = "addNote";
+    static final String METHOD_SET_OWNED_WHERE = "setOwnedWhere";
+
+    static final String EXTRA_NOTES = "notes";
+    static final String EXTRA_OWNED = "owned";
+    static final String EXTRA_WHERE = "where";
+    static final String EXTRA_WHERE_ARGS = "where_args";
+    static final String EXTRA_UPDATED = "updated";
+
+    private static final String[] VERSION_PROJECTION = {BookDB.Book.UPDATED_AT};
+
+    private final ContentResolver mResolver;
+
+    private BookClient(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    public static BookClient from(@NonNull Context context) {
+        return new BookClient(context.getContentResolver());
+    }
+
+    /**
+     * @param bookId of the book.
+     * @return the book or null if it doesn't exist.
+     */
+    public Book get(long bookId) {
+        final Cursor c = mResolver.query(BookDB.Book.create(bookId), null, null, null, null);
+        try {
+            return c.moveToFirst() ? Book.oneFrom(c) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Checks a snapshot against the version of the stored book, reading only its updated_at:
+     * the whole row is loaded again only when the snapshot is stale.
+     *
+     * @param snapshot of the book.
+     * @return the snapshot if it's still current, the stored book otherwise or null if the book
+     * doesn't exist anymore.
+     */
+    public Book refresh(@NonNull Book snapshot) {
+        final Cursor c = mResolver.query(BookDB.Book.create(snapshot.getId()), VERSION_PROJECTION, null, null, null);
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            if (c.getLong(0) == snapshot.getUpdatedAt()) {
+                return snapshot;
+            }
+        } finally {
+            c.close();
+        }
+        return get(snapshot.getId());
+    }
+
+    /**
+     * @param bookId of the book to buy.
+     * @return the updated book or null if the book doesn't exist.
+     */
+    public Book buy(long bookId) {
+        return callBook(METHOD_BUY, bookId, null);
+    }
+
+    /**
+     * @param bookId of the book to sell.
+     * @return the updated book or null if the book doesn't exist.
+     */
+    public Book sell(long bookId) {
+        return callBook(METHOD_SELL, bookId, null);
+    }
+
+    /**
+     * @param bookId of the annotated book.
+     * @param notes  of the book, null to remove them.
+     * @return the updated book or null if the book doesn't exist.
+     */
+    public Book addNote(long bookId, String notes) {
+        final Bundle extras = new Bundle();
+        extras.putString(EXTRA_NOTES, notes);
+        return callBook(METHOD_ADD_NOTE, bookId, extras);
+    }
+
+    /**
+     * Buys or sells all the books that match the given selection.
+     *
+     * @param owned     true to buy the books, false to sell them.
+     * @param where     selection of the books, null for all of them.
+     * @param whereArgs of the selection.
+     * @return the number of updated books.
+     */
+    public int setOwnedWhere(boolean owned, String where, String... whereArgs) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            final ContentValues values = new ContentValues();
+            values.put(BookDB.Book.OWNED, owned ? 1 : 0);
+            return mResolver.update(UriUtil.withSync(BookDB.Book.CONTENT_URI), values, where, whereArgs);
+        }
+        final Bundle extras = new Bundle();
+        extras.putBoolean(EXTRA_OWNED, owned);
+        extras.putString(EXTRA_WHERE, where);
+        extras.putStringArray(EXTRA_WHERE_ARGS, whereArgs);
+        final Bundle result = call(METHOD_SET_OWNED_WHERE, null, extras);
+        return result == null ? 0 : result.getInt(EXTRA_UPDATED);
+    }
+
+    /**
+     * Sells all the books and removes their notes.
+     *
+     * @return the number of updated books.
+     */
+    public int reset() {
+        final ContentValues values = new ContentValues();
+        values.put(BookDB.Book.OWNED, 0);
+        values.putNull(BookDB.Book.NOTES);
+        return mResolver.update(UriUtil.withSync(BookDB.Book.CONTENT_URI), values, null, null);
+    }
+
+    private Book callBook(String method, long bookId, Bundle extras) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return updateAndQuery(method, bookId, extras);
+        }
+        final Bundle row = call(method, String.valueOf(bookId), extras);
+        return row == null ? null : Book.oneFrom(row);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private Bundle call(String method, String arg, Bundle extras) {
+        return mResolver.call(BookDB.Book.CONTENT_URI, method, arg, extras);
+    }
+
+    /**
+     * ContentResolver.call() is not available before Honeycomb: the action costs two calls.
+     */
+    private Book updateAndQuery(String method, long bookId, Bundle extras) {
+        final Uri uri = BookDB.Book.create(bookId);
+        if (mResolver.update(UriUtil.withSync(uri), BookContentProvider.valuesFor(method, extras), null, null) != 1) {
+            return null;
+        }
+        return get(bookId);
+    }
+}
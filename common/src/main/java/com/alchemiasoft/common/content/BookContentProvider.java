@@ -26,8 +26,12 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
+import android.os.Bundle;
 import android.text.TextUtils;
 
+import com.alchemiasoft.common.model.Book;
+import com.alchemiasoft.common.sync.Event;
+import com.alchemiasoft.common.sync.IdSet;
 import com.alchemiasoft.common.util.ArraysUtil;
 import com.alchemiasoft.common.util.UriUtil;
 
@@ -42,6 +46,14 @@ public class BookContentProvider extends ContentProvider {
 
     protected final static UriMatcher mUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
+    /**
+     * Params used to resolve the books of a bulk change and to look for a pending change of the
+     * same book.
+     */
+    private static final String[] ID_PROJECTION = {BookDB.Book._ID};
+    private static final String[] OUTBOX_PROJECTION = {BookDB.Outbox._ID, BookDB.Outbox.DATA, BookDB.Outbox.VERSION};
+    private static final String WHERE_COALESCIBLE = BookDB.Outbox.PATH + " = ? AND " + BookDB.Outbox.COALESCIBLE + " = 1";
+
     private SQLiteOpenHelper mDbHelper;
 
     @Override
@@ -49,6 +61,10 @@ public class BookContentProvider extends ContentProvider {
         mDbHelper = new BookDBOpenHelper(getContext());
         mUriMatcher.addURI(BookDB.AUTHORITY, BookDB.Book.ITEM_PATH, 0);
         mUriMatcher.addURI(BookDB.AUTHORITY, BookDB.Book.DIR_PATH, 1);
+        mUriMatcher.addURI(BookDB.AUTHORITY, BookDB.Outbox.ITEM_PATH, 2);
+        mUriMatcher.addURI(BookDB.AUTHORITY, BookDB.Outbox.DIR_PATH, 3);
+        mUriMatcher.addURI(BookDB.AUTHORITY, BookDB.ChangeLog.ITEM_PATH, 4);
+        mUriMatcher.addURI(BookDB.AUTHORITY, BookDB.ChangeLog.DIR_PATH, 5);
         return true;
     }
 
@@ -60,6 +76,14 @@ public class BookContentProvider extends ContentProvider {
                 return BookDB.Book.CURSOR_ITEM_MIME_TYPE;
             case 1:
                 return BookDB.Book.CURSOR_DIR_MIME_TYPE;
+            case 2:
+                return BookDB.Outbox.CURSOR_ITEM_MIME_TYPE;
+            case 3:
+                return BookDB.Outbox.CURSOR_DIR_MIME_TYPE;
+            case 4:
+                return BookDB.ChangeLog.CURSOR_ITEM_MIME_TYPE;
+            case 5:
+                return BookDB.ChangeLog.CURSOR_DIR_MIME_TYPE;
             default:
                 return null;
         }
@@ -84,6 +108,12 @@ public class BookContentProvider extends ContentProvider {
             case 1:
                 cursor = mDbHelper.getWritableDatabase().query(BookDB.Book.TABLE, projection, selection, selectionArgs, null, null, sortOrder, limit);
                 break;
+            case 3:
+                cursor = mDbHelper.getWritableDatabase().query(BookDB.Outbox.TABLE, projection, selection, selectionArgs, null, null, sortOrder, limit);
+                break;
+            case 5:
+                cursor = mDbHelper.getWritableDatabase().query(BookDB.ChangeLog.TABLE, projection, selection, selectionArgs, null, null, sortOrder, limit);
+                break;
             default:
                 throw new IllegalArgumentException("Uri not valid for ContentProvider " + uri);
         }
@@ -122,6 +152,19 @@ public class BookContentProvider extends ContentProvider {
             case 1:
                 result = mDbHelper.getWritableDatabase().delete(BookDB.Book.TABLE, selection, selectionArgs);
                 break;
+            case 2:
+                if (TextUtils.isEmpty(selection)) {
+                    selection = BookDB.Outbox._ID + " = ?";
+                    selectionArgs = new String[]{uri.getLastPathSegment()};
+                } else {
+                    selection = BookDB.Outbox._ID + " = ? AND (" + selection + ")";
+                    selectionArgs = ArraysUtil.concatenate(new String[]{uri.getLastPathSegment()}, selectionArgs);
+                }
+                result = mDbHelper.getWritableDatabase().delete(BookDB.Outbox.TABLE, selection, selectionArgs);
+                break;
+            case 5:
+                result = mDbHelper.getWritableDatabase().delete(BookDB.ChangeLog.TABLE, selection, selectionArgs);
+                break;
             default:
                 throw new IllegalArgumentException("Uri not valid for ContentProvider " + uri);
         }
@@ -147,13 +190,23 @@ public class BookContentProvider extends ContentProvider {
                 if (!values.containsKey(BookDB.Book.UPDATED_AT)) {
                     values.put(BookDB.Book.UPDATED_AT, System.currentTimeMillis());
                 }
-                result = mDbHelper.getWritableDatabase().update(BookDB.Book.TABLE, values, selection, selectionArgs);
+                result = updateBooks(uri, values, selection, selectionArgs, false);
                 break;
             case 1:
                 if (!values.containsKey(BookDB.Book.UPDATED_AT)) {
                     values.put(BookDB.Book.UPDATED_AT, System.currentTimeMillis());
                 }
-                result = mDbHelper.getWritableDatabase().update(BookDB.Book.TABLE, values, selection, selectionArgs);
+                result = updateBooks(uri, values, selection, selectionArgs, true);
+                break;
+            case 2:
+                if (TextUtils.isEmpty(selection)) {
+                    selection = BookDB.Outbox._ID + " = ?";
+                    selectionArgs = new String[]{uri.getLastPathSegment()};
+                } else {
+                    selection = BookDB.Outbox._ID + " = ? AND (" + selection + ")";
+                    selectionArgs = ArraysUtil.concatenate(new String[]{uri.getLastPathSegment()}, selectionArgs);
+                }
+                result = mDbHelper.getWritableDatabase().update(BookDB.Outbox.TABLE, values, selection, selectionArgs);
                 break;
             default:
                 throw new IllegalArgumentException("Uri not valid for ContentProvider " + uri);
@@ -164,6 +217,159 @@ public class BookContentProvider extends ContentProvider {
         return result;
     }
 
+    /**
+     * Updates the books and, if the uri asks for it, writes the change in the outbox within the
+     * same transaction. In this way a change can't be applied locally and lost for the other nodes.
+     * A bulk change is shipped with the ids of the rows it has touched, so the other nodes don't
+     * have to evaluate the selection against their own state.
+     */
+    private int updateBooks(Uri uri, ContentValues values, String selection, String[] selectionArgs, boolean bulk) {
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        final boolean sync = UriUtil.isSync(uri);
+        db.beginTransaction();
+        try {
+            IdSet ids = null;
+            if (sync && bulk) {
+                final IdSet.Builder builder = IdSet.Builder.create();
+                final Cursor c = db.query(BookDB.Book.TABLE, ID_PROJECTION, selection, selectionArgs, null, null, null);
+                try {
+                    while (c.moveToNext()) {
+                        builder.add(c.getLong(0));
+                    }
+                } finally {
+                    c.close();
+                }
+                ids = builder.build();
+            }
+            final int result = db.update(BookDB.Book.TABLE, values, selection, selectionArgs);
+            if (result > 0 && sync) {
+                enqueue(db, uri.buildUpon().clearQuery().build(), values, ids);
+            }
+            db.setTransactionSuccessful();
+            return result;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Adds a change to the change log and to the outbox, the change carries its sequence in the
+     * log. A change that targets a single book is coalesced with the pending one for the same
+     * book (if any), so that only the latest state is delivered.
+     */
+    private void enqueue(SQLiteDatabase db, Uri uri, ContentValues values, IdSet ids) {
+        final Event.DataApi.Builder builder = Event.DataApi.Builder.create(uri, values).ids(ids);
+        final String path = builder.path();
+        final long now = System.currentTimeMillis();
+        final ContentValues log = new ContentValues();
+        log.put(BookDB.ChangeLog.PATH, path);
+        log.put(BookDB.ChangeLog.DATA, builder.data());
+        log.put(BookDB.ChangeLog.CREATED_AT, now);
+        final long sequence = db.insert(BookDB.ChangeLog.TABLE, null, log);
+        final boolean coalescible = ids == null;
+        if (coalescible) {
+            final Cursor c = db.query(BookDB.Outbox.TABLE, OUTBOX_PROJECTION, WHERE_COALESCIBLE, new String[]{path}, null, null, null);
+            try {
+                if (c.moveToFirst()) {
+                    final ContentValues pending = Event.DataApi.Item.from(path, c.getBlob(1)).values();
+                    final ContentValues merged = Event.DataApi.Item.merge(pending, values);
+                    final ContentValues cv = new ContentValues();
+                    cv.put(BookDB.Outbox.DATA, Event.DataApi.Builder.create(uri, merged).sequence(sequence).data());
+                    cv.put(BookDB.Outbox.VERSION, c.getInt(2) + 1);
+                    cv.put(BookDB.Outbox.ATTEMPTS, 0);
+                    cv.put(BookDB.Outbox.NEXT_ATTEMPT_AT, 0);
+                    db.update(BookDB.Outbox.TABLE, cv, BookDB.Outbox._ID + " = ?", new String[]{String.valueOf(c.getLong(0))});
+                    return;
+                }
+            } finally {
+                c.close();
+            }
+        }
+        final ContentValues cv = new ContentValues();
+        cv.put(BookDB.Outbox.PATH, path);
+        cv.put(BookDB.Outbox.DATA, builder.sequence(sequence).data());
+        cv.put(BookDB.Outbox.COALESCIBLE, coalescible);
+        cv.put(BookDB.Outbox.CREATED_AT, now);
+        db.insert(BookDB.Outbox.TABLE, null, cv);
+    }
+
+    /**
+     * Performs the actions of the {@link BookClient}. The actions on a single book return the
+     * updated row (null if the book doesn't exist), the bulk ones the number of updated books.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        switch (method) {
+            case BookClient.METHOD_BUY:
+            case BookClient.METHOD_SELL:
+            case BookClient.METHOD_ADD_NOTE:
+                return updateBook(Long.parseLong(arg), valuesFor(method, extras));
+            case BookClient.METHOD_SET_OWNED_WHERE:
+                final Uri uri = UriUtil.withSync(BookDB.Book.CONTENT_URI);
+                final Bundle result = new Bundle();
+                result.putInt(BookClient.EXTRA_UPDATED, update(uri, valuesFor(method, extras),
+                        extras.getString(BookClient.EXTRA_WHERE), extras.getStringArray(BookClient.EXTRA_WHERE_ARGS)));
+                return result;
+            default:
+                return super.call(method, arg, extras);
+        }
+    }
+
+    /**
+     * @return the values to write for the given action of the {@link BookClient}.
+     */
+    static ContentValues valuesFor(String method, Bundle extras) {
+        final ContentValues values = new ContentValues();
+        switch (method) {
+            case BookClient.METHOD_BUY:
+                values.put(BookDB.Book.OWNED, 1);
+                break;
+            case BookClient.METHOD_SELL:
+                values.put(BookDB.Book.OWNED, 0);
+                break;
+            case BookClient.METHOD_ADD_NOTE:
+                values.put(BookDB.Book.NOTES, extras.getString(BookClient.EXTRA_NOTES));
+                break;
+            case BookClient.METHOD_SET_OWNED_WHERE:
+                values.put(BookDB.Book.OWNED, extras.getBoolean(BookClient.EXTRA_OWNED) ? 1 : 0);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown method " + method);
+        }
+        values.put(BookDB.Book.UPDATED_AT, System.currentTimeMillis());
+        return values;
+    }
+
+    /**
+     * Updates a book (syncing the change) and reads it back within the same transaction.
+     */
+    private Bundle updateBook(long bookId, ContentValues values) {
+        final Uri uri = BookDB.Book.create(bookId);
+        final String[] args = {String.valueOf(bookId)};
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        Bundle row = null;
+        db.beginTransaction();
+        try {
+            if (updateBooks(UriUtil.withSync(uri), values, BookDB.Book._ID + " = ?", args, false) == 1) {
+                final Cursor c = db.query(BookDB.Book.TABLE, null, BookDB.Book._ID + " = ?", args, null, null, null);
+                try {
+                    if (c.moveToFirst()) {
+                        row = Book.oneFrom(c).toBundle();
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (row != null) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+        return row;
+    }
+
     @Override
     public ContentProviderResult[] applyBatch(final ArrayList<ContentProviderOperation> operations) throws OperationApplicationException {
         final SQLiteDatabase db = mDbHelper.getWritableDatabase();
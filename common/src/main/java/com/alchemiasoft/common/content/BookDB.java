@@ -28,7 +28,7 @@ import android.provider.BaseColumns;
 public final class BookDB {
 
     public static final String NAME = "book.db";
-    public static final int VERSION = 6;
+    public static final int VERSION = 9;
 
     public static final String AUTHORITY = "com.alchemiasoft.book.provider";
 
@@ -75,4 +75,72 @@ public final class BookDB {
             return Uri.withAppendedPath(CONTENT_URI, String.valueOf(id));
         }
     }
+
+    /**
+     * Outbox's table in the Database: changes waiting to be delivered to the other nodes.
+     */
+    public static final class Outbox implements BaseColumns {
+
+        public static final String TABLE = "Outbox";
+
+        public static final String PATH = "path";
+        public static final String DATA = "data";
+        public static final String COALESCIBLE = "coalescible";
+        public static final String VERSION = "version";
+        public static final String ATTEMPTS = "attempts";
+        public static final String NEXT_ATTEMPT_AT = "next_attempt_at";
+        public static final String CREATED_AT = "created_at";
+
+        public static final String CREATE_TABLE = "CREATE TABLE " + TABLE + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + PATH + " TEXT NOT NULL, " + DATA + " BLOB NOT NULL, " + COALESCIBLE + " BOOLEAN, " + VERSION + " INTEGER DEFAULT 0, "
+                + ATTEMPTS + " INTEGER DEFAULT 0, " + NEXT_ATTEMPT_AT + " INTEGER DEFAULT 0, " + CREATED_AT + " INTEGER);";
+        public static final String DELETE_TABLE = "DROP TABLE IF EXISTS " + TABLE + ";";
+
+        public static final String URI_PATH = "outbox";
+        public static final Uri CONTENT_URI = Uri.parse(CONTENT_SCHEME + URI_PATH);
+        public static final String CURSOR_ITEM_MIME_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE + VND + URI_PATH;
+        public static final String CURSOR_DIR_MIME_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + VND + URI_PATH;
+        public static final String ITEM_PATH = URI_PATH + "/#";
+        public static final String DIR_PATH = URI_PATH;
+
+        public static Uri create() {
+            return CONTENT_URI;
+        }
+
+        public static Uri create(long id) {
+            return Uri.withAppendedPath(CONTENT_URI, String.valueOf(id));
+        }
+    }
+
+    /**
+     * ChangeLog's table in the Database: every change made on this node, the id is its sequence.
+     * It allows a node that has been away to receive only the changes it has missed.
+     */
+    public static final class ChangeLog implements BaseColumns {
+
+        public static final String TABLE = "ChangeLog";
+
+        public static final String PATH = "path";
+        public static final String DATA = "data";
+        public static final String CREATED_AT = "created_at";
+
+        public static final String CREATE_TABLE = "CREATE TABLE " + TABLE + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + PATH + " TEXT NOT NULL, " + DATA + " BLOB NOT NULL, " + CREATED_AT + " INTEGER);";
+        public static final String DELETE_TABLE = "DROP TABLE IF EXISTS " + TABLE + ";";
+
+        public static final String URI_PATH = "change_log";
+        public static final Uri CONTENT_URI = Uri.parse(CONTENT_SCHEME + URI_PATH);
+        public static final String CURSOR_ITEM_MIME_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE + VND + URI_PATH;
+        public static final String CURSOR_DIR_MIME_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + VND + URI_PATH;
+        public static final String ITEM_PATH = URI_PATH + "/#";
+        public static final String DIR_PATH = URI_PATH;
+
+        public static Uri create() {
+            return CONTENT_URI;
+        }
+
+        public static Uri create(long id) {
+            return Uri.withAppendedPath(CONTENT_URI, String.valueOf(id));
+        }
+    }
 }
@@ -55,6 +55,8 @@ public class BookDBOpenHelper extends SQLiteOpenHelper {
             db.beginTransaction();
 
             db.execSQL(BookDB.Book.CREATE_TABLE);
+            db.execSQL(BookDB.Outbox.CREATE_TABLE);
+            db.execSQL(BookDB.ChangeLog.CREATE_TABLE);
 
             String input = null;
             try {
@@ -88,6 +90,8 @@ public class BookDBOpenHelper extends SQLiteOpenHelper {
             db.beginTransaction();
 
             db.execSQL(BookDB.Book.DELETE_TABLE);
+            db.execSQL(BookDB.Outbox.DELETE_TABLE);
+            db.execSQL(BookDB.ChangeLog.DELETE_TABLE);
 
             onCreate(db);
 
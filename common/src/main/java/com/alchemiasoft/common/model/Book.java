@@ -18,6 +18,9 @@ package com.alchemiasoft.common.model;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
 import android.support.annotation.NonNull;
 
 import com.alchemiasoft.common.content.BookDB;
@@ -31,9 +34,13 @@ import java.util.List;
 /**
  * Entity that represents a Book.
  * <p/>
+ * A Book can be passed between components as a Parcelable snapshot: its updated_at time is the
+ * version of the snapshot, so the receiver can check that it's still current without loading
+ * the whole row again.
+ * <p/>
  * Created by Simone Casagranda on 20/12/14.
  */
-public class Book {
+public class Book implements Parcelable {
 
     public static final long NOT_VALID = -1L;
 
@@ -50,6 +57,30 @@ public class Book {
     private long mUpdatedAt;
     private String mTag;
 
+    public static final Parcelable.Creator<Book> CREATOR = new Parcelable.Creator<Book>() {
+        @Override
+        public Book createFromParcel(Parcel in) {
+            final Book book = new Book();
+            book.mId = in.readLong();
+            book.mUpdatedAt = in.readLong();
+            book.mServerId = in.readString();
+            book.mTitle = in.readString();
+            book.mAuthor = in.readString();
+            book.mSource = in.readString();
+            book.mDescription = in.readString();
+            book.mPages = in.readInt();
+            book.mNotes = in.readString();
+            book.mOwned = in.readInt() == 1;
+            book.mTag = in.readString();
+            return book;
+        }
+
+        @Override
+        public Book[] newArray(int size) {
+            return new Book[size];
+        }
+    };
+
     private Book() {
     }
 
@@ -92,6 +123,22 @@ public class Book {
         return book;
     }
 
+    public static Book oneFrom(@NonNull Bundle bundle) {
+        final Book book = new Book();
+        book.mId = bundle.getLong(BookDB.Book._ID, NOT_VALID);
+        book.mServerId = bundle.getString(BookDB.Book.SERVER_ID);
+        book.mTitle = bundle.getString(BookDB.Book.TITLE);
+        book.mAuthor = bundle.getString(BookDB.Book.AUTHOR);
+        book.mSource = bundle.getString(BookDB.Book.SOURCE);
+        book.mDescription = bundle.getString(BookDB.Book.DESCRIPTION);
+        book.mPages = bundle.getInt(BookDB.Book.PAGES);
+        book.mNotes = bundle.getString(BookDB.Book.NOTES);
+        book.mOwned = bundle.getBoolean(BookDB.Book.OWNED);
+        book.mUpdatedAt = bundle.getLong(BookDB.Book.UPDATED_AT);
+        book.mTag = bundle.getString(BookDB.Book.TAG);
+        return book;
+    }
+
     public static List<Book> allFrom(@NonNull Cursor c) {
         final List<Book> books = new ArrayList<>();
         while (c.moveToNext()) {
@@ -136,6 +183,42 @@ public class Book {
         return cv;
     }
 
+    public Bundle toBundle() {
+        final Bundle bundle = new Bundle();
+        bundle.putLong(BookDB.Book._ID, mId);
+        bundle.putString(BookDB.Book.SERVER_ID, mServerId);
+        bundle.putString(BookDB.Book.TITLE, mTitle);
+        bundle.putString(BookDB.Book.AUTHOR, mAuthor);
+        bundle.putString(BookDB.Book.SOURCE, mSource);
+        bundle.putString(BookDB.Book.DESCRIPTION, mDescription);
+        bundle.putInt(BookDB.Book.PAGES, mPages);
+        bundle.putString(BookDB.Book.NOTES, mNotes);
+        bundle.putBoolean(BookDB.Book.OWNED, mOwned);
+        bundle.putLong(BookDB.Book.UPDATED_AT, mUpdatedAt);
+        bundle.putString(BookDB.Book.TAG, mTag);
+        return bundle;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(mId);
+        dest.writeLong(mUpdatedAt);
+        dest.writeString(mServerId);
+        dest.writeString(mTitle);
+        dest.writeString(mAuthor);
+        dest.writeString(mSource);
+        dest.writeString(mDescription);
+        dest.writeInt(mPages);
+        dest.writeString(mNotes);
+        dest.writeInt(mOwned ? 1 : 0);
+        dest.writeString(mTag);
+    }
+
     public long getId() {
         return mId;
     }
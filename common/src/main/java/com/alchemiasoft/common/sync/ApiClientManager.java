@@ -0,0 +1,255 @@
+/*
+ * Copyright 2015 Simone Casagranda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alchemiasoft.common.sync;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.GooglePlayServicesUtil;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.wearable.Wearable;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide owner of the GoogleApiClient used to access the Wearable api(s).
+ * <p/>
+ * Components acquire a {@link Lease} instead of building their own client: the client is
+ * connected once, reconnected with a backoff if the connection fails while it's leased, and
+ * disconnected when nobody has used it for {@link #IDLE_TIMEOUT} milliseconds.
+ * <p/>
+ * Created by Simone Casagranda on 28/04/15.
+ */
+public final class ApiClientManager implements GoogleApiClient.ConnectionCallbacks, GoogleApiClient.OnConnectionFailedListener {
+
+    /**
+     * Tag used for logging.
+     */
+    private static final String TAG_LOG = ApiClientManager.class.getSimpleName();
+
+    /**
+     * Time after which an unused client is disconnected.
+     */
+    public static final long IDLE_TIMEOUT = TimeUnit.SECONDS.toMillis(60);
+
+    /**
+     * Reconnection backoff bounds in milliseconds.
+     */
+    private static final long MIN_BACKOFF = TimeUnit.SECONDS.toMillis(1);
+    private static final long MAX_BACKOFF = TimeUnit.SECONDS.toMillis(60);
+
+    /**
+     * Volatile so that the double check never sees a partially built instance.
+     */
+    private static volatile ApiClientManager sInstance;
+    private static final Object LOCK = new Object();
+
+    /**
+     * Returns the manager for the current process.
+     *
+     * @param context used to build the client.
+     * @return the ApiClientManager instance.
+     */
+    public static ApiClientManager get(@NonNull Context context) {
+        // Double check locking
+        ApiClientManager instance = sInstance;
+        if (instance == null) {
+            synchronized (LOCK) {
+                instance = sInstance;
+                if (instance == null) {
+                    instance = new ApiClientManager(context.getApplicationContext());
+                    sInstance = instance;
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Handle to the shared client, it has to be released when not needed anymore.
+     */
+    public final class Lease {
+
+        private final GoogleApiClient.ConnectionCallbacks mCallbacks;
+        private boolean mReleased;
+
+        private Lease(GoogleApiClient.ConnectionCallbacks callbacks) {
+            mCallbacks = callbacks;
+        }
+
+        public GoogleApiClient client() {
+            return mClient;
+        }
+
+        /**
+         * Waits for the shared client to be connected.
+         * Be aware that is a blocking call that should not be called from the main thread.
+         *
+         * @param timeoutMillis maximum time to wait.
+         * @return true if the client is connected, false otherwise.
+         */
+        public boolean awaitConnected(long timeoutMillis) {
+            return ApiClientManager.this.awaitConnected(timeoutMillis);
+        }
+
+        public void release() {
+            ApiClientManager.this.release(this);
+        }
+    }
+
+    private final GoogleApiClient mClient;
+    private final boolean mAvailable;
+    private final ScheduledExecutorService mScheduler = Executors.newSingleThreadScheduledExecutor();
+
+    private int mLeases;
+    private long mBackoff = MIN_BACKOFF;
+    private Future<?> mIdleDisconnect;
+    private Future<?> mReconnect;
+
+    private ApiClientManager(Context context) {
+        mAvailable = GooglePlayServicesUtil.isGooglePlayServicesAvailable(context) == ConnectionResult.SUCCESS;
+        mClient = new GoogleApiClient.Builder(context).addApi(Wearable.API).addConnectionCallbacks(this).addOnConnectionFailedListener(this).build();
+    }
+
+    /**
+     * @return true if the Google Play Services are available, false otherwise.
+     */
+    public boolean isAvailable() {
+        return mAvailable;
+    }
+
+    /**
+     * @return a new lease on the shared client, the connection is started if needed.
+     */
+    public Lease acquire() {
+        return acquire(null);
+    }
+
+    /**
+     * Acquires a lease on the shared client.
+     *
+     * @param callbacks notified about the connection state until the lease is released. If the
+     *                  client is already connected they are notified immediately.
+     * @return a new lease on the shared client, the connection is started if needed.
+     */
+    public synchronized Lease acquire(@Nullable GoogleApiClient.ConnectionCallbacks callbacks) {
+        mLeases++;
+        if (mIdleDisconnect != null) {
+            mIdleDisconnect.cancel(false);
+            mIdleDisconnect = null;
+        }
+        if (callbacks != null) {
+            mClient.registerConnectionCallbacks(callbacks);
+        }
+        connectIfNeeded();
+        return new Lease(callbacks);
+    }
+
+    private synchronized void release(Lease lease) {
+        if (lease.mReleased) {
+            return;
+        }
+        lease.mReleased = true;
+        if (lease.mCallbacks != null) {
+            mClient.unregisterConnectionCallbacks(lease.mCallbacks);
+        }
+        if (--mLeases == 0) {
+            mIdleDisconnect = mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    disconnectIfIdle();
+                }
+            }, IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void disconnectIfIdle() {
+        if (mLeases == 0) {
+            Log.d(TAG_LOG, "Disconnecting idle GoogleApiClient.");
+            mClient.disconnect();
+        }
+    }
+
+    private synchronized boolean awaitConnected(long timeoutMillis) {
+        if (!mAvailable) {
+            return false;
+        }
+        connectIfNeeded();
+        final long deadline = SystemClock.elapsedRealtime() + timeoutMillis;
+        while (!mClient.isConnected()) {
+            final long remaining = deadline - SystemClock.elapsedRealtime();
+            if (remaining <= 0) {
+                Log.e(TAG_LOG, "Cannot connect to GoogleApiClient.");
+                return false;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void connectIfNeeded() {
+        if (mAvailable && !mClient.isConnected() && !mClient.isConnecting()) {
+            mClient.connect();
+        }
+    }
+
+    @Override
+    public synchronized void onConnected(Bundle connectionHint) {
+        mBackoff = MIN_BACKOFF;
+        notifyAll();
+    }
+
+    @Override
+    public void onConnectionSuspended(int cause) {
+        // The client tries to restore the connection on its own
+        Log.w(TAG_LOG, "GoogleApiClient connection suspended (cause=" + cause + ").");
+    }
+
+    @Override
+    public synchronized void onConnectionFailed(ConnectionResult result) {
+        Log.e(TAG_LOG, "GoogleApiClient connection failed: " + result);
+        // Waking up the waiters, they will give up or wait for the next attempt
+        notifyAll();
+        if (mLeases > 0 && (mReconnect == null || mReconnect.isDone())) {
+            Log.d(TAG_LOG, "Reconnecting in " + mBackoff + " ms.");
+            mReconnect = mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (ApiClientManager.this) {
+                        if (mLeases > 0) {
+                            connectIfNeeded();
+                        }
+                    }
+                }
+            }, mBackoff, TimeUnit.MILLISECONDS);
+            mBackoff = Math.min(mBackoff * 2, MAX_BACKOFF);
+        }
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright 2015 Simone Casagranda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alchemiasoft.common.sync;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.database.SQLException;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.alchemiasoft.common.content.BookDB;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies the events coming from a SyncTransport to the local books.
+ * It contains the sync logic shared by the BooksSyncService and any in-process transport: the
+ * changes, the messages of the sync protocols (acks, resume and link probes) and the peer events.
+ * <p/>
+ * Created by Simone Casagranda on 20/04/15.
+ */
+public class BookSyncHandler implements SyncTransport.Listener {
+
+    /**
+     * Tag used for logging.
+     */
+    private static final String TAG_LOG = BookSyncHandler.class.getSimpleName();
+
+    /**
+     * The update has always to be performed if the content is old.
+     */
+    private static final String WHERE_BEFORE = BookDB.Book.UPDATED_AT + " < ?";
+
+    /**
+     * Terms of a single selection, it keeps the expression tree within the SQLite limits.
+     */
+    private static final int MAX_SELECTION_TERMS = 200;
+
+    /**
+     * Minimum time between two requests for the changes missing from the applied sequences of a node.
+     */
+    private static final long GAP_REQUEST_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+
+    private final ContentResolver mResolver;
+    private final SyncTransport mTransport;
+    private final ReplayFilter mReplayFilter;
+    private final Watermarks mWatermarks;
+
+    /**
+     * Changes applied since the last flush, latest time for each path and source node.
+     */
+    private final Map<String, Map<String, Long>> mPendingAcks = new HashMap<>();
+    /**
+     * Last time the gaps of each source node have been asked for.
+     */
+    private final Map<String, Long> mGapRequests = new HashMap<>();
+
+    private String mLocalNodeId;
+    private Delegate mDelegate;
+
+    /**
+     * Allows the owner of the handler to react to the events that need more than the books.
+     */
+    public interface Delegate {
+
+        /**
+         * Called when a peer has acknowledged changes of this node, once the change log has been trimmed.
+         *
+         * @param nodeId of the peer.
+         * @param data   payload of the ack message.
+         */
+        void onAcked(String nodeId, byte[] data);
+
+        /**
+         * Called when a peer has confirmed the load of a snapshot of this node.
+         *
+         * @param nodeId of the peer.
+         */
+        void onSnapshotLoaded(String nodeId);
+
+        /**
+         * Called when a peer asks for the changes without having ever loaded a snapshot of this
+         * node (e.g. because it has been reinstalled and kept its id) or when it connects after
+         * having been forgotten.
+         *
+         * @param nodeId of the peer.
+         */
+        void onBootstrapNeeded(String nodeId);
+
+        /**
+         * Called when a change of another node is in the local books, once written or when
+         * skipped because already applied. Not called if the change failed.
+         *
+         * @param sourceNodeId id of the node that made the change.
+         * @param path         of the change.
+         * @param time         of the change.
+         */
+        void onApplied(String sourceNodeId, String path, long time);
+    }
+
+    public BookSyncHandler(@NonNull ContentResolver resolver, @NonNull SyncTransport transport) {
+        this(resolver, transport, null);
+    }
+
+    /**
+     * @param replayFilter used to skip the events that have already been applied, can be null.
+     */
+    public BookSyncHandler(@NonNull ContentResolver resolver, @NonNull SyncTransport transport, @Nullable ReplayFilter replayFilter) {
+        this(resolver, transport, replayFilter, null);
+    }
+
+    /**
+     * @param replayFilter used to skip the events that have already been applied, can be null.
+     * @param watermarks   updated with the sequences of the applied events, can be null.
+     */
+    public BookSyncHandler(@NonNull ContentResolver resolver, @NonNull SyncTransport transport, @Nullable ReplayFilter replayFilter,
+                           @Nullable Watermarks watermarks) {
+        mResolver = resolver;
+        mTransport = transport;
+        mReplayFilter = replayFilter;
+        mWatermarks = watermarks;
+    }
+
+    /**
+     * Allows to set the Delegate notified of the events that the handler can't complete alone.
+     *
+     * @param delegate to notify, can be null.
+     */
+    public void setDelegate(@Nullable Delegate delegate) {
+        mDelegate = delegate;
+    }
+
+    @Override
+    public void onDataChanged(String sourceNodeId, String path, byte[] data) {
+        applyChange(sourceNodeId, path, data);
+    }
+
+    /**
+     * Applies a change made by another node, delivered as a DataItem or resumed from its change log.
+     *
+     * @param sourceNodeId id of the node that made the change.
+     * @param path         of the change.
+     * @param data         content of the change.
+     * @return false if the change could not be written and has to be delivered again, true otherwise.
+     */
+    public boolean applyChange(String sourceNodeId, String path, byte[] data) {
+        // Checking if it's the same node that has fired the event
+        if (sourceNodeId.equals(getLocalNodeId())) {
+            Log.d(TAG_LOG, "Skipping Event because fired from the same receiver.");
+            return true;
+        }
+        final Event.DataApi.Item item = Event.DataApi.Item.from(path, data);
+        if (mReplayFilter != null && mReplayFilter.isReplay(path, item.time())) {
+            Log.d(TAG_LOG, "Skipping Event already applied: " + path);
+            // The source node can forget the change anyway
+            ack(sourceNodeId, path, item.time(), item.sequence());
+            onApplied(sourceNodeId, path, item.time());
+            return true;
+        }
+        if (!apply(item)) {
+            // Neither remembered nor acknowledged, so that it's applied again when redelivered
+            return false;
+        }
+        if (mReplayFilter != null) {
+            mReplayFilter.markApplied(path, item.time());
+        }
+        ack(sourceNodeId, path, item.time(), item.sequence());
+        onApplied(sourceNodeId, path, item.time());
+        return true;
+    }
+
+    private void onApplied(String sourceNodeId, String path, long time) {
+        final Delegate delegate = mDelegate;
+        if (delegate != null) {
+            delegate.onApplied(sourceNodeId, path, time);
+        }
+    }
+
+    @Override
+    public void onMessageReceived(String sourceNodeId, String path, byte[] data) {
+        if (DataItemSweeper.ACK_PATH.equals(path)) {
+            onAcked(sourceNodeId, data);
+        } else if (SnapshotService.LOADED_PATH.equals(path)) {
+            onSnapshotLoaded(sourceNodeId, data);
+        } else if (SyncResume.handles(path)) {
+            final Delegate delegate = mDelegate;
+            if (delegate != null && SyncResume.RESUME_PATH.equals(path) && SyncResume.needsBootstrap(data)) {
+                delegate.onBootstrapNeeded(sourceNodeId);
+            }
+            if (mWatermarks != null) {
+                SyncResume.onMessageReceived(mResolver, mTransport, mWatermarks, this, sourceNodeId, path, data);
+            }
+        } else if (LinkMonitor.handles(path)) {
+            LinkMonitor.get().onMessageReceived(mTransport, sourceNodeId, path, data);
+        } else {
+            Log.d(TAG_LOG, "onMessageReceived(id=" + sourceNodeId + " & path=" + path + ")");
+        }
+    }
+
+    @Override
+    public void onPeerConnected(String nodeId) {
+        Log.d(TAG_LOG, "onPeerConnected(peer=" + nodeId + ")");
+        // Measuring the link before the pending changes are delivered
+        LinkMonitor.get().probe(mTransport, nodeId);
+        if (mWatermarks != null) {
+            final Delegate delegate = mDelegate;
+            if (delegate != null && !mWatermarks.isPeer(nodeId)) {
+                // A new peer or one forgotten while away, its changes could have been swept
+                delegate.onBootstrapNeeded(nodeId);
+            }
+            // From now on its acks are required before forgetting a change
+            mWatermarks.addPeer(nodeId);
+            // Asking only for the changes missed while the peer was away
+            SyncResume.request(mTransport, mWatermarks, nodeId);
+        }
+    }
+
+    @Override
+    public void onPeerDisconnected(String nodeId) {
+        Log.d(TAG_LOG, "onPeerDisconnected(peer=" + nodeId + ")");
+        LinkMonitor.get().onPeerDisconnected(nodeId);
+    }
+
+    /**
+     * Acknowledges the changes applied since the last flush to their source nodes, with a single
+     * message per node. The source nodes can then delete the DataItem(s) that are not needed anymore
+     * and trim their change log up to the applied watermark. If the watermark is stuck behind a gap,
+     * the missing changes are asked for.
+     */
+    public void flushAcks() {
+        final Map<String, Map<String, Long>> acks;
+        synchronized (mPendingAcks) {
+            acks = new HashMap<>(mPendingAcks);
+            mPendingAcks.clear();
+        }
+        for (Map.Entry<String, Map<String, Long>> entry : acks.entrySet()) {
+            final String nodeId = entry.getKey();
+            final long sequence = mWatermarks == null ? 0L : mWatermarks.getApplied(nodeId);
+            final byte[] data = DataItemSweeper.encodeAcks(entry.getValue(), sequence);
+            if (!mTransport.sendMessage(nodeId, DataItemSweeper.ACK_PATH, data)) {
+                // Not a problem, the DataItem(s) will be acknowledged when replayed
+                Log.w(TAG_LOG, "Cannot acknowledge " + entry.getValue().size() + " change(s) to " + nodeId);
+            }
+            if (mWatermarks != null && mWatermarks.hasGaps(nodeId) && shouldRequestGaps(nodeId)) {
+                SyncResume.request(mTransport, mWatermarks, nodeId);
+            }
+        }
+    }
+
+    private boolean shouldRequestGaps(String nodeId) {
+        final long now = SystemClock.elapsedRealtime();
+        synchronized (mGapRequests) {
+            final Long last = mGapRequests.get(nodeId);
+            if (last != null && now - last < GAP_REQUEST_INTERVAL) {
+                return false;
+            }
+            mGapRequests.put(nodeId, now);
+            return true;
+        }
+    }
+
+    /**
+     * Writes the change to the local books.
+     *
+     * @return true if the change has been written (or it's older than the local books), false if it failed.
+     */
+    private boolean apply(Event.DataApi.Item item) {
+        final String[] whereArgs = {String.valueOf(item.time())};
+        final IdSet ids = item.ids();
+        if (ids == null) {
+            try {
+                mResolver.update(item.uri(), item.values(), WHERE_BEFORE, whereArgs);
+                return true;
+            } catch (SQLException e) {
+                Log.e(TAG_LOG, "Cannot apply the change to " + item.uri() + ".", e);
+                return false;
+            }
+        }
+        // A bulk change is applied to its ids as a single batch
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (String selection : ids.toSelections(BookDB.Book._ID, MAX_SELECTION_TERMS)) {
+            operations.add(ContentProviderOperation.newUpdate(item.uri()).withValues(item.values())
+                    .withSelection("(" + selection + ") AND " + WHERE_BEFORE, whereArgs).build());
+        }
+        try {
+            mResolver.applyBatch(BookDB.AUTHORITY, operations);
+            return true;
+        } catch (RemoteException | OperationApplicationException | SQLException e) {
+            Log.e(TAG_LOG, "Cannot apply the change to " + ids + ".", e);
+            return false;
+        }
+    }
+
+    /**
+     * The change log entries acknowledged by all the peers are not needed anymore.
+     */
+    private void onAcked(String nodeId, byte[] data) {
+        if (mWatermarks != null) {
+            mWatermarks.addPeer(nodeId);
+            mWatermarks.setAcked(nodeId, DataItemSweeper.sequenceOf(data));
+            SyncResume.trim(mResolver, mWatermarks);
+        }
+        final Delegate delegate = mDelegate;
+        if (delegate != null) {
+            delegate.onAcked(nodeId, data);
+        }
+    }
+
+    /**
+     * The peer has everything up to the sequence of the snapshot.
+     */
+    private void onSnapshotLoaded(String nodeId, byte[] data) {
+        if (mWatermarks != null) {
+            mWatermarks.addPeer(nodeId);
+            mWatermarks.setAcked(nodeId, SnapshotService.sequenceOf(data));
+        }
+        final Delegate delegate = mDelegate;
+        if (delegate != null) {
+            delegate.onSnapshotLoaded(nodeId);
+        }
+    }
+
+    private void ack(String sourceNodeId, String path, long time, long sequence) {
+        if (mWatermarks != null) {
+            mWatermarks.markApplied(sourceNodeId, sequence);
+        }
+        synchronized (mPendingAcks) {
+            Map<String, Long> acks = mPendingAcks.get(sourceNodeId);
+            if (acks == null) {
+                acks = new HashMap<>();
+                mPendingAcks.put(sourceNodeId, acks);
+            }
+            final Long previous = acks.get(path);
+            if (previous == null || previous < time) {
+                acks.put(path, time);
+            }
+        }
+    }
+
+    private String getLocalNodeId() {
+        // The local node never changes, so it's resolved only once
+        if (mLocalNodeId == null) {
+            mLocalNodeId = mTransport.getLocalNodeId();
+        }
+        return mLocalNodeId;
+    }
+}
@@ -16,19 +16,25 @@
 
 package com.alchemiasoft.common.sync;
 
-import android.text.TextUtils;
 import android.util.Log;
 
-import com.alchemiasoft.common.content.BookDB;
-import com.alchemiasoft.common.util.ArraysUtil;
+import com.alchemiasoft.common.R;
 import com.alchemiasoft.common.util.WearableUtil;
+import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.common.data.FreezableUtils;
+import com.google.android.gms.wearable.Asset;
+import com.google.android.gms.wearable.DataApi;
 import com.google.android.gms.wearable.DataEvent;
 import com.google.android.gms.wearable.DataEventBuffer;
+import com.google.android.gms.wearable.DataItem;
+import com.google.android.gms.wearable.DataMap;
+import com.google.android.gms.wearable.DataMapItem;
 import com.google.android.gms.wearable.MessageEvent;
 import com.google.android.gms.wearable.Node;
+import com.google.android.gms.wearable.Wearable;
 import com.google.android.gms.wearable.WearableListenerService;
 
+import java.io.File;
 import java.util.List;
 
 /**
@@ -45,9 +51,62 @@ public class BooksSyncService extends WearableListenerService {
     private static final String TAG_LOG = BooksSyncService.class.getSimpleName();
 
     /**
-     * The update has always to be performed if the content is old.
+     * File where the already applied events are remembered.
      */
-    private static final String WHERE_BEFORE = BookDB.Book.UPDATED_AT + " < ?";
+    private static final String REPLAY_FILTER_FILE = "replay_filter";
+
+    /**
+     * File where the received events are traced, if enabled.
+     */
+    public static final String TRACE_FILE = "sync.trace";
+
+    private ApiClientManager.Lease mLease;
+    private SyncTransport mTransport;
+    private ReplayFilter mReplayFilter;
+    private Watermarks mWatermarks;
+    private BookSyncHandler mHandler;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        if (getResources().getBoolean(R.bool.sync_trace_enabled)) {
+            EventTrace.startRecording(new File(getFilesDir(), TRACE_FILE));
+        }
+        mLease = ApiClientManager.get(this).acquire();
+        mReplayFilter = ReplayFilter.load(new File(getFilesDir(), REPLAY_FILTER_FILE));
+        mTransport = new WearableTransport(mLease);
+        mWatermarks = Watermarks.get(this);
+        mHandler = new BookSyncHandler(getContentResolver(), mTransport, mReplayFilter, mWatermarks);
+        mHandler.setDelegate(new BookSyncHandler.Delegate() {
+            @Override
+            public void onAcked(String nodeId, byte[] data) {
+                DataItemSweeper.onAck(BooksSyncService.this, nodeId, data);
+            }
+
+            @Override
+            public void onSnapshotLoaded(String nodeId) {
+                SnapshotService.onLoaded(BooksSyncService.this, nodeId);
+            }
+
+            @Override
+            public void onBootstrapNeeded(String nodeId) {
+                SnapshotService.reoffer(BooksSyncService.this, nodeId);
+            }
+
+            @Override
+            public void onApplied(String sourceNodeId, String path, long time) {
+            }
+        });
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        // Always release the shared client
+        mLease.release();
+        mReplayFilter.save();
+        EventTrace.flush();
+    }
 
     @Override
     public void onDataChanged(DataEventBuffer dataEvents) {
@@ -58,45 +117,90 @@ public class BooksSyncService extends WearableListenerService {
         // Running through all the events
         for (DataEvent event : events) {
             if (event.getType() == DataEvent.TYPE_CHANGED) {
-                // Checking if it's the same node that has fired the event
-                final String node = event.getDataItem().getUri().getHost();
-                final String localNode = WearableUtil.getLocalNode(this).getId();
-                if (node.equals(localNode)) {
-                    Log.d(TAG_LOG, "Skipping Event because fired from the same receiver.");
-                    continue;
-                }
-                final Event.DataApi.Item item = Event.DataApi.Item.from(event.getDataItem());
-                String where = item.where();
-                String[] whereArgs = item.whereArgs();
-                // In a real application case you can create a builder for these kind of operations,
-                // it definitely keeps the code cleaner, more readable and maintainable.
-                if (TextUtils.isEmpty(where)) {
-                    where = WHERE_BEFORE;
-                    whereArgs = new String[]{String.valueOf(item.time())};
+                final DataItem item = event.getDataItem();
+                EventTrace.record(EventTrace.KIND_DATA, item.getUri().getHost(), item.getUri().getPath(), item.getData());
+                final String target = SnapshotService.targetOf(item.getUri().getPath());
+                if (target != null) {
+                    loadSnapshot(item, target);
                 } else {
-                    where = "(" + where + ") AND " + WHERE_BEFORE;
-                    whereArgs = ArraysUtil.concatenate(whereArgs, new String[]{String.valueOf(item.time())});
+                    mHandler.onDataChanged(item.getUri().getHost(), item.getUri().getPath(), item.getData());
                 }
-                getContentResolver().update(item.uri(), item.values(), where, whereArgs);
             }
         }
+        // The service can be destroyed at any time once the events have been handled
+        mReplayFilter.save();
+        mHandler.flushAcks();
+        EventTrace.flush();
     }
 
     @Override
     public void onMessageReceived(MessageEvent messageEvent) {
         super.onMessageReceived(messageEvent);
-        Log.d(TAG_LOG, "onMessageReceived(id=" + messageEvent.getSourceNodeId() + " & path=" + messageEvent.getPath() + ")");
+        EventTrace.record(EventTrace.KIND_MESSAGE, messageEvent.getSourceNodeId(), messageEvent.getPath(), messageEvent.getData());
+        // Acks, resume and probes are served by the handler
+        mHandler.onMessageReceived(messageEvent.getSourceNodeId(), messageEvent.getPath(), messageEvent.getData());
+        // Resumed changes are remembered and acknowledged like the DataItem(s)
+        mReplayFilter.save();
+        mHandler.flushAcks();
+        EventTrace.flush();
     }
 
     @Override
     public void onPeerConnected(Node peer) {
         super.onPeerConnected(peer);
         Log.d(TAG_LOG, "onPeerConnected(peer=" + peer.getId() + "|" + peer.getDisplayName() + ")");
+        EventTrace.record(EventTrace.KIND_PEER_CONNECTED, peer.getId(), null, null);
+        NodeRegistry.get().onPeerConnected(peer.getId());
+        // Probing the link and asking for the missed changes
+        mHandler.onPeerConnected(peer.getId());
+        // A node that has never been bootstrapped receives the whole catalog at once
+        SnapshotService.offer(this, peer.getId());
+        // Changes that failed while the peer was away can be delivered now
+        OutboxService.drain(this);
     }
 
     @Override
     public void onPeerDisconnected(Node peer) {
         super.onPeerDisconnected(peer);
         Log.d(TAG_LOG, "onPeerDisconnected(peer=" + peer.getId() + "|" + peer.getDisplayName() + ")");
+        EventTrace.record(EventTrace.KIND_PEER_DISCONNECTED, peer.getId(), null, null);
+        NodeRegistry.get().onPeerDisconnected(peer.getId());
+        mHandler.onPeerDisconnected(peer.getId());
+    }
+
+    /**
+     * Replaces the local books with the snapshot, if it's addressed to this node.
+     */
+    private void loadSnapshot(DataItem item, String target) {
+        if (!mLease.awaitConnected(WearableTransport.DEFAULT_CONNECT_TIMEOUT)) {
+            return;
+        }
+        final GoogleApiClient client = mLease.client();
+        final Node localNode = WearableUtil.getLocalNode(client);
+        if (localNode == null || !target.equals(localNode.getId())) {
+            return;
+        }
+        final DataMap dataMap = DataMapItem.fromDataItem(item).getDataMap();
+        final Asset asset = dataMap.getAsset(SnapshotService.KEY_CATALOG);
+        final DataApi.GetFdForAssetResult result = Wearable.DataApi.getFdForAsset(client, asset).await();
+        if (!result.getStatus().isSuccess()) {
+            Log.e(TAG_LOG, "Cannot read the snapshot asset.");
+            return;
+        }
+        final int loaded = CatalogSnapshot.load(getContentResolver(), result.getInputStream());
+        Log.i(TAG_LOG, "Loaded " + loaded + " books from the snapshot.");
+        if (loaded >= 0) {
+            final String source = item.getUri().getHost();
+            final long sequence = dataMap.getLong(SnapshotService.KEY_SEQUENCE, 0L);
+            // The changes up to the snapshot don't have to be resumed
+            mWatermarks.markAppliedUpTo(source, sequence);
+            mWatermarks.setBootstrapped(source);
+            // The source sends it again until the load is confirmed
+            if (!SnapshotService.confirm(mTransport, source, sequence)) {
+                Log.w(TAG_LOG, "Cannot confirm the snapshot to " + source + ".");
+            }
+            // The snapshot is consumed only once
+            Wearable.DataApi.deleteDataItems(client, item.getUri()).await();
+        }
     }
 }
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2015 Simone Casagranda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alchemiasoft.common.sync;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.RemoteException;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.alchemiasoft.common.content.BookDB;
+import com.alchemiasoft.common.util.IOUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Full copy of the Book table that is used to bootstrap a newly connected node in one transfer.
+ * <p/>
+ * The rows are written in a compact binary form, followed by the CRC32 of their bytes, and the
+ * whole content is GZIP compressed. A snapshot is loaded only if the checksum matches, and a
+ * row replaces the local one only if it's newer, as the changes applied by the BookSyncHandler.
+ * <p/>
+ * Created by Simone Casagranda on 01/05/15.
+ */
+public final class CatalogSnapshot {
+
+    /**
+     * Tag used for logging.
+     */
+    private static final String TAG_LOG = CatalogSnapshot.class.getSimpleName();
+
+    private static final int MAGIC = 0x424F4F4B;
+    private static final int FORMAT_VERSION = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Columns in the order they are written.
+     */
+    private static final String[] PROJECTION = {BookDB.Book._ID, BookDB.Book.SERVER_ID, BookDB.Book.TITLE, BookDB.Book.AUTHOR,
+            BookDB.Book.SOURCE, BookDB.Book.TAG, BookDB.Book.DESCRIPTION, BookDB.Book.PAGES, BookDB.Book.NOTES,
+            BookDB.Book.UPDATED_AT, BookDB.Book.OWNED};
+    private static final String ORDER_BY = BookDB.Book._ID + " ASC";
+
+    private static final String[] PROJECTION_VERSION = {BookDB.Book._ID, BookDB.Book.UPDATED_AT};
+
+    /**
+     * A local book changed after the snapshot has been taken is kept.
+     */
+    private static final String WHERE_BEFORE = BookDB.Book.UPDATED_AT + " < ?";
+
+    private CatalogSnapshot() {
+        throw new RuntimeException("Use static methods rather than trying to instantiate this class");
+    }
+
+    /**
+     * Writes the snapshot of the current books, compressed as the links allow.
+     *
+     * @param resolver used to read the books.
+     * @return the compressed snapshot.
+     * @throws IOException if the snapshot cannot be written.
+     */
+    public static byte[] write(@NonNull ContentResolver resolver) throws IOException {
+        return write(resolver, LinkMonitor.get().getCompressionLevel());
+    }
+
+    /**
+     * Writes the snapshot of the current books.
+     *
+     * @param resolver used to read the books.
+     * @param level    of the compression, as defined by {@link java.util.zip.Deflater}.
+     * @return the compressed snapshot.
+     * @throws IOException if the snapshot cannot be written.
+     */
+    public static byte[] write(@NonNull ContentResolver resolver, final int level) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final CRC32 crc = new CRC32();
+        final GZIPOutputStream gzip = new GZIPOutputStream(bytes) {
+            {
+                def.setLevel(level);
+            }
+        };
+        final DataOutputStream out = new DataOutputStream(new CheckedOutputStream(gzip, crc));
+        final Cursor c = resolver.query(BookDB.Book.CONTENT_URI, PROJECTION, null, null, ORDER_BY);
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(c.getCount());
+            while (c.moveToNext()) {
+                out.writeLong(c.getLong(0));
+                for (int i = 1; i <= 6; i++) {
+                    writeString(out, c.isNull(i) ? null : c.getString(i));
+                }
+                out.writeInt(c.getInt(7));
+                writeString(out, c.isNull(8) ? null : c.getString(8));
+                out.writeLong(c.getLong(9));
+                out.writeBoolean(c.getInt(10) != 0);
+            }
+            out.flush();
+            // The checksum is not part of the checked content
+            new DataOutputStream(gzip).writeLong(crc.getValue());
+            gzip.finish();
+        } finally {
+            c.close();
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Merges the books of a snapshot into the local ones, in a single transaction: a missing book
+     * is inserted, an existing one is replaced only if its updated_at is older (last write wins),
+     * so a change made on this node while the snapshot was in flight is not lost. Nothing is
+     * changed if the snapshot is corrupted.
+     *
+     * @param resolver used to write the books.
+     * @param in       stream of the compressed snapshot, it's always closed.
+     * @return the number of inserted or replaced books or -1 if the snapshot cannot be loaded.
+     */
+    public static int load(@NonNull ContentResolver resolver, @NonNull InputStream in) {
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        final Map<Long, Long> local = getVersions(resolver);
+        try {
+            final CRC32 crc = new CRC32();
+            final GZIPInputStream gzip = new GZIPInputStream(in);
+            final DataInputStream data = new DataInputStream(new CheckedInputStream(gzip, crc));
+            if (data.readInt() != MAGIC || data.readInt() != FORMAT_VERSION) {
+                Log.e(TAG_LOG, "Unknown snapshot format.");
+                return -1;
+            }
+            final int count = data.readInt();
+            for (int i = 0; i < count; i++) {
+                final long id = data.readLong();
+                final ContentValues cv = new ContentValues();
+                cv.put(BookDB.Book.SERVER_ID, readString(data));
+                cv.put(BookDB.Book.TITLE, readString(data));
+                cv.put(BookDB.Book.AUTHOR, readString(data));
+                cv.put(BookDB.Book.SOURCE, readString(data));
+                cv.put(BookDB.Book.TAG, readString(data));
+                cv.put(BookDB.Book.DESCRIPTION, readString(data));
+                cv.put(BookDB.Book.PAGES, data.readInt());
+                cv.put(BookDB.Book.NOTES, readString(data));
+                cv.put(BookDB.Book.UPDATED_AT, data.readLong());
+                cv.put(BookDB.Book.OWNED, data.readBoolean());
+                final Long updatedAt = local.get(id);
+                if (updatedAt == null) {
+                    cv.put(BookDB.Book._ID, id);
+                    operations.add(ContentProviderOperation.newInsert(BookDB.Book.CONTENT_URI).withValues(cv).build());
+                } else if (updatedAt < cv.getAsLong(BookDB.Book.UPDATED_AT)) {
+                    // Checked again within the transaction, the book could change in the meantime
+                    operations.add(ContentProviderOperation.newUpdate(BookDB.Book.create(id)).withValues(cv)
+                            .withSelection(WHERE_BEFORE, new String[]{String.valueOf(cv.getAsLong(BookDB.Book.UPDATED_AT))}).build());
+                }
+            }
+            final long expected = crc.getValue();
+            if (new DataInputStream(gzip).readLong() != expected) {
+                Log.e(TAG_LOG, "Snapshot checksum mismatch.");
+                return -1;
+            }
+        } catch (IOException e) {
+            Log.e(TAG_LOG, "Cannot read the snapshot.", e);
+            return -1;
+        } finally {
+            IOUtils.closeSilently(in);
+        }
+        try {
+            resolver.applyBatch(BookDB.AUTHORITY, operations);
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(TAG_LOG, "Cannot load the snapshot.", e);
+            return -1;
+        }
+        return operations.size();
+    }
+
+    /**
+     * @return the updated_at of each local book, by id.
+     */
+    private static Map<Long, Long> getVersions(ContentResolver resolver) {
+        final Map<Long, Long> versions = new HashMap<>();
+        final Cursor c = resolver.query(BookDB.Book.CONTENT_URI, PROJECTION_VERSION, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                versions.put(c.getLong(0), c.getLong(1));
+            }
+        } finally {
+            c.close();
+        }
+        return versions;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
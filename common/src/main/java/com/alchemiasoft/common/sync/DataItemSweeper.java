@@ -0,0 +1,286 @@
+/*
+ * Copyright 2015 Simone Casagranda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alchemiasoft.common.sync;
+
+import android.app.IntentService;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.alchemiasoft.common.util.WearableUtil;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.wearable.DataApi;
+import com.google.android.gms.wearable.DataItem;
+import com.google.android.gms.wearable.DataItemBuffer;
+import com.google.android.gms.wearable.DataMap;
+import com.google.android.gms.wearable.Node;
+import com.google.android.gms.wearable.PutDataRequest;
+import com.google.android.gms.wearable.Wearable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * IntentService that deletes the DataItem(s) of this node that are not needed anymore, so that
+ * the Data Layer store doesn't keep every change ever made.
+ * <p/>
+ * The receiving nodes acknowledge the changes once they have written them, with a message that
+ * also carries the sequence of this node's change log up to which they have applied everything.
+ * A DataItem is deleted once the acked sequence of every known peer (see {@link Watermarks})
+ * covers the sequence of its content, so a peer that is away or a second wearable still finds
+ * it when it comes back. The acked sequences are persisted, so nothing is lost with the process.
+ * Only a node that is new (or has been forgotten) is bootstrapped with a {@link CatalogSnapshot}
+ * instead. Once per {@link #SAMPLE_INTERVAL} the whole store is swept, for the items whose acks
+ * came in other ways (e.g. a snapshot), and its size is sampled and kept for diagnostics.
+ * <p/>
+ * Created by Simone Casagranda on 03/05/15.
+ */
+public class DataItemSweeper extends IntentService {
+
+    /**
+     * Tag used for logging.
+     */
+    private static final String TAG_LOG = DataItemSweeper.class.getSimpleName();
+
+    /**
+     * Path of the messages used to acknowledge the applied changes.
+     */
+    public static final String ACK_PATH = "/sync/ack";
+
+    private static final String KEY_PATHS = "paths";
+    private static final String KEY_TIMES = "times";
+    private static final String KEY_SEQUENCE = "seq";
+
+    private static final String KEY_NODE_ID = "com.alchemiasoft.common.sync.NODE_ID";
+    private static final String KEY_ACKS = "com.alchemiasoft.common.sync.ACKS";
+
+    /**
+     * Store size samples, at most one per interval.
+     */
+    private static final String PREFS_NAME = "data_store";
+    private static final String KEY_SAMPLES = "samples";
+    private static final int MAX_SAMPLES = 48;
+    private static final long SAMPLE_INTERVAL = TimeUnit.HOURS.toMillis(1);
+
+    private static final long CONNECT_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+
+    /**
+     * Held while a DataItem is put or deleted, so that a newer change is never swept.
+     */
+    static final Object DATA_ITEMS_LOCK = new Object();
+
+    /**
+     * Encodes the acknowledgements of the applied changes.
+     *
+     * @param acks     latest applied time for each path.
+     * @param sequence highest applied sequence of the change log of the node, 0 if unknown.
+     * @return the payload of the ack message.
+     */
+    public static byte[] encodeAcks(@NonNull Map<String, Long> acks, long sequence) {
+        final String[] paths = new String[acks.size()];
+        final long[] times = new long[acks.size()];
+        int i = 0;
+        for (Map.Entry<String, Long> ack : acks.entrySet()) {
+            paths[i] = ack.getKey();
+            times[i++] = ack.getValue();
+        }
+        final DataMap dataMap = new DataMap();
+        dataMap.putStringArray(KEY_PATHS, paths);
+        dataMap.putLongArray(KEY_TIMES, times);
+        dataMap.putLong(KEY_SEQUENCE, sequence);
+        return dataMap.toByteArray();
+    }
+
+    /**
+     * @param data payload of an ack message.
+     * @return the sequence of this node's change log up to which the peer has applied everything.
+     */
+    public static long sequenceOf(@NonNull byte[] data) {
+        return DataMap.fromByteArray(data).getLong(KEY_SEQUENCE, 0L);
+    }
+
+    /**
+     * Handles an ack message sweeping the acknowledged DataItem(s).
+     *
+     * @param context used to start the service.
+     * @param nodeId  of the node that has sent the acks.
+     * @param data    payload of the ack message.
+     */
+    public static void onAck(@NonNull Context context, @NonNull String nodeId, @NonNull byte[] data) {
+        final Intent intent = new Intent(context, DataItemSweeper.class);
+        intent.putExtra(KEY_NODE_ID, nodeId);
+        intent.putExtra(KEY_ACKS, data);
+        context.startService(intent);
+    }
+
+    /**
+     * @param context used to access the samples.
+     * @return the store size samples as "time:items:bytes", from the oldest.
+     */
+    public static List<String> getStoreSizeHistory(@NonNull Context context) {
+        final String samples = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).getString(KEY_SAMPLES, "");
+        final List<String> history = new ArrayList<>();
+        for (String sample : TextUtils.split(samples, ",")) {
+            history.add(sample);
+        }
+        return history;
+    }
+
+    public DataItemSweeper() {
+        super(TAG_LOG);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        final String nodeId = intent.getStringExtra(KEY_NODE_ID);
+        final byte[] data = intent.getByteArrayExtra(KEY_ACKS);
+        if (nodeId == null || data == null) {
+            return;
+        }
+        final DataMap dataMap = DataMap.fromByteArray(data);
+        final String[] paths = dataMap.getStringArray(KEY_PATHS);
+        final long[] times = dataMap.getLongArray(KEY_TIMES);
+        if (paths == null || times == null || paths.length != times.length) {
+            Log.e(TAG_LOG, "Malformed ack from " + nodeId);
+            return;
+        }
+        final Watermarks watermarks = Watermarks.get(this);
+        final ApiClientManager.Lease lease = ApiClientManager.get(this).acquire();
+        try {
+            if (!lease.awaitConnected(CONNECT_TIMEOUT)) {
+                return;
+            }
+            final GoogleApiClient client = lease.client();
+            // A connected peer that hasn't been recorded yet must not be skipped
+            final List<String> connected = new WearableTransport(lease).getConnectedNodeIds();
+            if (!NodeRegistry.get().isSeeded()) {
+                Log.w(TAG_LOG, "Connected nodes unknown, not sweeping.");
+                return;
+            }
+            for (String peer : connected) {
+                watermarks.addPeer(peer);
+            }
+            final Node localNode = WearableUtil.getLocalNode(client);
+            if (localNode == null) {
+                return;
+            }
+            final Set<String> peers = watermarks.getPeers();
+            peers.remove(localNode.getId());
+            final boolean onlyPeer = peers.size() == 1 && peers.contains(nodeId);
+            final long minAcked = watermarks.getMinAcked(peers);
+            int swept = 0;
+            for (int i = 0; i < paths.length; i++) {
+                if (sweep(client, localNode.getId(), paths[i], minAcked, onlyPeer ? times[i] : 0L)) {
+                    swept++;
+                }
+            }
+            Log.d(TAG_LOG, "Swept " + swept + " of " + paths.length + " acknowledged DataItem(s).");
+            sweepStore(client, localNode.getId(), minAcked);
+        } finally {
+            lease.release();
+        }
+    }
+
+    /**
+     * Deletes the DataItem at the given path if all the known peers have acknowledged it.
+     *
+     * @param minAcked lowest sequence acked by the known peers.
+     * @param ackTime  acked time of the content, only for the items without a sequence (written
+     *                 before the change log) when the acking node is the only peer, 0 otherwise.
+     * @return true if the DataItem has been deleted.
+     */
+    private boolean sweep(GoogleApiClient client, String localNodeId, String path, long minAcked, long ackTime) {
+        final Uri uri = new Uri.Builder().scheme(PutDataRequest.WEAR_URI_SCHEME).authority(localNodeId).path(path).build();
+        synchronized (DATA_ITEMS_LOCK) {
+            final DataApi.DataItemResult result = Wearable.DataApi.getDataItem(client, uri).await();
+            final DataItem item = result.getDataItem();
+            if (!result.getStatus().isSuccess() || item == null) {
+                return false;
+            }
+            // Checking the current content, a newer change could have been put in the meantime
+            final Event.DataApi.Item content = Event.DataApi.Item.from(path, item.getData());
+            final boolean acked = content.sequence() > 0L ? content.sequence() <= minAcked : ackTime > 0L && content.time() <= ackTime;
+            return acked && Wearable.DataApi.deleteDataItems(client, uri).await().getStatus().isSuccess();
+        }
+    }
+
+    /**
+     * Sweeps every DataItem of this node covered by the acked sequences and samples the size of
+     * the store, at most once per {@link #SAMPLE_INTERVAL}.
+     */
+    private void sweepStore(GoogleApiClient client, String localNodeId, long minAcked) {
+        final List<String> history = getStoreSizeHistory(this);
+        if (!history.isEmpty() && System.currentTimeMillis() - Long.parseLong(history.get(history.size() - 1).split(":")[0]) < SAMPLE_INTERVAL) {
+            return;
+        }
+        final List<String> acked = new ArrayList<>();
+        final DataItemBuffer buffer = Wearable.DataApi.getDataItems(client).await();
+        try {
+            for (DataItem item : buffer) {
+                final String path = item.getUri().getPath();
+                if (localNodeId.equals(item.getUri().getHost()) && SnapshotService.targetOf(path) == null) {
+                    final long sequence = Event.DataApi.Item.from(path, item.getData()).sequence();
+                    if (sequence > 0L && sequence <= minAcked) {
+                        acked.add(path);
+                    }
+                }
+            }
+        } finally {
+            buffer.release();
+        }
+        int swept = 0;
+        for (String path : acked) {
+            if (sweep(client, localNodeId, path, minAcked, 0L)) {
+                swept++;
+            }
+        }
+        Log.d(TAG_LOG, "Swept " + swept + " DataItem(s) from the store.");
+        sampleStoreSize(client, localNodeId);
+    }
+
+    private void sampleStoreSize(GoogleApiClient client, String localNodeId) {
+        final SharedPreferences prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        final List<String> history = getStoreSizeHistory(this);
+        final long now = System.currentTimeMillis();
+        int items = 0;
+        long bytes = 0L;
+        final DataItemBuffer buffer = Wearable.DataApi.getDataItems(client).await();
+        try {
+            for (DataItem item : buffer) {
+                if (localNodeId.equals(item.getUri().getHost())) {
+                    items++;
+                    bytes += item.getData() == null ? 0 : item.getData().length;
+                }
+            }
+        } finally {
+            buffer.release();
+        }
+        history.add(now + ":" + items + ":" + bytes);
+        while (history.size() > MAX_SAMPLES) {
+            history.remove(0);
+        }
+        prefs.edit().putString(KEY_SAMPLES, TextUtils.join(",", history)).apply();
+        Log.i(TAG_LOG, "Data Layer store: " + items + " item(s), " + bytes + " bytes.");
+    }
+}
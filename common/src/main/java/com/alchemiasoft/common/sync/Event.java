@@ -24,23 +24,23 @@ import android.text.TextUtils;
 
 import com.alchemiasoft.common.content.BookDB;
 import com.alchemiasoft.common.util.UriUtil;
-import com.alchemiasoft.common.util.WearableUtil;
 import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.common.api.ResultCallback;
 import com.google.android.gms.wearable.DataItem;
 import com.google.android.gms.wearable.DataMap;
-import com.google.android.gms.wearable.DataMapItem;
-import com.google.android.gms.wearable.MessageApi.SendMessageResult;
 import com.google.android.gms.wearable.MessageEvent;
-import com.google.android.gms.wearable.Node;
-import com.google.android.gms.wearable.PutDataMapRequest;
-import com.google.android.gms.wearable.PutDataRequest;
-import com.google.android.gms.wearable.Wearable;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Class that allows to represent a book event.
@@ -55,10 +55,28 @@ public final class Event {
      */
     public static final class DataApi {
 
+        private static final String KEY_IDS = "ids";
+        private static final String KEY_SEQUENCE = "seq";
+
+        /**
+         * Adds the sequence of a change to its serialized content.
+         *
+         * @param data     serialized content of the change.
+         * @param sequence of the change in the change log of its node.
+         * @return the serialized content with the sequence.
+         */
+        public static byte[] withSequence(byte[] data, long sequence) {
+            final DataMap dataMap = DataMap.fromByteArray(data);
+            dataMap.putLong(KEY_SEQUENCE, sequence);
+            return dataMap.toByteArray();
+        }
+
         public static final class Builder {
 
-            private Uri mUri;
+            private final Uri mUri;
             private final ContentValues mValues;
+            private IdSet mIds;
+            private long mSequence;
 
             private Builder(Uri uri, ContentValues values) {
                 mUri = uri;
@@ -69,15 +87,41 @@ public final class Event {
                 return new Builder(uri, values);
             }
 
-            public Builder where(String where, String... args) {
-                mUri = UriUtil.withWhere(mUri, where);
-                mUri = UriUtil.withWhereArgs(mUri, args);
+            /**
+             * Restricts a bulk change to the given books. The ids are resolved by the node that
+             * made the change, so every node applies it to exactly the same rows.
+             *
+             * @param ids of the changed books.
+             * @return the Builder to allow method chaining.
+             */
+            public Builder ids(IdSet ids) {
+                mIds = ids;
+                return this;
+            }
+
+            /**
+             * Allows to set the sequence of the change in the change log of this node.
+             *
+             * @param sequence of the change.
+             * @return the Builder to allow method chaining.
+             */
+            public Builder sequence(long sequence) {
+                mSequence = sequence;
                 return this;
             }
 
-            public PutDataRequest asRequest() {
-                final PutDataMapRequest dataMapRequest = PutDataMapRequest.create(mUri.getPath());
-                final DataMap dataMap = dataMapRequest.getDataMap();
+            /**
+             * @return the path of the data item associated with the event.
+             */
+            public String path() {
+                return mUri.getPath();
+            }
+
+            /**
+             * @return the serialized content of the data item associated with the event.
+             */
+            public byte[] data() {
+                final DataMap dataMap = new DataMap();
                 if (mValues.containsKey(BookDB.Book.NOTES)) {
                     dataMap.putString(BookDB.Book.NOTES, mValues.getAsString(BookDB.Book.NOTES));
                 }
@@ -90,39 +134,57 @@ public final class Event {
                 if (mValues.containsKey(BookDB.Book.TAG)) {
                     dataMap.putString(BookDB.Book.TAG, mValues.getAsString(BookDB.Book.TAG));
                 }
-                return dataMapRequest.asPutDataRequest();
+                if (mIds != null) {
+                    dataMap.putByteArray(KEY_IDS, mIds.toByteArray());
+                }
+                if (mSequence > 0L) {
+                    dataMap.putLong(KEY_SEQUENCE, mSequence);
+                }
+                return dataMap.toByteArray();
+            }
+
+            /**
+             * Puts the data item through the given transport.
+             *
+             * @param transport used to reach the other nodes.
+             * @return true if the transport has accepted the data item, false otherwise.
+             */
+            public boolean send(SyncTransport transport) {
+                return transport.putData(path(), data());
             }
         }
 
         public static final class Item {
 
             private final DataMap mDataMap;
-            private final Uri mUri;
-            private final String mWhere;
-            private final String[] mWhereArgs;
+            private final String mPath;
+            private final IdSet mIds;
+
+            private Item(String path, byte[] data) {
+                mDataMap = DataMap.fromByteArray(data);
+                mPath = path;
+                final byte[] ids = mDataMap.getByteArray(KEY_IDS);
+                mIds = ids == null ? null : IdSet.fromByteArray(ids);
+            }
 
-            private Item(DataItem item) {
-                mDataMap = DataMapItem.fromDataItem(item).getDataMap();
-                mUri = item.getUri();
-                mWhere = UriUtil.getWhere(mUri);
-                mWhereArgs = UriUtil.getWhereArgs(mUri);
+            public static Item from(String path, byte[] data) {
+                return new Item(path, data);
             }
 
             public static Item from(DataItem item) {
-                return new Item(item);
+                return new Item(item.getUri().getPath(), item.getData());
             }
 
             public Uri uri() {
                 // Readability versus efficiency (this is a tutorial not production code)
-                return Uri.parse(ContentResolver.SCHEME_CONTENT + "://" + BookDB.AUTHORITY + mUri.getPath());
-            }
-
-            public String where() {
-                return mWhere;
+                return Uri.parse(ContentResolver.SCHEME_CONTENT + "://" + BookDB.AUTHORITY + mPath);
             }
 
-            public String[] whereArgs() {
-                return mWhereArgs;
+            /**
+             * @return the ids of the books changed by a bulk change or null for a single book.
+             */
+            public IdSet ids() {
+                return mIds;
             }
 
             public ContentValues values() {
@@ -145,6 +207,37 @@ public final class Event {
             public long time() {
                 return mDataMap.getLong(BookDB.Book.UPDATED_AT, 0L);
             }
+
+            /**
+             * @return the sequence of the change in the change log of its node or 0 if unknown.
+             */
+            public long sequence() {
+                return mDataMap.getLong(KEY_SEQUENCE, 0L);
+            }
+
+            /**
+             * Merges two changes of the same book, the newer values win over the older ones.
+             *
+             * @param older values of the previous change.
+             * @param newer values of the following change.
+             * @return the values that represent both the changes.
+             */
+            public static ContentValues merge(ContentValues older, ContentValues newer) {
+                final ContentValues merged = new ContentValues(newer);
+                if (!merged.containsKey(BookDB.Book.NOTES) && older.containsKey(BookDB.Book.NOTES)) {
+                    merged.put(BookDB.Book.NOTES, older.getAsString(BookDB.Book.NOTES));
+                }
+                if (!merged.containsKey(BookDB.Book.OWNED) && older.containsKey(BookDB.Book.OWNED)) {
+                    merged.put(BookDB.Book.OWNED, older.getAsInteger(BookDB.Book.OWNED));
+                }
+                if (!merged.containsKey(BookDB.Book.UPDATED_AT) && older.containsKey(BookDB.Book.UPDATED_AT)) {
+                    merged.put(BookDB.Book.UPDATED_AT, older.getAsLong(BookDB.Book.UPDATED_AT));
+                }
+                if (!merged.containsKey(BookDB.Book.TAG) && older.containsKey(BookDB.Book.TAG)) {
+                    merged.put(BookDB.Book.TAG, older.getAsString(BookDB.Book.TAG));
+                }
+                return merged;
+            }
         }
     }
 
@@ -162,6 +255,27 @@ public final class Event {
         private @interface Action {
         }
 
+        /**
+         * Callback notified with the outcome of a sent message.
+         */
+        public interface Callback {
+
+            /**
+             * Called once for each target node, as soon as its delivery is known.
+             *
+             * @param nodeId of the target or null if no target was available.
+             * @param sent   true if the message has been sent, false otherwise.
+             */
+            void onResult(String nodeId, boolean sent);
+
+            /**
+             * Called once after all the target nodes have been notified.
+             *
+             * @param results delivery status for each target node, empty if no target was available.
+             */
+            void onComplete(Map<String, Boolean> results);
+        }
+
         /**
          * Utility that allows to build and send a message through the WearableApi,
          * through a builder style.
@@ -170,22 +284,36 @@ public final class Event {
 
             private static final byte[] DEFAULT_DATA = new byte[0];
 
-            private static final Executor EXECUTOR = Executors.newSingleThreadExecutor();
-            private static final ResultCallback<SendMessageResult> SILENT_CALLBACK = new ResultCallback<SendMessageResult>() {
+            private static final int DEFAULT_PRIORITY = -1;
+
+            /**
+             * Threads used to send to the connected nodes in parallel, the first node is always
+             * served by the sending thread itself.
+             */
+            private static final int MULTICAST_THREADS = 3;
+            private static final ExecutorService MULTICAST_EXECUTOR = createMulticastExecutor();
+
+            private static final Callback SILENT_CALLBACK = new Callback() {
                 @Override
-                public void onResult(SendMessageResult sendMessageResult) {
+                public void onResult(String nodeId, boolean sent) {
+                }
+
+                @Override
+                public void onComplete(Map<String, Boolean> results) {
                 }
             };
 
-            private final GoogleApiClient mClient;
+            private final SyncTransport mTransport;
             private String mTarget;
             private long mBookId;
             private int mAction;
+            private long mDebounce;
+            private int mPriority = DEFAULT_PRIORITY;
 
-            private ResultCallback<SendMessageResult> mCallback;
+            private Callback mCallback;
 
-            private Sender(GoogleApiClient client) {
-                mClient = client;
+            private Sender(SyncTransport transport) {
+                mTransport = transport;
             }
 
             /**
@@ -196,7 +324,18 @@ public final class Event {
              * @return the Sender instance that supports method chaining.
              */
             public static Sender create(GoogleApiClient client, long bookId) {
-                return new Sender(client).bookId(bookId).action(OPEN);
+                return create(new WearableTransport(client), bookId);
+            }
+
+            /**
+             * Creates an instance of Sender for the given book and SyncTransport.
+             *
+             * @param transport used to send the message.
+             * @param bookId    that will be sent.
+             * @return the Sender instance that supports method chaining.
+             */
+            public static Sender create(SyncTransport transport, long bookId) {
+                return new Sender(transport).bookId(bookId).action(OPEN);
             }
 
             /**
@@ -223,6 +362,7 @@ public final class Event {
 
             /**
              * Allows to specify a particular target for the message.
+             * By default the message is sent to all the connected nodes.
              *
              * @param nodeId of the target.
              * @return the Sender to allow method chaining.
@@ -233,43 +373,129 @@ public final class Event {
             }
 
             /**
-             * Allows to set a result Callback that will be notified of the sending status.
+             * Allows to debounce the asynchronous sending: the message is sent only if no other
+             * message with the same action is sent asynchronously within the given delay.
+             * In this way only the latest message for an action is delivered.
+             *
+             * @param delayMillis to wait before sending the message.
+             * @return the Sender to allow method chaining.
+             */
+            public Sender debounce(long delayMillis) {
+                mDebounce = delayMillis;
+                return this;
+            }
+
+            /**
+             * Allows to override the priority used by {@link #asyncSend()}.
+             * By default OPEN messages, that are triggered by the user, have the highest priority.
+             *
+             * @param priority of the message.
+             * @return the Sender to allow method chaining.
+             */
+            public Sender priority(@SendScheduler.Priority int priority) {
+                mPriority = priority;
+                return this;
+            }
+
+            /**
+             * Allows to set a Callback that will be notified of the sending status.
              *
              * @param callback that has to be notified.
              * @return the Sender to allow method chaining.
              */
-            public Sender callback(ResultCallback<SendMessageResult> callback) {
+            public Sender callback(Callback callback) {
                 mCallback = callback;
                 return this;
             }
 
             /**
-             * Sends the message trying to fill missing parameters.
+             * Sends the message to the target or, if not specified, to all the connected nodes.
+             * The nodes are reached in parallel, so the latency is the one of the slowest node.
+             * Be aware that is a blocking call that should not be called from the main thread.
              */
             public void send() {
-                if (TextUtils.isEmpty(mTarget)) {
-                    final Node node = WearableUtil.getConnectedNoteAt(mClient, 0);
-                    mTarget = node == null ? null : node.getId();
-                }
-                if (TextUtils.isEmpty(mTarget)) {
+                final Callback callback = mCallback == null ? SILENT_CALLBACK : mCallback;
+                final List<String> targets = TextUtils.isEmpty(mTarget) ? mTransport.getConnectedNodeIds() : Collections.singletonList(mTarget);
+                if (targets.isEmpty()) {
+                    callback.onResult(null, false);
+                    callback.onComplete(Collections.<String, Boolean>emptyMap());
                     return;
                 }
-                if (mCallback == null) {
-                    mCallback = SILENT_CALLBACK;
+                final String path = path();
+                final Map<String, Boolean> results = new HashMap<>();
+                final CountDownLatch latch = new CountDownLatch(targets.size() - 1);
+                for (int i = 1; i < targets.size(); i++) {
+                    final String nodeId = targets.get(i);
+                    try {
+                        MULTICAST_EXECUTOR.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    deliver(nodeId, path, results, callback);
+                                } finally {
+                                    latch.countDown();
+                                }
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        // All the threads are busy, the current one takes care of the node
+                        deliver(nodeId, path, results, callback);
+                        latch.countDown();
+                    }
+                }
+                deliver(targets.get(0), path, results, callback);
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                synchronized (results) {
+                    callback.onComplete(new HashMap<>(results));
                 }
-                Uri uri = BookDB.Book.create(mBookId);
-                uri = UriUtil.withParam(uri, ACTION, String.valueOf(mAction));
-                Wearable.MessageApi.sendMessage(mClient, mTarget, uri.toString(), DEFAULT_DATA).setResultCallback(mCallback);
             }
 
+            /**
+             * Sends the message through the {@link SendScheduler}.
+             * Latest wins: a message still queued for the same action is superseded and its
+             * Callback is notified as not sent, as it happens if the message is dropped.
+             */
             public void asyncSend() {
-                EXECUTOR.execute(new Runnable() {
+                final int priority = mPriority != DEFAULT_PRIORITY ? mPriority : mAction == OPEN ? SendScheduler.PRIORITY_USER : SendScheduler.PRIORITY_BACKGROUND;
+                SendScheduler.get().submit(mAction, priority, mDebounce, new SendScheduler.Task() {
                     @Override
                     public void run() {
                         send();
                     }
+
+                    @Override
+                    public void onDropped() {
+                        final Callback callback = mCallback == null ? SILENT_CALLBACK : mCallback;
+                        callback.onResult(mTarget, false);
+                        callback.onComplete(mTarget == null ? Collections.<String, Boolean>emptyMap() : Collections.singletonMap(mTarget, false));
+                    }
                 });
             }
+
+            private void deliver(String nodeId, String path, Map<String, Boolean> results, Callback callback) {
+                final boolean sent = mTransport.sendMessage(nodeId, path, DEFAULT_DATA);
+                synchronized (results) {
+                    results.put(nodeId, sent);
+                    callback.onResult(nodeId, sent);
+                }
+            }
+
+            private static ExecutorService createMulticastExecutor() {
+                final ThreadPoolExecutor executor = new ThreadPoolExecutor(MULTICAST_THREADS, MULTICAST_THREADS, 30L, TimeUnit.SECONDS,
+                        new SynchronousQueue<Runnable>());
+                executor.allowCoreThreadTimeOut(true);
+                return executor;
+            }
+
+            private String path() {
+                Uri uri = BookDB.Book.create(mBookId);
+                uri = UriUtil.withParam(uri, ACTION, String.valueOf(mAction));
+                return uri.toString();
+            }
         }
 
         /**
@@ -279,8 +505,8 @@ public final class Event {
 
             private final Uri mUri;
 
-            private Receiver(MessageEvent event) {
-                mUri = Uri.parse(event.getPath());
+            private Receiver(String path) {
+                mUri = Uri.parse(path);
             }
 
             /**
@@ -290,7 +516,17 @@ public final class Event {
              * @return the Receiver instance for the given event.
              */
             public static Receiver from(MessageEvent event) {
-                return new Receiver(event);
+                return new Receiver(event.getPath());
+            }
+
+            /**
+             * Creates a new Receiver for the given message path.
+             *
+             * @param path of the received message.
+             * @return the Receiver instance for the given path.
+             */
+            public static Receiver from(String path) {
+                return new Receiver(path);
             }
 
             /**
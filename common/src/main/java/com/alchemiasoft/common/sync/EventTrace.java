@@ -0,0 +1,427 @@
+/*
+ * Copyright 2015 Simone Casagranda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alchemiasoft.common.sync;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.alchemiasoft.common.util.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary trace of the Wearable events received by a node, that can be replayed offline
+ * to reproduce a real traffic shape (e.g. a sync storm) against the sync handlers.
+ * <p/>
+ * A trace is a sequence of sessions, one for each time the recording is started. A session
+ * starts with its wall clock time and each record holds the milliseconds elapsed since the
+ * previous one. Node ids and paths are written once per session and then referenced by index,
+ * integers are varints, so a record is usually a handful of bytes plus its payload.
+ * <p/>
+ * A trace is capped: once its file grows past the maximum size, it's moved to the same path
+ * with a ".1" suffix (replacing the previous one) and a new file is started. At most about
+ * twice the maximum size is kept and each file can be replayed on its own.
+ * <p/>
+ * Created by Simone Casagranda on 06/05/15.
+ */
+public final class EventTrace {
+
+    /**
+     * Tag used for logging.
+     */
+    private static final String TAG_LOG = EventTrace.class.getSimpleName();
+
+    private static final int MAGIC = 0x424B5452;
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Kinds of record.
+     */
+    private static final int KIND_SESSION = 0;
+    public static final int KIND_DATA = 1;
+    public static final int KIND_MESSAGE = 2;
+    public static final int KIND_PEER_CONNECTED = 3;
+    public static final int KIND_PEER_DISCONNECTED = 4;
+    /**
+     * Message seen by a UI component rather than by the sync service.
+     */
+    public static final int KIND_UI_MESSAGE = 5;
+
+    /**
+     * Default maximum size of a trace file.
+     */
+    public static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+
+    private static final String ROTATED_SUFFIX = ".1";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static Recorder sRecorder;
+
+    private EventTrace() {
+        throw new RuntimeException("Use static methods rather than trying to instantiate this class");
+    }
+
+    /**
+     * Starts recording the events of this process in the given file, appending a new session.
+     *
+     * @param file where the trace is written.
+     * @return true if the recording has started, false otherwise.
+     */
+    public static boolean startRecording(@NonNull File file) {
+        return startRecording(file, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Starts recording the events of this process in the given file, appending a new session.
+     *
+     * @param file     where the trace is written.
+     * @param maxBytes size of the file beyond which it's rotated.
+     * @return true if the recording has started, false otherwise.
+     */
+    public static synchronized boolean startRecording(@NonNull File file, long maxBytes) {
+        if (sRecorder != null) {
+            return true;
+        }
+        try {
+            sRecorder = new Recorder(file, maxBytes);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG_LOG, "Cannot record in " + file, e);
+            return false;
+        }
+    }
+
+    /**
+     * @param file of a trace.
+     * @return the file where the older part of the trace is moved when it's rotated.
+     */
+    public static File rotatedFile(@NonNull File file) {
+        return new File(file.getPath() + ROTATED_SUFFIX);
+    }
+
+    /**
+     * Stops the current recording (if any), flushing the trace.
+     */
+    public static synchronized void stopRecording() {
+        if (sRecorder != null) {
+            sRecorder.close();
+            sRecorder = null;
+        }
+    }
+
+    /**
+     * Writes the buffered records, so that they survive the process.
+     */
+    public static synchronized void flush() {
+        if (sRecorder == null) {
+            return;
+        }
+        try {
+            sRecorder.mOut.flush();
+        } catch (IOException e) {
+            Log.e(TAG_LOG, "Cannot flush, stopping.", e);
+            stopRecording();
+        }
+    }
+
+    /**
+     * Records an event if a recording is in progress, otherwise it's a no-op.
+     *
+     * @param kind   of the event.
+     * @param nodeId that originated the event.
+     * @param path   of the event, null for the peer events.
+     * @param data   of the event, can be null.
+     */
+    public static synchronized void record(int kind, String nodeId, String path, byte[] data) {
+        if (sRecorder == null) {
+            return;
+        }
+        try {
+            sRecorder.write(kind, nodeId, path, data);
+        } catch (IOException e) {
+            Log.e(TAG_LOG, "Cannot record, stopping.", e);
+            stopRecording();
+        }
+    }
+
+    /**
+     * Writes the records of a session.
+     */
+    private static final class Recorder {
+
+        private final File mFile;
+        private final long mMaxBytes;
+        private final Map<String, Integer> mStrings = new HashMap<>();
+        private DataOutputStream mOut;
+        private long mInitialSize;
+        private long mLastTime;
+
+        private Recorder(File file, long maxBytes) throws IOException {
+            mFile = file;
+            mMaxBytes = maxBytes;
+            if (file.length() >= maxBytes) {
+                rotate();
+            }
+            open();
+        }
+
+        private void open() throws IOException {
+            mInitialSize = mFile.exists() ? mFile.length() : 0L;
+            mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile, true)));
+            if (mInitialSize == 0L) {
+                mOut.writeInt(MAGIC);
+                mOut.writeInt(FORMAT_VERSION);
+            }
+            // A new file or session doesn't know the strings written so far
+            mStrings.clear();
+            mLastTime = SystemClock.elapsedRealtime();
+            mOut.writeByte(KIND_SESSION);
+            mOut.writeLong(System.currentTimeMillis());
+        }
+
+        private void rotate() throws IOException {
+            final File rotated = rotatedFile(mFile);
+            if ((rotated.exists() && !rotated.delete()) || !mFile.renameTo(rotated)) {
+                throw new IOException("Cannot rotate " + mFile);
+            }
+        }
+
+        private void write(int kind, String nodeId, String path, byte[] data) throws IOException {
+            final long now = SystemClock.elapsedRealtime();
+            mOut.writeByte(kind);
+            writeVarint(mOut, now - mLastTime);
+            writeString(nodeId);
+            writeString(path);
+            if (data == null) {
+                writeVarint(mOut, 0L);
+            } else {
+                writeVarint(mOut, data.length + 1);
+                mOut.write(data);
+            }
+            mLastTime = now;
+            if (mInitialSize + mOut.size() >= mMaxBytes) {
+                mOut.close();
+                rotate();
+                open();
+            }
+        }
+
+        /**
+         * A string already written in the session is referenced by its index + 1, a new one is
+         * written inline after a 0. An absent string is written as index 0 with length 0.
+         */
+        private void writeString(String value) throws IOException {
+            if (value == null) {
+                writeVarint(mOut, 0L);
+                writeVarint(mOut, 0L);
+                return;
+            }
+            final Integer index = mStrings.get(value);
+            if (index != null) {
+                writeVarint(mOut, index + 1);
+                return;
+            }
+            final byte[] bytes = value.getBytes(UTF_8);
+            writeVarint(mOut, 0L);
+            writeVarint(mOut, bytes.length + 1);
+            mOut.write(bytes);
+            mStrings.put(value, mStrings.size());
+        }
+
+        private void close() {
+            IOUtils.closeSilently(mOut);
+        }
+    }
+
+    /**
+     * Feeds the events of a trace to a {@link SyncTransport.Listener}, e.g. a BookSyncHandler that
+     * also serves the messages of the sync protocols (acks, resume, probes), so that a replay
+     * reproduces their traffic through its transport.
+     */
+    public static final class Player {
+
+        private final File mFile;
+        private float mSpeed = 1f;
+        private boolean mUiMessages;
+
+        private Player(File file) {
+            mFile = file;
+        }
+
+        public static Player from(@NonNull File file) {
+            return new Player(file);
+        }
+
+        /**
+         * Allows to change the replay speed: 1 is the original one, 10 is ten times faster and
+         * 0 (or less) means as fast as possible.
+         *
+         * @param speed of the replay.
+         * @return the Player to allow method chaining.
+         */
+        public Player speed(float speed) {
+            mSpeed = speed;
+            return this;
+        }
+
+        /**
+         * Allows to replay also the messages seen by the UI components, by default only the
+         * events seen by the sync service are replayed.
+         *
+         * @param include true to replay the UI messages.
+         * @return the Player to allow method chaining.
+         */
+        public Player uiMessages(boolean include) {
+            mUiMessages = include;
+            return this;
+        }
+
+        /**
+         * Replays the trace. Be aware that is a blocking call that should not be called from the
+         * main thread.
+         *
+         * @param listener that receives the events.
+         * @return the number of replayed events or -1 if the trace cannot be read.
+         */
+        public int replay(@NonNull SyncTransport.Listener listener) {
+            DataInputStream in = null;
+            int count = 0;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+                if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                    Log.e(TAG_LOG, "Unknown trace format.");
+                    return -1;
+                }
+                final List<String> strings = new ArrayList<>();
+                long due = SystemClock.elapsedRealtime();
+                int kind;
+                while ((kind = in.read()) >= 0) {
+                    if (kind == KIND_SESSION) {
+                        in.readLong();
+                        strings.clear();
+                        continue;
+                    }
+                    final long delay = readVarint(in);
+                    final String nodeId = readString(in, strings);
+                    final String path = readString(in, strings);
+                    final int length = (int) readVarint(in);
+                    byte[] data = null;
+                    if (length > 0) {
+                        data = new byte[length - 1];
+                        in.readFully(data);
+                    }
+                    if (mSpeed > 0f) {
+                        // Waiting on a cumulative deadline, so that the pauses don't drift
+                        due += (long) (delay / mSpeed);
+                        final long wait = due - SystemClock.elapsedRealtime();
+                        if (wait > 0L) {
+                            SystemClock.sleep(wait);
+                        }
+                    }
+                    if (dispatch(listener, kind, nodeId, path, data)) {
+                        count++;
+                    }
+                }
+            } catch (EOFException e) {
+                Log.w(TAG_LOG, "Truncated trace, replayed " + count + " event(s).");
+            } catch (IOException e) {
+                Log.e(TAG_LOG, "Cannot read the trace.", e);
+                return -1;
+            } finally {
+                IOUtils.closeSilently(in);
+            }
+            return count;
+        }
+
+        private boolean dispatch(SyncTransport.Listener listener, int kind, String nodeId, String path, byte[] data) {
+            switch (kind) {
+                case KIND_DATA:
+                    listener.onDataChanged(nodeId, path, data);
+                    return true;
+                case KIND_UI_MESSAGE:
+                    if (!mUiMessages) {
+                        return false;
+                    }
+                    listener.onMessageReceived(nodeId, path, data);
+                    return true;
+                case KIND_MESSAGE:
+                    listener.onMessageReceived(nodeId, path, data);
+                    return true;
+                case KIND_PEER_CONNECTED:
+                    listener.onPeerConnected(nodeId);
+                    return true;
+                case KIND_PEER_DISCONNECTED:
+                    listener.onPeerDisconnected(nodeId);
+                    return true;
+                default:
+                    Log.w(TAG_LOG, "Skipping unknown record " + kind);
+                    return false;
+            }
+        }
+
+        private static String readString(DataInputStream in, List<String> strings) throws IOException {
+            final int index = (int) readVarint(in);
+            if (index > 0) {
+                return strings.get(index - 1);
+            }
+            final int length = (int) readVarint(in);
+            if (length == 0) {
+                return null;
+            }
+            final byte[] bytes = new byte[length - 1];
+            in.readFully(bytes);
+            final String value = new String(bytes, UTF_8);
+            strings.add(value);
+            return value;
+        }
+    }
+
+    private static void writeVarint(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0L) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long value = 0L;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
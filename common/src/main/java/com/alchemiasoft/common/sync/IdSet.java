@@ -0,0 +1,341 @@
+/*
+ * Copyright 2015 Simone Casagranda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alchemiasoft.common.sync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable set of row ids with a compact binary encoding, used to ship bulk operations.
+ * <p/>
+ * The encoding follows the Roaring bitmap layout: ids are split in chunks of 65536 values that
+ * share the same high bits and each chunk is stored as the smallest between a sorted array, a
+ * bitmap and a list of runs. A contiguous range of ids costs a few bytes whatever its size.
+ * <p/>
+ * Created by Simone Casagranda on 30/04/15.
+ */
+public final class IdSet {
+
+    private static final byte FORMAT_VERSION = 1;
+
+    /**
+     * Container types.
+     */
+    private static final byte ARRAY = 0;
+    private static final byte BITMAP = 1;
+    private static final byte RUN = 2;
+
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_MASK = 0xFFFF;
+    private static final int BITMAP_WORDS = (1 << CHUNK_BITS) / 64;
+
+    /**
+     * Maximum number of ids in a single IN (...) list.
+     */
+    private static final int MAX_IN_LIST = 500;
+
+    /**
+     * Allows to collect ids in any order.
+     */
+    public static final class Builder {
+
+        private long[] mIds = new long[16];
+        private int mSize;
+
+        private Builder() {
+        }
+
+        public static Builder create() {
+            return new Builder();
+        }
+
+        /**
+         * @param id that has to be added, it can't be negative.
+         * @return the Builder to allow method chaining.
+         */
+        public Builder add(long id) {
+            if (id < 0L || id >>> CHUNK_BITS > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Id not supported: " + id);
+            }
+            if (mSize == mIds.length) {
+                mIds = Arrays.copyOf(mIds, mSize * 2);
+            }
+            mIds[mSize++] = id;
+            return this;
+        }
+
+        public IdSet build() {
+            final long[] ids = Arrays.copyOf(mIds, mSize);
+            Arrays.sort(ids);
+            // Removing the duplicates
+            int size = 0;
+            for (int i = 0; i < ids.length; i++) {
+                if (i == 0 || ids[i] != ids[i - 1]) {
+                    ids[size++] = ids[i];
+                }
+            }
+            return new IdSet(size == ids.length ? ids : Arrays.copyOf(ids, size));
+        }
+    }
+
+    /**
+     * Sorted and distinct ids.
+     */
+    private final long[] mIds;
+
+    private IdSet(long[] ids) {
+        mIds = ids;
+    }
+
+    public int size() {
+        return mIds.length;
+    }
+
+    public boolean isEmpty() {
+        return mIds.length == 0;
+    }
+
+    public boolean contains(long id) {
+        return Arrays.binarySearch(mIds, id) >= 0;
+    }
+
+    /**
+     * @return the ids in ascending order.
+     */
+    public long[] toArray() {
+        return mIds.clone();
+    }
+
+    /**
+     * @return the ranges of consecutive ids as {first, last} pairs in ascending order.
+     */
+    public List<long[]> ranges() {
+        final List<long[]> ranges = new ArrayList<>();
+        int i = 0;
+        while (i < mIds.length) {
+            int j = i;
+            while (j + 1 < mIds.length && mIds[j + 1] == mIds[j] + 1) {
+                j++;
+            }
+            ranges.add(new long[]{mIds[i], mIds[j]});
+            i = j + 1;
+        }
+        return ranges;
+    }
+
+    /**
+     * Builds the SQL selections that match the ids of the set. Ranges become BETWEEN terms and
+     * single ids are grouped in IN lists, each selection contains at most maxTerms of them so
+     * that it's never too deep for SQLite.
+     *
+     * @param column   that contains the ids.
+     * @param maxTerms allowed in a single selection.
+     * @return the selections, that together match all the ids.
+     */
+    public List<String> toSelections(String column, int maxTerms) {
+        final List<String> selections = new ArrayList<>();
+        final StringBuilder selection = new StringBuilder();
+        final StringBuilder in = new StringBuilder();
+        int terms = 0;
+        int inSize = 0;
+        for (long[] range : ranges()) {
+            String term = null;
+            if (range[0] == range[1]) {
+                in.append(inSize++ == 0 ? "" : ",").append(range[0]);
+                if (inSize == MAX_IN_LIST) {
+                    term = column + " IN (" + in + ")";
+                    in.setLength(0);
+                    inSize = 0;
+                }
+            } else {
+                term = column + " BETWEEN " + range[0] + " AND " + range[1];
+            }
+            if (term != null) {
+                selection.append(terms++ == 0 ? "" : " OR ").append(term);
+                if (terms == maxTerms) {
+                    selections.add(selection.toString());
+                    selection.setLength(0);
+                    terms = 0;
+                }
+            }
+        }
+        if (inSize > 0) {
+            selection.append(terms++ == 0 ? "" : " OR ").append(column).append(" IN (").append(in).append(")");
+        }
+        if (terms > 0) {
+            selections.add(selection.toString());
+        }
+        return selections;
+    }
+
+    /**
+     * @return the compact binary representation of the set.
+     */
+    public byte[] toByteArray() {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(FORMAT_VERSION);
+            out.writeInt(countChunks());
+            int i = 0;
+            while (i < mIds.length) {
+                final int key = (int) (mIds[i] >>> CHUNK_BITS);
+                int end = i;
+                int runs = 0;
+                while (end < mIds.length && (int) (mIds[end] >>> CHUNK_BITS) == key) {
+                    if (end == i || mIds[end] != mIds[end - 1] + 1) {
+                        runs++;
+                    }
+                    end++;
+                }
+                out.writeInt(key);
+                writeChunk(out, i, end, runs);
+                i = end;
+            }
+            out.flush();
+        } catch (IOException e) {
+            // Never thrown while writing in memory
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes a set written with {@link #toByteArray()}.
+     *
+     * @param data the encoded set.
+     * @return the decoded IdSet.
+     * @throws IllegalArgumentException if the data is not a valid set.
+     */
+    public static IdSet fromByteArray(byte[] data) {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        final Builder builder = Builder.create();
+        try {
+            if (in.readByte() != FORMAT_VERSION) {
+                throw new IllegalArgumentException("Unknown IdSet format.");
+            }
+            final int chunks = in.readInt();
+            for (int c = 0; c < chunks; c++) {
+                final long high = ((long) in.readInt()) << CHUNK_BITS;
+                final byte type = in.readByte();
+                switch (type) {
+                    case ARRAY:
+                        final int size = in.readInt();
+                        for (int i = 0; i < size; i++) {
+                            builder.add(high | in.readUnsignedShort());
+                        }
+                        break;
+                    case BITMAP:
+                        for (int w = 0; w < BITMAP_WORDS; w++) {
+                            long word = in.readLong();
+                            while (word != 0L) {
+                                final int bit = Long.numberOfTrailingZeros(word);
+                                builder.add(high | (w * 64 + bit));
+                                word &= word - 1;
+                            }
+                        }
+                        break;
+                    case RUN:
+                        final int runs = in.readInt();
+                        for (int r = 0; r < runs; r++) {
+                            final int start = in.readUnsignedShort();
+                            final int length = in.readUnsignedShort() + 1;
+                            for (int i = 0; i < length; i++) {
+                                builder.add(high | (start + i));
+                            }
+                        }
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown IdSet container: " + type);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Truncated IdSet.", e);
+        }
+        return builder.build();
+    }
+
+    private int countChunks() {
+        int chunks = 0;
+        for (int i = 0; i < mIds.length; i++) {
+            if (i == 0 || mIds[i] >>> CHUNK_BITS != mIds[i - 1] >>> CHUNK_BITS) {
+                chunks++;
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Writes the ids in [from, to), that share the same high bits, with the smallest container.
+     */
+    private void writeChunk(DataOutputStream out, int from, int to, int runs) throws IOException {
+        final int arraySize = 2 * (to - from);
+        final int runSize = 4 * runs;
+        final int bitmapSize = 8 * BITMAP_WORDS;
+        if (runSize <= arraySize && runSize <= bitmapSize) {
+            out.writeByte(RUN);
+            out.writeInt(runs);
+            int i = from;
+            while (i < to) {
+                int j = i;
+                while (j + 1 < to && mIds[j + 1] == mIds[j] + 1) {
+                    j++;
+                }
+                out.writeShort((int) (mIds[i] & CHUNK_MASK));
+                out.writeShort(j - i);
+                i = j + 1;
+            }
+        } else if (arraySize <= bitmapSize) {
+            out.writeByte(ARRAY);
+            out.writeInt(to - from);
+            for (int i = from; i < to; i++) {
+                out.writeShort((int) (mIds[i] & CHUNK_MASK));
+            }
+        } else {
+            out.writeByte(BITMAP);
+            final long[] words = new long[BITMAP_WORDS];
+            for (int i = from; i < to; i++) {
+                final int low = (int) (mIds[i] & CHUNK_MASK);
+                words[low >>> 6] |= 1L << (low & 63);
+            }
+            for (long word : words) {
+                out.writeLong(word);
+            }
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || (o instanceof IdSet && Arrays.equals(mIds, ((IdSet) o).mIds));
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(mIds);
+    }
+
+    @Override
+    public String toString() {
+        return "IdSet{size=" + mIds.length + ", ranges=" + ranges().size() + "}";
+    }
+}
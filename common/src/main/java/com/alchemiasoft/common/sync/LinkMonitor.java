@@ -0,0 +1,270 @@
+/*
+ * Copyright 2015 Simone Casagranda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alchemiasoft.common.sync;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Process-wide estimator of the quality of the link with each connected node.
+ * <p/>
+ * Nodes are probed with ping messages that the other side echoes back untouched: the time
+ * of a small probe gives the round-trip time, the extra time of a large probe gives the
+ * effective throughput. Both are smoothed like TCP does (SRTT/RTTVAR). The sync path asks
+ * for the batch size, the flush interval and the compression level suited to the worst
+ * connected link, and the estimates are exposed for diagnostics.
+ * <p/>
+ * Created by Simone Casagranda on 04/05/15.
+ */
+public final class LinkMonitor {
+
+    /**
+     * Tag used for logging.
+     */
+    private static final String TAG_LOG = LinkMonitor.class.getSimpleName();
+
+    /**
+     * Paths of the probe messages.
+     */
+    public static final String PING_PATH = "/sync/ping";
+    public static final String ECHO_PATH = "/sync/echo";
+
+    /**
+     * Probe payloads: nanoTime of the sending (8 bytes) and padding.
+     */
+    private static final int SMALL_PROBE_SIZE = 16;
+    private static final int LARGE_PROBE_SIZE = 16 * 1024;
+
+    /**
+     * Estimates older than this are refreshed.
+     */
+    private static final long PROBE_INTERVAL = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * Thresholds (bytes per second) of a fast and of a slow link.
+     */
+    private static final long FAST_LINK = 64 * 1024;
+    private static final long SLOW_LINK = 8 * 1024;
+
+    /**
+     * Values used when the links are not known.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 50;
+    public static final long DEFAULT_FLUSH_INTERVAL = 0L;
+
+    private static final LinkMonitor INSTANCE = new LinkMonitor();
+
+    public static LinkMonitor get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Estimates of a single link.
+     */
+    public static final class Link {
+
+        /**
+         * Smoothed round-trip time and its variation in milliseconds.
+         */
+        public final double rtt;
+        public final double rttVariation;
+        /**
+         * Effective throughput in bytes per second or 0 if not measured yet.
+         */
+        public final long throughput;
+        public final int samples;
+        public final long updatedAt;
+
+        private Link(double rtt, double rttVariation, long throughput, int samples, long updatedAt) {
+            this.rtt = rtt;
+            this.rttVariation = rttVariation;
+            this.throughput = throughput;
+            this.samples = samples;
+            this.updatedAt = updatedAt;
+        }
+
+        @Override
+        public String toString() {
+            return "Link[rtt=" + Math.round(rtt) + "±" + Math.round(rttVariation) + "ms|throughput=" + throughput
+                    + "B/s|samples=" + samples + "|updatedAt=" + updatedAt + "]";
+        }
+    }
+
+    private final Map<String, Link> mLinks = new HashMap<>();
+
+    private LinkMonitor() {
+    }
+
+    /**
+     * @param path of a received message.
+     * @return true if the message belongs to the probe protocol.
+     */
+    public static boolean handles(String path) {
+        return PING_PATH.equals(path) || ECHO_PATH.equals(path);
+    }
+
+    /**
+     * Handles a message of the probe protocol: pings are echoed back, echoes update the estimates.
+     *
+     * @param transport    used to reply.
+     * @param sourceNodeId of the message.
+     * @param path         of the message.
+     * @param data         payload of the message.
+     */
+    public void onMessageReceived(@NonNull SyncTransport transport, String sourceNodeId, String path, byte[] data) {
+        if (PING_PATH.equals(path)) {
+            if (!transport.sendMessage(sourceNodeId, ECHO_PATH, data)) {
+                Log.w(TAG_LOG, "Cannot echo the ping of " + sourceNodeId);
+            }
+        } else if (ECHO_PATH.equals(path) && data != null && data.length >= 8) {
+            final long rtt = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - ByteBuffer.wrap(data).getLong());
+            onSample(sourceNodeId, rtt, data.length);
+        }
+    }
+
+    /**
+     * Probes the given nodes whose estimates are missing or stale.
+     * Be aware that is a blocking call that should not be called from the main thread.
+     *
+     * @param transport used to send the probes.
+     * @param nodeIds   that should be probed.
+     */
+    public void probeIfStale(@NonNull SyncTransport transport, @NonNull List<String> nodeIds) {
+        final long now = System.currentTimeMillis();
+        for (String nodeId : nodeIds) {
+            final Link link = getLink(nodeId);
+            if (link == null || now - link.updatedAt > PROBE_INTERVAL) {
+                probe(transport, nodeId);
+            }
+        }
+    }
+
+    /**
+     * Sends a small and a large probe to the given node, the estimates are updated when
+     * the echoes are received.
+     *
+     * @param transport used to send the probes.
+     * @param nodeId    that has to be probed.
+     */
+    public void probe(@NonNull SyncTransport transport, @NonNull String nodeId) {
+        if (!transport.sendMessage(nodeId, PING_PATH, newProbe(SMALL_PROBE_SIZE))
+                || !transport.sendMessage(nodeId, PING_PATH, newProbe(LARGE_PROBE_SIZE))) {
+            Log.w(TAG_LOG, "Cannot probe " + nodeId);
+        }
+    }
+
+    /**
+     * @param nodeId of the peer.
+     * @return the estimates of the link with the given node or null if it has never been probed.
+     */
+    public synchronized Link getLink(String nodeId) {
+        return mLinks.get(nodeId);
+    }
+
+    /**
+     * @return the estimates of all the probed links, for diagnostics.
+     */
+    public synchronized Map<String, Link> getLinks() {
+        return new HashMap<>(mLinks);
+    }
+
+    public synchronized void onPeerDisconnected(String nodeId) {
+        mLinks.remove(nodeId);
+    }
+
+    /**
+     * @return how many changes should be delivered in a single batch.
+     */
+    public int getBatchSize() {
+        final long throughput = worstThroughput();
+        if (throughput == 0L) {
+            return DEFAULT_BATCH_SIZE;
+        }
+        return throughput >= FAST_LINK ? 2 * DEFAULT_BATCH_SIZE : throughput >= SLOW_LINK ? DEFAULT_BATCH_SIZE : DEFAULT_BATCH_SIZE / 5;
+    }
+
+    /**
+     * @return the pause in milliseconds between two batches, so that a slow link is not flooded.
+     */
+    public long getFlushInterval() {
+        final long throughput = worstThroughput();
+        if (throughput == 0L || throughput >= FAST_LINK) {
+            return DEFAULT_FLUSH_INTERVAL;
+        }
+        return throughput >= SLOW_LINK ? 250L : 1000L;
+    }
+
+    /**
+     * @return the Deflater level for the payloads: on a slow link CPU time is cheaper than bytes.
+     */
+    public int getCompressionLevel() {
+        final long throughput = worstThroughput();
+        if (throughput == 0L) {
+            return Deflater.DEFAULT_COMPRESSION;
+        }
+        return throughput >= FAST_LINK ? Deflater.BEST_SPEED : throughput >= SLOW_LINK ? Deflater.DEFAULT_COMPRESSION : Deflater.BEST_COMPRESSION;
+    }
+
+    private synchronized void onSample(String nodeId, long rtt, int size) {
+        final Link link = mLinks.get(nodeId);
+        final long now = System.currentTimeMillis();
+        if (link == null) {
+            final long throughput = size > SMALL_PROBE_SIZE ? throughput(size, rtt, 0d) : 0L;
+            mLinks.put(nodeId, new Link(rtt, rtt / 2d, throughput, 1, now));
+            return;
+        }
+        if (size > SMALL_PROBE_SIZE) {
+            // The RTT of a small probe is the fixed cost, the rest is due to the bytes
+            final long sample = throughput(size, rtt, link.rtt);
+            final long throughput = link.throughput == 0L ? sample : (3 * link.throughput + sample) / 4;
+            mLinks.put(nodeId, new Link(link.rtt, link.rttVariation, throughput, link.samples + 1, now));
+        } else {
+            final double variation = 0.75d * link.rttVariation + 0.25d * Math.abs(link.rtt - rtt);
+            final double smoothed = 0.875d * link.rtt + 0.125d * rtt;
+            mLinks.put(nodeId, new Link(smoothed, variation, link.throughput, link.samples + 1, now));
+        }
+        Log.d(TAG_LOG, nodeId + " -> " + mLinks.get(nodeId));
+    }
+
+    private synchronized long worstThroughput() {
+        long worst = 0L;
+        for (String nodeId : NodeRegistry.get().getConnectedNodeIds()) {
+            final Link link = mLinks.get(nodeId);
+            if (link != null && link.throughput > 0L && (worst == 0L || link.throughput < worst)) {
+                worst = link.throughput;
+            }
+        }
+        return worst;
+    }
+
+    private static long throughput(int size, long rtt, double baseRtt) {
+        // The probe travels in both the directions
+        final double millis = Math.max(1d, rtt - baseRtt);
+        return (long) (2d * size * 1000d / millis);
+    }
+
+    private static byte[] newProbe(int size) {
+        return ByteBuffer.allocate(size).putLong(System.nanoTime()).array();
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright 2015 Simone Casagranda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alchemiasoft.common.sync;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process SyncTransport that connects two endpoints through a simulated link.
+ * <p/>
+ * The link can be configured with latency, bandwidth and loss. Data items behave like the ones of
+ * the Data Layer: they are retransmitted when lost and queued while the peer is disconnected.
+ * Messages are fire and forget: they are dropped when lost or when the peer is not connected.
+ * The transport itself only depends on the JDK, but the BookSyncHandler at its ends needs a
+ * ContentResolver and the Play Services DataMap, so two-node sync runs as an instrumentation test
+ * (see SyncConvergenceBenchmark) rather than in a plain JVM.
+ * <p/>
+ * Created by Simone Casagranda on 20/04/15.
+ */
+public class LoopbackTransport implements SyncTransport {
+
+    /**
+     * Maximum number of retransmissions of a lost data item.
+     */
+    private static final int MAX_RETRANSMISSIONS = 16;
+
+    /**
+     * Configuration of the simulated link.
+     */
+    public static final class Link {
+
+        private long mLatencyMillis;
+        private long mBytesPerSecond;
+        private float mLossRate;
+        private long mSeed = System.nanoTime();
+
+        private Link() {
+        }
+
+        public static Link create() {
+            return new Link();
+        }
+
+        /**
+         * @param millis one way latency of the link.
+         * @return the Link to allow method chaining.
+         */
+        public Link latency(long millis) {
+            mLatencyMillis = millis;
+            return this;
+        }
+
+        /**
+         * @param bytesPerSecond available in each direction, 0 means unlimited.
+         * @return the Link to allow method chaining.
+         */
+        public Link bandwidth(long bytesPerSecond) {
+            mBytesPerSecond = bytesPerSecond;
+            return this;
+        }
+
+        /**
+         * @param rate probability in [0, 1) that a transmission is lost.
+         * @return the Link to allow method chaining.
+         */
+        public Link loss(float rate) {
+            if (rate < 0f || rate >= 1f) {
+                throw new IllegalArgumentException("Loss rate must be in [0, 1) but was " + rate);
+            }
+            mLossRate = rate;
+            return this;
+        }
+
+        /**
+         * @param seed used to decide which transmissions are lost.
+         * @return the Link to allow method chaining.
+         */
+        public Link seed(long seed) {
+            mSeed = seed;
+            return this;
+        }
+    }
+
+    /**
+     * Counters for the traffic sent by an endpoint.
+     */
+    public static final class Stats {
+
+        private final AtomicLong mBytes = new AtomicLong();
+        private final AtomicLong mDataItems = new AtomicLong();
+        private final AtomicLong mMessages = new AtomicLong();
+        private final AtomicLong mLost = new AtomicLong();
+
+        /**
+         * @return bytes put on the wire, retransmissions included.
+         */
+        public long bytes() {
+            return mBytes.get();
+        }
+
+        public long dataItems() {
+            return mDataItems.get();
+        }
+
+        public long messages() {
+            return mMessages.get();
+        }
+
+        /**
+         * @return number of transmissions lost on the link.
+         */
+        public long lost() {
+            return mLost.get();
+        }
+
+        @Override
+        public String toString() {
+            return "Stats(bytes=" + bytes() + ", dataItems=" + dataItems() + ", messages=" + messages() + ", lost=" + lost() + ")";
+        }
+    }
+
+    /**
+     * Creates two endpoints connected to each other.
+     *
+     * @param firstNodeId  id of the first node.
+     * @param secondNodeId id of the second node.
+     * @param link         configuration, shared by both directions.
+     * @return an array containing the two connected endpoints.
+     */
+    public static LoopbackTransport[] pair(String firstNodeId, String secondNodeId, Link link) {
+        final Random random = new Random(link.mSeed);
+        final LoopbackTransport first = new LoopbackTransport(firstNodeId, link, random);
+        final LoopbackTransport second = new LoopbackTransport(secondNodeId, link, random);
+        first.mPeer = second;
+        second.mPeer = first;
+        return new LoopbackTransport[]{first, second};
+    }
+
+    private final String mNodeId;
+    private final Link mLink;
+    private final Random mRandom;
+    private final Stats mStats = new Stats();
+    private final ScheduledExecutorService mInbound = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * Data items put while disconnected, they are delivered on reconnection (latest wins).
+     */
+    private final Map<String, byte[]> mPending = new LinkedHashMap<>();
+
+    private LoopbackTransport mPeer;
+    private volatile Listener mListener;
+    private boolean mConnected = true;
+
+    /**
+     * Instant (in nanoseconds) when the outgoing direction of the link is free again.
+     */
+    private long mLinkFreeAt;
+
+    private LoopbackTransport(String nodeId, Link link, Random random) {
+        mNodeId = nodeId;
+        mLink = link;
+        mRandom = random;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public Stats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Connects or disconnects the link, notifying both endpoints.
+     *
+     * @param connected true to bring the link up, false to bring it down.
+     */
+    public void setConnected(boolean connected) {
+        synchronized (this) {
+            if (mConnected == connected) {
+                return;
+            }
+            mConnected = connected;
+        }
+        mPeer.setLinkState(connected);
+        deliverPeerState(this, mPeer.mNodeId, connected);
+        deliverPeerState(mPeer, mNodeId, connected);
+        if (connected) {
+            flushPending();
+            mPeer.flushPending();
+        }
+    }
+
+    private synchronized void setLinkState(boolean connected) {
+        mConnected = connected;
+    }
+
+    private void flushPending() {
+        final Map<String, byte[]> pending;
+        synchronized (this) {
+            pending = new LinkedHashMap<>(mPending);
+            mPending.clear();
+        }
+        for (Map.Entry<String, byte[]> entry : pending.entrySet()) {
+            putData(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public synchronized boolean isConnected() {
+        return mConnected;
+    }
+
+    /**
+     * Releases the threads used by this endpoint.
+     */
+    public void close() {
+        mInbound.shutdownNow();
+    }
+
+    @Override
+    public String getLocalNodeId() {
+        return mNodeId;
+    }
+
+    @Override
+    public List<String> getConnectedNodeIds() {
+        return isConnected() ? Collections.singletonList(mPeer.mNodeId) : new ArrayList<String>();
+    }
+
+    @Override
+    public boolean putData(final String path, final byte[] data) {
+        synchronized (this) {
+            if (!mConnected) {
+                mPending.put(path, data);
+                return true;
+            }
+        }
+        mStats.mDataItems.incrementAndGet();
+        long delay = transmit(data.length);
+        int attempts = 0;
+        while (isLost() && attempts++ < MAX_RETRANSMISSIONS) {
+            // The Data Layer is reliable: a lost item is sent again after a round trip
+            mStats.mLost.incrementAndGet();
+            delay += 2 * mLink.mLatencyMillis + transmit(data.length);
+        }
+        final LoopbackTransport peer = mPeer;
+        peer.mInbound.schedule(new Runnable() {
+            @Override
+            public void run() {
+                final Listener listener = peer.mListener;
+                if (listener != null) {
+                    listener.onDataChanged(mNodeId, path, data);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    @Override
+    public boolean sendMessage(String nodeId, final String path, final byte[] data) {
+        if (!isConnected() || !mPeer.mNodeId.equals(nodeId)) {
+            return false;
+        }
+        mStats.mMessages.incrementAndGet();
+        final long delay = transmit(data.length);
+        if (isLost()) {
+            mStats.mLost.incrementAndGet();
+            return true;
+        }
+        final LoopbackTransport peer = mPeer;
+        peer.mInbound.schedule(new Runnable() {
+            @Override
+            public void run() {
+                final Listener listener = peer.mListener;
+                if (listener != null) {
+                    listener.onMessageReceived(mNodeId, path, data);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Reserves the outgoing link for the given amount of bytes.
+     *
+     * @param bytes that have to be transmitted.
+     * @return the delay in milliseconds after which the bytes are received by the peer.
+     */
+    private synchronized long transmit(int bytes) {
+        mStats.mBytes.addAndGet(bytes);
+        final long now = System.nanoTime();
+        final long start = Math.max(now, mLinkFreeAt);
+        final long transmission = mLink.mBytesPerSecond > 0 ? bytes * TimeUnit.SECONDS.toNanos(1) / mLink.mBytesPerSecond : 0L;
+        mLinkFreeAt = start + transmission;
+        return TimeUnit.NANOSECONDS.toMillis(mLinkFreeAt - now) + mLink.mLatencyMillis;
+    }
+
+    private boolean isLost() {
+        if (mLink.mLossRate <= 0f) {
+            return false;
+        }
+        synchronized (mRandom) {
+            return mRandom.nextFloat() < mLink.mLossRate;
+        }
+    }
+
+    private static void deliverPeerState(final LoopbackTransport endpoint, final String nodeId, final boolean connected) {
+        endpoint.mInbound.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Listener listener = endpoint.mListener;
+                if (listener == null) {
+                    return;
+                }
+                if (connected) {
+                    listener.onPeerConnected(nodeId);
+                } else {
+                    listener.onPeerDisconnected(nodeId);
+                }
+            }
+        });
+    }
+}
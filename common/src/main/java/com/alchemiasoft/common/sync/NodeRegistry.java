@@ -0,0 +1,105 @@
+/*
+ * Copyright 2015 Simone Casagranda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alchemiasoft.common.sync;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide registry of the connected Wearable nodes.
+ * <p/>
+ * It's seeded with a NodeApi query and then kept up to date through the peer callbacks
+ * received by the BooksSyncService, so that lookups are answered from memory. The callbacks can
+ * be missed (e.g. while the process is dead), so an empty or old seed is queried again.
+ * <p/>
+ * Created by Simone Casagranda on 27/04/15.
+ */
+public final class NodeRegistry {
+
+    private static final NodeRegistry INSTANCE = new NodeRegistry();
+
+    /**
+     * Time after which the seed is not trusted anymore.
+     */
+    private static final long SEED_TTL = TimeUnit.MINUTES.toMillis(5);
+
+    public static NodeRegistry get() {
+        return INSTANCE;
+    }
+
+    private final Set<String> mNodes = new LinkedHashSet<>();
+    private boolean mSeeded;
+    private long mSeededAt;
+
+    private NodeRegistry() {
+    }
+
+    /**
+     * @return true if the registry knows the connected nodes, false if it has to be seeded.
+     */
+    public synchronized boolean isSeeded() {
+        return mSeeded;
+    }
+
+    /**
+     * @return true if the registry has to be seeded again: never seeded, no known nodes or a seed
+     * older than {@link #SEED_TTL}.
+     */
+    public synchronized boolean needsSeed() {
+        return !mSeeded || mNodes.isEmpty() || SystemClock.elapsedRealtime() - mSeededAt > SEED_TTL;
+    }
+
+    /**
+     * Replaces the known nodes with the given ones.
+     *
+     * @param nodeIds currently connected.
+     */
+    public synchronized void seed(List<String> nodeIds) {
+        mNodes.clear();
+        mNodes.addAll(nodeIds);
+        mSeeded = true;
+        mSeededAt = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Forgets the known nodes, the next lookup will query them again.
+     */
+    public synchronized void invalidate() {
+        mNodes.clear();
+        mSeeded = false;
+    }
+
+    public synchronized void onPeerConnected(String nodeId) {
+        mNodes.add(nodeId);
+    }
+
+    public synchronized void onPeerDisconnected(String nodeId) {
+        mNodes.remove(nodeId);
+    }
+
+    /**
+     * @return a snapshot of the connected nodes.
+     */
+    public synchronized List<String> getConnectedNodeIds() {
+        return new ArrayList<>(mNodes);
+    }
+}
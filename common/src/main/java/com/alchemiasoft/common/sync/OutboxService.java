@@ -0,0 +1,188 @@
+/*
+ * Copyright 2015 Simone Casagranda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alchemiasoft.common.sync;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.alchemiasoft.common.content.BookDB;
+import com.alchemiasoft.common.util.AlarmUtil;
+import com.alchemiasoft.common.util.UriUtil;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * IntentService that delivers the changes stored in the outbox to the other nodes.
+ * <p/>
+ * Entries that cannot be delivered are retried with an exponential backoff, an alarm wakes the
+ * service up when the first of them is due. The size of the batches and the pause between them
+ * depend on the quality of the links measured by the {@link LinkMonitor}.
+ * <p/>
+ * Created by Simone Casagranda on 24/04/15.
+ */
+public class OutboxService extends IntentService {
+
+    /**
+     * Tag used for logging.
+     */
+    private static final String TAG_LOG = OutboxService.class.getSimpleName();
+
+    /**
+     * Backoff bounds in milliseconds.
+     */
+    private static final long MIN_BACKOFF = TimeUnit.SECONDS.toMillis(5);
+    private static final long MAX_BACKOFF = TimeUnit.MINUTES.toMillis(15);
+
+    /**
+     * Query params.
+     */
+    private static final String[] PROJECTION = {BookDB.Outbox._ID, BookDB.Outbox.PATH, BookDB.Outbox.DATA, BookDB.Outbox.VERSION, BookDB.Outbox.ATTEMPTS};
+    private static final String[] PROJECTION_NEXT = {"MIN(" + BookDB.Outbox.NEXT_ATTEMPT_AT + ")"};
+    private static final String WHERE_DUE = BookDB.Outbox.NEXT_ATTEMPT_AT + " <= ?";
+    private static final String WHERE_VERSION = BookDB.Outbox.VERSION + " = ?";
+    private static final String ORDER_BY = BookDB.Outbox._ID + " ASC";
+
+    /**
+     * Asks the service to deliver the pending changes.
+     *
+     * @param context used to start the service.
+     */
+    public static void drain(Context context) {
+        context.startService(new Intent(context, OutboxService.class));
+    }
+
+    private ApiClientManager.Lease mLease;
+    private SyncTransport mTransport;
+
+    public OutboxService() {
+        super(TAG_LOG);
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        final ApiClientManager manager = ApiClientManager.get(this);
+        if (manager.isAvailable()) {
+            mLease = manager.acquire();
+            mTransport = new WearableTransport(mLease);
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        // Always release the shared client
+        if (mLease != null) {
+            mLease.release();
+        }
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        if (mTransport == null) {
+            Log.e(TAG_LOG, "GoogleApiClient not available.");
+            return;
+        }
+        scheduleNextAttempt(deliver(getContentResolver(), mTransport));
+    }
+
+    /**
+     * Delivers the entries of the outbox that are due, in batches sized after the links.
+     *
+     * @param cr        used to access the outbox.
+     * @param transport used to deliver the changes.
+     * @return time before which the transport shouldn't be used again, 0 if nothing failed.
+     */
+    static long deliver(ContentResolver cr, SyncTransport transport) {
+        final LinkMonitor monitor = LinkMonitor.get();
+        // The estimates are used starting from the next batch
+        monitor.probeIfStale(transport, transport.getConnectedNodeIds());
+        long notBefore = 0L;
+        boolean more = true;
+        while (more) {
+            final long now = System.currentTimeMillis();
+            final int batchSize = monitor.getBatchSize();
+            final Cursor c = cr.query(UriUtil.withLimit(BookDB.Outbox.CONTENT_URI, batchSize), PROJECTION, WHERE_DUE, new String[]{String.valueOf(now)}, ORDER_BY);
+            try {
+                more = c.getCount() == batchSize;
+                while (c.moveToNext()) {
+                    final long id = c.getLong(0);
+                    final String version = String.valueOf(c.getInt(3));
+                    final boolean put;
+                    synchronized (DataItemSweeper.DATA_ITEMS_LOCK) {
+                        put = transport.putData(c.getString(1), c.getBlob(2));
+                    }
+                    if (put) {
+                        // The entry could have been coalesced with a newer change in the meantime
+                        cr.delete(BookDB.Outbox.create(id), WHERE_VERSION, new String[]{version});
+                    } else {
+                        final int attempts = c.getInt(4) + 1;
+                        final ContentValues cv = new ContentValues();
+                        cv.put(BookDB.Outbox.ATTEMPTS, attempts);
+                        notBefore = now + backoff(attempts);
+                        cv.put(BookDB.Outbox.NEXT_ATTEMPT_AT, notBefore);
+                        cr.update(BookDB.Outbox.create(id), cv, WHERE_VERSION, new String[]{version});
+                        Log.w(TAG_LOG, "Cannot deliver " + c.getString(1) + " (attempt " + attempts + ").");
+                        // The transport is not available, no reason to try with the other entries
+                        more = false;
+                        break;
+                    }
+                }
+            } finally {
+                c.close();
+            }
+            final long interval = monitor.getFlushInterval();
+            if (more && interval > 0L) {
+                // Leaving room on a slow link for the messages triggered by the user
+                SystemClock.sleep(interval);
+            }
+        }
+        return notBefore;
+    }
+
+    /**
+     * Schedules the next run for the first entry that is due.
+     *
+     * @param notBefore time before which the transport shouldn't be used again.
+     */
+    private void scheduleNextAttempt(long notBefore) {
+        final Cursor c = getContentResolver().query(BookDB.Outbox.CONTENT_URI, PROJECTION_NEXT, null, null, null);
+        try {
+            if (c.moveToFirst() && !c.isNull(0)) {
+                final long at = Math.max(c.getLong(0), notBefore);
+                Log.d(TAG_LOG, "Next outbox delivery in " + (at - System.currentTimeMillis()) + " ms.");
+                final PendingIntent pendingIntent = PendingIntent.getService(this, 0, new Intent(this, OutboxService.class), PendingIntent.FLAG_UPDATE_CURRENT);
+                AlarmUtil.getAlarmManager(this).set(AlarmManager.RTC, at, pendingIntent);
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private static long backoff(int attempts) {
+        final long backoff = MIN_BACKOFF << Math.min(attempts - 1, 16);
+        return Math.min(backoff, MAX_BACKOFF);
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2015 Simone Casagranda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alchemiasoft.common.sync;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.alchemiasoft.common.util.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Remembers the events that have already been applied, so that the ones re-delivered by the
+ * Data Layer after a reconnection are skipped before any database work.
+ * <p/>
+ * Events are keyed by (path, time). A rotating Bloom filter answers the common case, an event
+ * that has never been seen, without further work. A positive answer is confirmed against an
+ * exact window of the most recent events, so a false positive never causes an event to be
+ * skipped. Events older than the window are applied again, which is harmless because the
+ * updates are guarded by their time. Both the structures can be persisted in a file.
+ * <p/>
+ * Created by Simone Casagranda on 02/05/15.
+ */
+public final class ReplayFilter {
+
+    /**
+     * Tag used for logging.
+     */
+    private static final String TAG_LOG = ReplayFilter.class.getSimpleName();
+
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Bloom filter params: 64 Kbit per generation and 5 hashes give a false positive rate
+     * of about 0.15% with a full generation.
+     */
+    private static final int BLOOM_BITS = 1 << 16;
+    private static final int BLOOM_WORDS = BLOOM_BITS / 64;
+    private static final int BLOOM_HASHES = 5;
+    private static final int GENERATION_CAPACITY = 4096;
+
+    /**
+     * Size of the exact window.
+     */
+    private static final int WINDOW_SIZE = 2048;
+
+    private final File mFile;
+
+    private long[] mCurrent = new long[BLOOM_WORDS];
+    private long[] mPrevious = new long[BLOOM_WORDS];
+    private int mCurrentCount;
+
+    /**
+     * Fingerprints of the most recent events, in insertion order.
+     */
+    private final LinkedHashSet<Long> mWindow = new LinkedHashSet<>();
+
+    private boolean mDirty;
+
+    private ReplayFilter(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Creates a filter restoring the state saved in the given file, if any.
+     *
+     * @param file where the state is persisted.
+     * @return the ReplayFilter instance.
+     */
+    public static ReplayFilter load(@NonNull File file) {
+        final ReplayFilter filter = new ReplayFilter(file);
+        if (!file.exists()) {
+            return filter;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FORMAT_VERSION) {
+                return filter;
+            }
+            filter.mCurrentCount = in.readInt();
+            for (int i = 0; i < BLOOM_WORDS; i++) {
+                filter.mCurrent[i] = in.readLong();
+            }
+            for (int i = 0; i < BLOOM_WORDS; i++) {
+                filter.mPrevious[i] = in.readLong();
+            }
+            final int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                filter.mWindow.add(in.readLong());
+            }
+        } catch (IOException e) {
+            Log.w(TAG_LOG, "Cannot restore the replay filter, starting from scratch.", e);
+            return new ReplayFilter(file);
+        } finally {
+            IOUtils.closeSilently(in);
+        }
+        return filter;
+    }
+
+    /**
+     * @param path of the event.
+     * @param time of the event.
+     * @return true if the event has certainly been applied already, false otherwise.
+     */
+    public synchronized boolean isReplay(String path, long time) {
+        final long hash = hash(path, time);
+        // The exact window is looked up only when the Bloom filter has seen the event
+        return (mightContain(mCurrent, hash) || mightContain(mPrevious, hash)) && mWindow.contains(hash);
+    }
+
+    /**
+     * Remembers that the event has been applied.
+     *
+     * @param path of the event.
+     * @param time of the event.
+     */
+    public synchronized void markApplied(String path, long time) {
+        final long hash = hash(path, time);
+        if (mCurrentCount == GENERATION_CAPACITY) {
+            // Rotating: the oldest generation is forgotten
+            final long[] recycled = mPrevious;
+            mPrevious = mCurrent;
+            mCurrent = recycled;
+            Arrays.fill(mCurrent, 0L);
+            mCurrentCount = 0;
+        }
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            final int bit = ((h1 + i * h2) & 0x7FFFFFFF) % BLOOM_BITS;
+            mCurrent[bit >>> 6] |= 1L << (bit & 63);
+        }
+        mCurrentCount++;
+        mWindow.remove(hash);
+        mWindow.add(hash);
+        if (mWindow.size() > WINDOW_SIZE) {
+            final Iterator<Long> it = mWindow.iterator();
+            it.next();
+            it.remove();
+        }
+        mDirty = true;
+    }
+
+    /**
+     * Persists the state, if it has changed since the last time.
+     */
+    public synchronized void save() {
+        if (!mDirty) {
+            return;
+        }
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(mCurrentCount);
+            for (long word : mCurrent) {
+                out.writeLong(word);
+            }
+            for (long word : mPrevious) {
+                out.writeLong(word);
+            }
+            out.writeInt(mWindow.size());
+            for (Long hash : mWindow) {
+                out.writeLong(hash);
+            }
+            out.close();
+            out = null;
+            // Replacing the old state only with a complete one
+            if (tmp.renameTo(mFile)) {
+                mDirty = false;
+            } else {
+                Log.e(TAG_LOG, "Cannot replace " + mFile);
+            }
+        } catch (IOException e) {
+            Log.e(TAG_LOG, "Cannot save the replay filter.", e);
+        } finally {
+            IOUtils.closeSilently(out);
+        }
+    }
+
+    private static boolean mightContain(long[] bits, long hash) {
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            final int bit = ((h1 + i * h2) & 0x7FFFFFFF) % BLOOM_BITS;
+            if ((bits[bit >>> 6] & (1L << (bit & 63))) == 0L) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 64 bit FNV-1a of the key, used both as fingerprint and to derive the Bloom hashes.
+     */
+    private static long hash(String path, long time) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < path.length(); i++) {
+            hash ^= path.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        for (int i = 0; i < 8; i++) {
+            hash ^= (time >>> (i * 8)) & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
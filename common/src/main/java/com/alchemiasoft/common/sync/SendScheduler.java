@@ -0,0 +1,348 @@
+/*
+ * Copyright 2015 Simone Casagranda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alchemiasoft.common.sync;
+
+import android.os.SystemClock;
+import android.support.annotation.IntDef;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded and prioritized scheduler used to send the messages in background.
+ * <p/>
+ * Tasks are executed one at a time, the highest priority first. A task submitted with the
+ * key of a queued one replaces it (latest wins), when the queue is full the oldest task with
+ * the lowest priority is dropped and tasks waiting for more than the max age are expired.
+ * <p/>
+ * Created by Simone Casagranda on 29/04/15.
+ */
+public final class SendScheduler {
+
+    /**
+     * Tag used for logging.
+     */
+    private static final String TAG_LOG = SendScheduler.class.getSimpleName();
+
+    public static final int PRIORITY_BACKGROUND = 0;
+    public static final int PRIORITY_USER = 1;
+
+    @IntDef({PRIORITY_BACKGROUND, PRIORITY_USER})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Priority {
+    }
+
+    /**
+     * Default bounds of the queue.
+     */
+    public static final int DEFAULT_CAPACITY = 32;
+    public static final long DEFAULT_MAX_AGE = TimeUnit.SECONDS.toMillis(30);
+
+    private static final SendScheduler INSTANCE = new SendScheduler(DEFAULT_CAPACITY, DEFAULT_MAX_AGE);
+
+    public static SendScheduler get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Work that can be submitted to the scheduler.
+     */
+    public interface Task {
+
+        void run();
+
+        /**
+         * Called instead of {@link #run()} when the task is superseded, dropped or expired.
+         */
+        void onDropped();
+    }
+
+    /**
+     * Snapshot of the scheduler metrics.
+     */
+    public static final class Metrics {
+
+        private final int mDepth;
+        private final int mMaxDepth;
+        private final long mSubmitted;
+        private final long mSent;
+        private final long mMerged;
+        private final long mDropped;
+        private final long mExpired;
+        private final long mAverageLatency;
+        private final long mMaxLatency;
+
+        private Metrics(SendScheduler scheduler) {
+            mDepth = scheduler.mQueue.size();
+            mMaxDepth = scheduler.mMaxDepth;
+            mSubmitted = scheduler.mSubmitted;
+            mSent = scheduler.mSent;
+            mMerged = scheduler.mMerged;
+            mDropped = scheduler.mDropped;
+            mExpired = scheduler.mExpired;
+            mAverageLatency = scheduler.mSent == 0 ? 0L : scheduler.mTotalLatency / scheduler.mSent;
+            mMaxLatency = scheduler.mMaxLatency;
+        }
+
+        /**
+         * @return the number of tasks currently queued.
+         */
+        public int depth() {
+            return mDepth;
+        }
+
+        /**
+         * @return the highest number of tasks that have been queued at the same time.
+         */
+        public int maxDepth() {
+            return mMaxDepth;
+        }
+
+        public long submitted() {
+            return mSubmitted;
+        }
+
+        public long sent() {
+            return mSent;
+        }
+
+        /**
+         * @return the number of tasks superseded by a newer one with the same key.
+         */
+        public long merged() {
+            return mMerged;
+        }
+
+        /**
+         * @return the number of tasks dropped because the queue was full.
+         */
+        public long dropped() {
+            return mDropped;
+        }
+
+        /**
+         * @return the number of tasks that waited for too long.
+         */
+        public long expired() {
+            return mExpired;
+        }
+
+        /**
+         * @return the average time in milliseconds between a task being due and its completion.
+         */
+        public long averageLatency() {
+            return mAverageLatency;
+        }
+
+        public long maxLatency() {
+            return mMaxLatency;
+        }
+
+        @Override
+        public String toString() {
+            return "Metrics{depth=" + mDepth + ", maxDepth=" + mMaxDepth + ", submitted=" + mSubmitted + ", sent=" + mSent +
+                    ", merged=" + mMerged + ", dropped=" + mDropped + ", expired=" + mExpired +
+                    ", avgLatency=" + mAverageLatency + "ms, maxLatency=" + mMaxLatency + "ms}";
+        }
+    }
+
+    private static final class Entry {
+
+        private final Object mKey;
+        private final int mPriority;
+        private final long mDueAt;
+        private final long mSeq;
+        private final Task mTask;
+
+        private Entry(Object key, int priority, long dueAt, long seq, Task task) {
+            mKey = key;
+            mPriority = priority;
+            mDueAt = dueAt;
+            mSeq = seq;
+            mTask = task;
+        }
+
+        private boolean runsBefore(Entry other) {
+            return mPriority != other.mPriority ? mPriority > other.mPriority : mSeq < other.mSeq;
+        }
+    }
+
+    private final int mCapacity;
+    private final long mMaxAge;
+    private final List<Entry> mQueue = new ArrayList<>();
+
+    private long mSeq;
+    private int mMaxDepth;
+    private long mSubmitted;
+    private long mSent;
+    private long mMerged;
+    private long mDropped;
+    private long mExpired;
+    private long mTotalLatency;
+    private long mMaxLatency;
+
+    public SendScheduler(int capacity, long maxAge) {
+        mCapacity = capacity;
+        mMaxAge = maxAge;
+        final Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, TAG_LOG);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Submits a task.
+     *
+     * @param key         that identifies the task, a queued task with the same key is replaced.
+     *                    If null the task is never replaced.
+     * @param priority    of the task.
+     * @param delayMillis before the task can be executed.
+     * @param task        that has to be executed.
+     */
+    public void submit(Object key, @Priority int priority, long delayMillis, @NonNull Task task) {
+        final List<Task> dropped = new ArrayList<>();
+        boolean rejected = false;
+        synchronized (this) {
+            mSubmitted++;
+            final Entry entry = new Entry(key, priority, SystemClock.elapsedRealtime() + Math.max(delayMillis, 0L), mSeq++, task);
+            if (key != null) {
+                for (int i = 0; i < mQueue.size(); i++) {
+                    if (key.equals(mQueue.get(i).mKey)) {
+                        dropped.add(mQueue.remove(i).mTask);
+                        mMerged++;
+                        break;
+                    }
+                }
+            }
+            if (mQueue.size() >= mCapacity) {
+                // Victim is the oldest entry between the ones with the lowest priority
+                Entry victim = null;
+                for (Entry queued : mQueue) {
+                    if (victim == null || queued.mPriority < victim.mPriority || (queued.mPriority == victim.mPriority && queued.mSeq < victim.mSeq)) {
+                        victim = queued;
+                    }
+                }
+                if (victim == null || victim.mPriority > priority) {
+                    // Everything queued is more important than the new entry
+                    rejected = true;
+                    dropped.add(task);
+                    mDropped++;
+                    Log.w(TAG_LOG, "Queue full, task with priority " + priority + " rejected.");
+                } else {
+                    mQueue.remove(victim);
+                    dropped.add(victim.mTask);
+                    mDropped++;
+                    Log.w(TAG_LOG, "Queue full, dropped task with priority " + victim.mPriority + ".");
+                }
+            }
+            if (!rejected) {
+                mQueue.add(entry);
+                mMaxDepth = Math.max(mMaxDepth, mQueue.size());
+                notifyAll();
+            }
+        }
+        for (Task t : dropped) {
+            t.onDropped();
+        }
+    }
+
+    /**
+     * @return a snapshot of the current metrics.
+     */
+    public synchronized Metrics getMetrics() {
+        return new Metrics(this);
+    }
+
+    private void loop() {
+        final List<Entry> expired = new ArrayList<>();
+        while (true) {
+            final Entry next;
+            synchronized (this) {
+                try {
+                    next = awaitNext(expired);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            for (Entry entry : expired) {
+                entry.mTask.onDropped();
+            }
+            expired.clear();
+            if (next == null) {
+                continue;
+            }
+            try {
+                next.mTask.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG_LOG, "Task failed.", e);
+            }
+            final long latency = SystemClock.elapsedRealtime() - next.mDueAt;
+            synchronized (this) {
+                mSent++;
+                mTotalLatency += latency;
+                mMaxLatency = Math.max(mMaxLatency, latency);
+            }
+        }
+    }
+
+    /**
+     * Waits for the next task that is due, moving the expired ones in the given list.
+     *
+     * @return the next task or null if only expired tasks have been found.
+     */
+    private Entry awaitNext(List<Entry> expired) throws InterruptedException {
+        while (true) {
+            final long now = SystemClock.elapsedRealtime();
+            Entry best = null;
+            long wakeUpAt = Long.MAX_VALUE;
+            for (int i = mQueue.size() - 1; i >= 0; i--) {
+                final Entry entry = mQueue.get(i);
+                if (now - entry.mDueAt > mMaxAge) {
+                    expired.add(mQueue.remove(i));
+                    mExpired++;
+                } else if (entry.mDueAt <= now) {
+                    if (best == null || entry.runsBefore(best)) {
+                        best = entry;
+                    }
+                } else {
+                    wakeUpAt = Math.min(wakeUpAt, entry.mDueAt);
+                }
+            }
+            if (best != null) {
+                mQueue.remove(best);
+                return best;
+            }
+            if (!expired.isEmpty()) {
+                return null;
+            }
+            if (wakeUpAt == Long.MAX_VALUE) {
+                wait();
+            } else {
+                wait(wakeUpAt - now);
+            }
+        }
+    }
+}
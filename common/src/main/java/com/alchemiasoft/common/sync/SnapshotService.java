@@ -0,0 +1,203 @@
+/*
+ * Copyright 2015 Simone Casagranda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alchemiasoft.common.sync;
+
+import android.app.IntentService;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.alchemiasoft.common.R;
+import com.google.android.gms.wearable.Asset;
+import com.google.android.gms.wearable.DataMap;
+import com.google.android.gms.wearable.PutDataMapRequest;
+import com.google.android.gms.wearable.Wearable;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * IntentService that bootstraps a newly connected node with a {@link CatalogSnapshot}.
+ * <p/>
+ * The snapshot travels as an Asset of a DataItem addressed to the target node, so a fresh
+ * pairing converges with one transfer instead of a DataItem per book. Only the nodes that are
+ * configured as snapshot source (the handheld) send it. A node counts as bootstrapped only once it
+ * confirms the load with a {@link #LOADED_PATH} message, until then the snapshot is sent again at
+ * most every {@link #RESEND_INTERVAL}. A reinstalled node that keeps its id asks for a new one
+ * through the resume protocol.
+ * <p/>
+ * Created by Simone Casagranda on 01/05/15.
+ */
+public class SnapshotService extends IntentService {
+
+    /**
+     * Tag used for logging.
+     */
+    private static final String TAG_LOG = SnapshotService.class.getSimpleName();
+
+    /**
+     * Path prefix of the snapshot DataItem(s), followed by the id of the target node.
+     */
+    public static final String PATH_PREFIX = "/snapshot/";
+    public static final String KEY_CATALOG = "catalog";
+    public static final String KEY_SEQUENCE = "seq";
+    private static final String KEY_CREATED_AT = "created_at";
+
+    /**
+     * Path of the message that confirms the load of a snapshot, it carries its sequence.
+     */
+    public static final String LOADED_PATH = "/sync/snapshot";
+
+    private static final String KEY_NODE_ID = "com.alchemiasoft.common.sync.NODE_ID";
+
+    /**
+     * Nodes that have confirmed the load of a snapshot and the ones still waiting for it.
+     */
+    private static final String PREFS_NAME = "snapshot";
+    private static final String PREFIX_SENT = "sent:";
+
+    private static final long CONNECT_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+
+    /**
+     * Time a node has to confirm a snapshot before it's sent again.
+     */
+    private static final long RESEND_INTERVAL = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * Sends the snapshot to the given node if it has never confirmed one.
+     *
+     * @param context used to start the service.
+     * @param nodeId  of the connected node.
+     */
+    public static void offer(@NonNull Context context, @NonNull String nodeId) {
+        if (!context.getResources().getBoolean(R.bool.sync_snapshot_source)) {
+            return;
+        }
+        if (context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).contains(nodeId)) {
+            return;
+        }
+        final Intent intent = new Intent(context, SnapshotService.class);
+        intent.putExtra(KEY_NODE_ID, nodeId);
+        context.startService(intent);
+    }
+
+    /**
+     * Sends the snapshot again to a node that has lost it, e.g. because it has been reinstalled
+     * and kept its id.
+     *
+     * @param context used to start the service.
+     * @param nodeId  of the node to bootstrap.
+     */
+    public static void reoffer(@NonNull Context context, @NonNull String nodeId) {
+        if (!context.getResources().getBoolean(R.bool.sync_snapshot_source)) {
+            return;
+        }
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit().remove(nodeId).commit();
+        offer(context, nodeId);
+    }
+
+    /**
+     * Remembers that the given node has loaded the snapshot, it won't be sent again.
+     *
+     * @param context used to access the preferences.
+     * @param nodeId  of the node that has confirmed the load.
+     */
+    public static void onLoaded(@NonNull Context context, @NonNull String nodeId) {
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putLong(nodeId, System.currentTimeMillis()).remove(PREFIX_SENT + nodeId).commit();
+        Log.i(TAG_LOG, "Snapshot loaded by " + nodeId + ".");
+    }
+
+    /**
+     * Confirms the load of a snapshot to the node that has sent it.
+     *
+     * @param transport used to reach the source node.
+     * @param nodeId    of the source node.
+     * @param sequence  of the loaded snapshot.
+     * @return true if the confirmation has been sent, false otherwise.
+     */
+    public static boolean confirm(@NonNull SyncTransport transport, @NonNull String nodeId, long sequence) {
+        final DataMap dataMap = new DataMap();
+        dataMap.putLong(KEY_SEQUENCE, sequence);
+        return transport.sendMessage(nodeId, LOADED_PATH, dataMap.toByteArray());
+    }
+
+    /**
+     * @param data payload of a {@link #LOADED_PATH} message.
+     * @return the sequence of the loaded snapshot.
+     */
+    public static long sequenceOf(byte[] data) {
+        return DataMap.fromByteArray(data).getLong(KEY_SEQUENCE, 0L);
+    }
+
+    /**
+     * @param path of a DataItem.
+     * @return the id of the node the snapshot is addressed to or null if it's not a snapshot.
+     */
+    public static String targetOf(String path) {
+        return path != null && path.startsWith(PATH_PREFIX) ? path.substring(PATH_PREFIX.length()) : null;
+    }
+
+    public SnapshotService() {
+        super(TAG_LOG);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        final String nodeId = intent.getStringExtra(KEY_NODE_ID);
+        final SharedPreferences prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        if (nodeId == null || prefs.contains(nodeId)) {
+            return;
+        }
+        final long sentAt = prefs.getLong(PREFIX_SENT + nodeId, 0L);
+        final long now = System.currentTimeMillis();
+        if (sentAt <= now && now - sentAt < RESEND_INTERVAL) {
+            // Still waiting for the node to confirm the load
+            return;
+        }
+        // Read before the snapshot, a change in the middle is resumed again and that's harmless
+        final long sequence = SyncResume.getLastSequence(getContentResolver());
+        final byte[] snapshot;
+        try {
+            snapshot = CatalogSnapshot.write(getContentResolver());
+        } catch (IOException e) {
+            Log.e(TAG_LOG, "Cannot write the snapshot.", e);
+            return;
+        }
+        final ApiClientManager.Lease lease = ApiClientManager.get(this).acquire();
+        try {
+            if (!lease.awaitConnected(CONNECT_TIMEOUT)) {
+                return;
+            }
+            final PutDataMapRequest request = PutDataMapRequest.create(PATH_PREFIX + nodeId);
+            request.getDataMap().putAsset(KEY_CATALOG, Asset.createFromBytes(snapshot));
+            request.getDataMap().putLong(KEY_CREATED_AT, System.currentTimeMillis());
+            request.getDataMap().putLong(KEY_SEQUENCE, sequence);
+            if (Wearable.DataApi.putDataItem(lease.client(), request.asPutDataRequest()).await().getStatus().isSuccess()) {
+                // The node is bootstrapped only when it confirms the load
+                prefs.edit().putLong(PREFIX_SENT + nodeId, System.currentTimeMillis()).commit();
+                Log.i(TAG_LOG, "Snapshot of " + snapshot.length + " bytes sent to " + nodeId + ".");
+            } else {
+                Log.e(TAG_LOG, "Cannot send the snapshot to " + nodeId + ".");
+            }
+        } finally {
+            lease.release();
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2015 Simone Casagranda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alchemiasoft.common.sync;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.alchemiasoft.common.content.BookDB;
+import com.alchemiasoft.common.util.UriUtil;
+import com.google.android.gms.wearable.DataMap;
+
+import java.util.ArrayList;
+
+/**
+ * Resumes the sync with a peer after a disconnection, starting from the {@link Watermarks}.
+ * <p/>
+ * When a peer connects, each node asks for the changes after the sequence up to which it has
+ * applied everything. The other node replies with the entries of its change log after that
+ * sequence, a page of entries per message, so the traffic is proportional to the changes that
+ * have been missed. A page covers every entry of its range that is still in the log, so once
+ * applied the whole range counts as applied. The change log is trimmed up to the lowest
+ * sequence acknowledged by the peers.
+ * <p/>
+ * Created by Simone Casagranda on 05/05/15.
+ */
+public final class SyncResume {
+
+    /**
+     * Tag used for logging.
+     */
+    private static final String TAG_LOG = SyncResume.class.getSimpleName();
+
+    /**
+     * Paths of the resume messages.
+     */
+    public static final String RESUME_PATH = "/sync/resume";
+    public static final String CHANGE_PATH = "/sync/change";
+
+    private static final String KEY_SEQUENCE = "seq";
+    private static final String KEY_FROM = "from";
+    private static final String KEY_TO = "to";
+    private static final String KEY_CHANGES = "changes";
+    private static final String KEY_PATH = "path";
+    private static final String KEY_DATA = "data";
+    private static final String KEY_BOOTSTRAPPED = "bootstrapped";
+
+    /**
+     * Number of change log entries read and sent at once.
+     */
+    private static final int PAGE_SIZE = 100;
+
+    /**
+     * Content of a page, well below the limit of a message.
+     */
+    private static final int MAX_PAGE_BYTES = 64 * 1024;
+
+    /**
+     * Entries kept in the change log even if a peer has never acknowledged them.
+     */
+    private static final long MAX_ENTRIES = 2000L;
+
+    private static final String[] PROJECTION = {BookDB.ChangeLog._ID, BookDB.ChangeLog.PATH, BookDB.ChangeLog.DATA};
+    private static final String[] PROJECTION_MAX = {"MAX(" + BookDB.ChangeLog._ID + ")"};
+    private static final String WHERE_AFTER = BookDB.ChangeLog._ID + " > ?";
+    private static final String WHERE_UP_TO = BookDB.ChangeLog._ID + " <= ?";
+    private static final String ORDER_BY = BookDB.ChangeLog._ID + " ASC";
+
+    private SyncResume() {
+        throw new RuntimeException("Use static methods rather than trying to instantiate this class");
+    }
+
+    /**
+     * @param path of a received message.
+     * @return true if the message belongs to the resume protocol.
+     */
+    public static boolean handles(String path) {
+        return RESUME_PATH.equals(path) || CHANGE_PATH.equals(path);
+    }
+
+    /**
+     * @param data payload of a resume request.
+     * @return true if the requesting node has never loaded a snapshot of this node, e.g. because
+     * it has been reinstalled.
+     */
+    public static boolean needsBootstrap(byte[] data) {
+        return !DataMap.fromByteArray(data).getBoolean(KEY_BOOTSTRAPPED, true);
+    }
+
+    /**
+     * Asks the given peer for the changes that this node has missed.
+     *
+     * @param transport  used to reach the peer.
+     * @param watermarks of this node.
+     * @param nodeId     of the peer.
+     * @return true if the request has been sent, false otherwise.
+     */
+    public static boolean request(@NonNull SyncTransport transport, @NonNull Watermarks watermarks, @NonNull String nodeId) {
+        final DataMap dataMap = new DataMap();
+        dataMap.putLong(KEY_SEQUENCE, watermarks.getApplied(nodeId));
+        dataMap.putBoolean(KEY_BOOTSTRAPPED, watermarks.isBootstrapped(nodeId));
+        return transport.sendMessage(nodeId, RESUME_PATH, dataMap.toByteArray());
+    }
+
+    /**
+     * Handles a message of the resume protocol: requests are served from the change log, pages of
+     * changes are applied through the given handler as if they were DataItem(s).
+     *
+     * @param resolver     used to access the change log.
+     * @param transport    used to reply.
+     * @param watermarks   of this node.
+     * @param handler      that applies the changes.
+     * @param sourceNodeId of the message.
+     * @param path         of the message.
+     * @param data         payload of the message.
+     */
+    public static void onMessageReceived(@NonNull ContentResolver resolver, @NonNull SyncTransport transport, @NonNull Watermarks watermarks,
+                                         @NonNull BookSyncHandler handler, String sourceNodeId, String path, byte[] data) {
+        final DataMap dataMap = DataMap.fromByteArray(data);
+        if (CHANGE_PATH.equals(path)) {
+            final ArrayList<DataMap> changes = dataMap.getDataMapArrayList(KEY_CHANGES);
+            boolean applied = true;
+            if (changes != null) {
+                for (DataMap change : changes) {
+                    applied &= handler.applyChange(sourceNodeId, change.getString(KEY_PATH), change.getByteArray(KEY_DATA));
+                }
+            }
+            if (applied) {
+                // The page holds every entry of its range, the missing ones have been trimmed
+                watermarks.markAppliedRange(sourceNodeId, dataMap.getLong(KEY_FROM, 0L), dataMap.getLong(KEY_TO, 0L));
+            }
+        } else if (RESUME_PATH.equals(path)) {
+            final long sequence = dataMap.getLong(KEY_SEQUENCE, 0L);
+            // The peer has everything up to the sequence it asks from
+            watermarks.setAcked(sourceNodeId, sequence);
+            trim(resolver, watermarks);
+            serve(resolver, transport, sourceNodeId, sequence);
+        }
+    }
+
+    /**
+     * Deletes the entries of the change log that all the peers have acknowledged, keeping at
+     * most {@link #MAX_ENTRIES} entries that are waiting for a peer that never came back.
+     *
+     * @param resolver   used to access the change log.
+     * @param watermarks of this node.
+     * @return the number of deleted entries.
+     */
+    public static int trim(@NonNull ContentResolver resolver, @NonNull Watermarks watermarks) {
+        final long upTo = Math.max(watermarks.getMinAcked(), getLastSequence(resolver) - MAX_ENTRIES);
+        return upTo > 0L ? resolver.delete(BookDB.ChangeLog.CONTENT_URI, WHERE_UP_TO, new String[]{String.valueOf(upTo)}) : 0;
+    }
+
+    /**
+     * @param resolver used to access the change log.
+     * @return the sequence of the latest change made on this node, 0 if none.
+     */
+    public static long getLastSequence(@NonNull ContentResolver resolver) {
+        final Cursor c = resolver.query(BookDB.ChangeLog.CONTENT_URI, PROJECTION_MAX, null, null, null);
+        try {
+            return c.moveToFirst() && !c.isNull(0) ? c.getLong(0) : 0L;
+        } finally {
+            c.close();
+        }
+    }
+
+    private static void serve(ContentResolver resolver, SyncTransport transport, String nodeId, long sequence) {
+        long last = sequence;
+        int sent = 0;
+        boolean more = true;
+        while (more) {
+            final ArrayList<DataMap> changes = new ArrayList<>();
+            long to = last;
+            int bytes = 0;
+            final Cursor c = resolver.query(UriUtil.withLimit(BookDB.ChangeLog.CONTENT_URI, PAGE_SIZE), PROJECTION, WHERE_AFTER,
+                    new String[]{String.valueOf(last)}, ORDER_BY);
+            try {
+                more = c.getCount() == PAGE_SIZE;
+                if (sent == 0 && sequence > 0L && c.moveToFirst() && c.getLong(0) > sequence + 1) {
+                    // Entries have been trimmed, the DataItem(s) still in the Data Layer cover the gap
+                    Log.w(TAG_LOG, "Change log for " + nodeId + " resumed from " + c.getLong(0) + " instead of " + (sequence + 1));
+                }
+                c.moveToPosition(-1);
+                while (c.moveToNext()) {
+                    final byte[] data = c.getBlob(2);
+                    if (!changes.isEmpty() && bytes + data.length > MAX_PAGE_BYTES) {
+                        // The rest goes with the next page
+                        more = true;
+                        break;
+                    }
+                    bytes += data.length;
+                    final DataMap change = new DataMap();
+                    change.putString(KEY_PATH, c.getString(1));
+                    change.putByteArray(KEY_DATA, Event.DataApi.withSequence(data, c.getLong(0)));
+                    changes.add(change);
+                    to = c.getLong(0);
+                }
+            } finally {
+                c.close();
+            }
+            if (changes.isEmpty()) {
+                break;
+            }
+            final DataMap dataMap = new DataMap();
+            dataMap.putLong(KEY_FROM, last);
+            dataMap.putLong(KEY_TO, to);
+            dataMap.putDataMapArrayList(KEY_CHANGES, changes);
+            if (!transport.sendMessage(nodeId, CHANGE_PATH, dataMap.toByteArray())) {
+                // The peer will ask again from its watermark when it connects
+                break;
+            }
+            last = to;
+            sent += changes.size();
+        }
+        Log.i(TAG_LOG, "Resumed " + nodeId + " with " + sent + " change(s) after " + sequence);
+    }
+}
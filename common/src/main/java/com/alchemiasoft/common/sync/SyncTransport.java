@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 Simone Casagranda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alchemiasoft.common.sync;
+
+import java.util.List;
+
+/**
+ * Channel used to exchange data items and messages between the handheld and the wearable nodes.
+ * <p/>
+ * The contract only deals with node ids, paths and raw bytes so that it can be implemented on top
+ * of the Wearable api(s) ({@link WearableTransport}) as well as in memory ({@link LoopbackTransport}).
+ * All the methods are blocking and should never be called from the main thread.
+ * <p/>
+ * Created by Simone Casagranda on 20/04/15.
+ */
+public interface SyncTransport {
+
+    /**
+     * Callback notified when something arrives from a remote node.
+     */
+    interface Listener {
+
+        /**
+         * Called when a data item has been created or updated by a node.
+         *
+         * @param sourceNodeId id of the node that owns the data item.
+         * @param path         of the data item.
+         * @param data         content of the data item.
+         */
+        void onDataChanged(String sourceNodeId, String path, byte[] data);
+
+        /**
+         * Called when a message has been received.
+         *
+         * @param sourceNodeId id of the node that has sent the message.
+         * @param path         of the message.
+         * @param data         payload of the message.
+         */
+        void onMessageReceived(String sourceNodeId, String path, byte[] data);
+
+        /**
+         * Called when a node becomes reachable.
+         *
+         * @param nodeId of the connected node.
+         */
+        void onPeerConnected(String nodeId);
+
+        /**
+         * Called when a node is not reachable anymore.
+         *
+         * @param nodeId of the disconnected node.
+         */
+        void onPeerDisconnected(String nodeId);
+    }
+
+    /**
+     * @return the id of the current node or null if it cannot be resolved.
+     */
+    String getLocalNodeId();
+
+    /**
+     * @return the ids of the nodes currently reachable (never null).
+     */
+    List<String> getConnectedNodeIds();
+
+    /**
+     * Creates or replaces the data item at the given path. The item will be delivered to the other
+     * nodes as soon as they are reachable.
+     *
+     * @param path of the data item.
+     * @param data content of the data item.
+     * @return true if the data item has been accepted by the transport, false otherwise.
+     */
+    boolean putData(String path, byte[] data);
+
+    /**
+     * Sends a message to the given node. Messages are not retained, if the node is not reachable
+     * the message is lost.
+     *
+     * @param nodeId of the target.
+     * @param path   of the message.
+     * @param data   payload of the message.
+     * @return true if the message has been sent, false otherwise.
+     */
+    boolean sendMessage(String nodeId, String path, byte[] data);
+}
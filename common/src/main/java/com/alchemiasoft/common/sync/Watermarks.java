@@ -0,0 +1,309 @@
+/*
+ * Copyright 2015 Simone Casagranda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alchemiasoft.common.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.text.TextUtils;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent marks of the sync with each peer, in both the directions:
+ * <ul>
+ * <li>applied: this node has applied every sequence of the peer's change log up to this one.
+ * Sequences applied past a gap (e.g. delivered out of order or coalesced away by the outbox)
+ * are kept aside and join the mark once the gap is filled.</li>
+ * <li>acked: the peer has applied every sequence of this node's change log up to this one.</li>
+ * </ul>
+ * Marks only move forward. The peers met recently are remembered as well, so that the changes
+ * of this node are kept until all of them have applied them. A peer that hasn't been seen for
+ * {@link #PEER_TTL} (e.g. an unpaired or reset watch) is forgotten, so it can't hold the changes
+ * forever: if it comes back it's a new peer and it's bootstrapped again.
+ * <p/>
+ * Created by Simone Casagranda on 05/05/15.
+ */
+public final class Watermarks {
+
+    private static final String PREFS_NAME = "watermarks";
+
+    private static final String PREFIX_APPLIED = "applied:";
+    private static final String PREFIX_AHEAD = "ahead:";
+    private static final String PREFIX_ACKED = "acked:";
+    private static final String PREFIX_PEER = "peer:";
+    private static final String PREFIX_SNAPSHOT = "snapshot:";
+
+    /**
+     * Sequences kept aside for each peer, the highest ones are forgotten (and resumed again) beyond it.
+     */
+    private static final int MAX_AHEAD = 1024;
+
+    /**
+     * Time after which a peer that hasn't been seen is forgotten.
+     */
+    static final long PEER_TTL = TimeUnit.DAYS.toMillis(7);
+
+    /**
+     * The last time a peer has been seen is persisted at most once in this time.
+     */
+    private static final long SEEN_RESOLUTION = TimeUnit.HOURS.toMillis(1);
+
+    private static Watermarks sInstance;
+
+    private final SharedPreferences mPrefs;
+
+    /**
+     * Sequences applied past the applied mark, for each peer.
+     */
+    private final Map<String, TreeSet<Long>> mAhead = new HashMap<>();
+
+    private Watermarks(SharedPreferences prefs) {
+        mPrefs = prefs;
+    }
+
+    public static synchronized Watermarks get(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new Watermarks(context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE));
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param prefs where the marks are stored, e.g. the ones of a node in an in-process test.
+     * @return Watermarks that are not shared with the rest of the app.
+     */
+    static Watermarks from(@NonNull SharedPreferences prefs) {
+        return new Watermarks(prefs);
+    }
+
+    /**
+     * @param nodeId of the peer.
+     * @return the sequence of the peer up to which every change has been applied by this node, 0 if none.
+     */
+    public long getApplied(String nodeId) {
+        return mPrefs.getLong(PREFIX_APPLIED + nodeId, 0L);
+    }
+
+    /**
+     * @param nodeId of the peer.
+     * @return the highest sequence of this node acknowledged by the peer, 0 if none.
+     */
+    public long getAcked(String nodeId) {
+        return mPrefs.getLong(PREFIX_ACKED + nodeId, 0L);
+    }
+
+    /**
+     * @param nodeId of the peer.
+     * @return true if some sequences of the peer have been applied past a gap.
+     */
+    public synchronized boolean hasGaps(String nodeId) {
+        return !ahead(nodeId).isEmpty();
+    }
+
+    /**
+     * Remembers that a single change of the peer has been applied.
+     *
+     * @param nodeId   of the peer.
+     * @param sequence of the change, 0 if unknown.
+     */
+    public synchronized void markApplied(String nodeId, long sequence) {
+        final long applied = getApplied(nodeId);
+        if (sequence <= applied) {
+            return;
+        }
+        final TreeSet<Long> ahead = ahead(nodeId);
+        ahead.add(sequence);
+        if (ahead.size() > MAX_AHEAD) {
+            ahead.pollLast();
+        }
+        save(nodeId, applied, ahead);
+    }
+
+    /**
+     * Remembers that every change of the peer up to the given sequence has been applied,
+     * e.g. because it was part of a snapshot.
+     *
+     * @param nodeId   of the peer.
+     * @param sequence up to which the changes have been applied.
+     */
+    public synchronized void markAppliedUpTo(String nodeId, long sequence) {
+        final long applied = getApplied(nodeId);
+        if (sequence > applied) {
+            save(nodeId, sequence, ahead(nodeId));
+        }
+    }
+
+    /**
+     * Remembers that every change of the peer in (from, to] has been applied. A range that
+     * doesn't start within the applied mark can't move it, its changes are marked one by one.
+     *
+     * @param nodeId of the peer.
+     * @param from   exclusive start of the range.
+     * @param to     inclusive end of the range.
+     */
+    public synchronized void markAppliedRange(String nodeId, long from, long to) {
+        if (from <= getApplied(nodeId)) {
+            markAppliedUpTo(nodeId, to);
+        }
+    }
+
+    public synchronized void setAcked(String nodeId, long sequence) {
+        if (sequence > getAcked(nodeId)) {
+            mPrefs.edit().putLong(PREFIX_ACKED + nodeId, sequence).apply();
+        }
+    }
+
+    /**
+     * Remembers a peer or refreshes the last time it has been seen, its acks are required until
+     * it's forgotten.
+     *
+     * @param nodeId of the peer.
+     */
+    public synchronized void addPeer(String nodeId) {
+        final long now = System.currentTimeMillis();
+        final long seenAt = mPrefs.getLong(PREFIX_PEER + nodeId, 0L);
+        if (seenAt > now || now - seenAt > SEEN_RESOLUTION) {
+            mPrefs.edit().putLong(PREFIX_PEER + nodeId, now).apply();
+        }
+    }
+
+    /**
+     * @param nodeId of the peer.
+     * @return true if the peer has been seen within {@link #PEER_TTL}.
+     */
+    public synchronized boolean isPeer(String nodeId) {
+        removeExpiredPeers();
+        return mPrefs.contains(PREFIX_PEER + nodeId);
+    }
+
+    /**
+     * Remembers that a snapshot of the peer has been loaded. The mark is lost with the app data,
+     * so a reinstalled node asks to be bootstrapped again.
+     *
+     * @param nodeId of the peer.
+     */
+    public void setBootstrapped(String nodeId) {
+        mPrefs.edit().putLong(PREFIX_SNAPSHOT + nodeId, System.currentTimeMillis()).apply();
+    }
+
+    /**
+     * @param nodeId of the peer.
+     * @return true if a snapshot of the peer has been loaded, false otherwise.
+     */
+    public boolean isBootstrapped(String nodeId) {
+        return mPrefs.contains(PREFIX_SNAPSHOT + nodeId);
+    }
+
+    /**
+     * @return the ids of the peers seen within {@link #PEER_TTL}.
+     */
+    public synchronized Set<String> getPeers() {
+        removeExpiredPeers();
+        final Set<String> peers = new HashSet<>();
+        for (String key : mPrefs.getAll().keySet()) {
+            if (key.startsWith(PREFIX_PEER)) {
+                peers.add(key.substring(PREFIX_PEER.length()));
+            }
+        }
+        return peers;
+    }
+
+    /**
+     * @return the lowest sequence acknowledged among the known peers, 0 if none or if a peer has
+     * never acknowledged anything.
+     */
+    public synchronized long getMinAcked() {
+        return getMinAcked(getPeers());
+    }
+
+    /**
+     * @param peers whose acks are considered.
+     * @return the lowest sequence acknowledged among the given peers, 0 if none or if a peer has
+     * never acknowledged anything.
+     */
+    public long getMinAcked(Set<String> peers) {
+        if (peers.isEmpty()) {
+            return 0L;
+        }
+        long min = Long.MAX_VALUE;
+        for (String peer : peers) {
+            min = Math.min(min, getAcked(peer));
+        }
+        return min;
+    }
+
+    /**
+     * Forgets the peers that haven't been seen within {@link #PEER_TTL}, with their acks.
+     */
+    private void removeExpiredPeers() {
+        final long now = System.currentTimeMillis();
+        SharedPreferences.Editor editor = null;
+        for (Map.Entry<String, ?> entry : mPrefs.getAll().entrySet()) {
+            if (entry.getKey().startsWith(PREFIX_PEER) && now - (Long) entry.getValue() > PEER_TTL) {
+                final String nodeId = entry.getKey().substring(PREFIX_PEER.length());
+                if (editor == null) {
+                    editor = mPrefs.edit();
+                }
+                editor.remove(PREFIX_PEER + nodeId).remove(PREFIX_ACKED + nodeId);
+            }
+        }
+        if (editor != null) {
+            editor.apply();
+        }
+    }
+
+    private TreeSet<Long> ahead(String nodeId) {
+        TreeSet<Long> ahead = mAhead.get(nodeId);
+        if (ahead == null) {
+            ahead = new TreeSet<>();
+            for (String sequence : TextUtils.split(mPrefs.getString(PREFIX_AHEAD + nodeId, ""), ",")) {
+                ahead.add(Long.parseLong(sequence));
+            }
+            mAhead.put(nodeId, ahead);
+        }
+        return ahead;
+    }
+
+    /**
+     * Moves the applied mark over the sequences that are contiguous to it and persists both.
+     */
+    private void save(String nodeId, long applied, TreeSet<Long> ahead) {
+        final Iterator<Long> it = ahead.iterator();
+        while (it.hasNext()) {
+            final long sequence = it.next();
+            if (sequence > applied + 1) {
+                break;
+            }
+            applied = Math.max(applied, sequence);
+            it.remove();
+        }
+        final SharedPreferences.Editor editor = mPrefs.edit().putLong(PREFIX_APPLIED + nodeId, applied);
+        if (ahead.isEmpty()) {
+            editor.remove(PREFIX_AHEAD + nodeId);
+        } else {
+            editor.putString(PREFIX_AHEAD + nodeId, TextUtils.join(",", ahead));
+        }
+        editor.apply();
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2015 Simone Casagranda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alchemiasoft.common.sync;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.wearable.Node;
+import com.google.android.gms.wearable.NodeApi;
+import com.google.android.gms.wearable.PutDataRequest;
+import com.google.android.gms.wearable.Wearable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SyncTransport backed by the Wearable Data and Message api(s) of the Google Play Services.
+ * <p/>
+ * Created by Simone Casagranda on 20/04/15.
+ */
+public class WearableTransport implements SyncTransport {
+
+    /**
+     * Tag used for logging.
+     */
+    private static final String TAG_LOG = WearableTransport.class.getSimpleName();
+
+    /**
+     * Default timeout for the GoogleApiClient connection in milliseconds.
+     */
+    public static final long DEFAULT_CONNECT_TIMEOUT = 2000L;
+
+    private final GoogleApiClient mClient;
+    private final ApiClientManager.Lease mLease;
+    private final long mConnectTimeout;
+
+    public WearableTransport(@NonNull GoogleApiClient client) {
+        this(client, DEFAULT_CONNECT_TIMEOUT);
+    }
+
+    public WearableTransport(@NonNull GoogleApiClient client, long connectTimeout) {
+        mClient = client;
+        mLease = null;
+        mConnectTimeout = connectTimeout;
+    }
+
+    public WearableTransport(@NonNull ApiClientManager.Lease lease) {
+        this(lease, DEFAULT_CONNECT_TIMEOUT);
+    }
+
+    public WearableTransport(@NonNull ApiClientManager.Lease lease, long connectTimeout) {
+        mClient = lease.client();
+        mLease = lease;
+        mConnectTimeout = connectTimeout;
+    }
+
+    @Override
+    public String getLocalNodeId() {
+        if (!ensureConnected()) {
+            return null;
+        }
+        final NodeApi.GetLocalNodeResult result = Wearable.NodeApi.getLocalNode(mClient).await();
+        return result.getStatus().isSuccess() ? result.getNode().getId() : null;
+    }
+
+    @Override
+    public List<String> getConnectedNodeIds() {
+        final NodeRegistry registry = NodeRegistry.get();
+        // The registry is kept up to date by the peer callbacks, the NodeApi is queried only to refresh it
+        if (!registry.needsSeed()) {
+            return registry.getConnectedNodeIds();
+        }
+        final List<String> ids = new ArrayList<>();
+        if (!ensureConnected()) {
+            return ids;
+        }
+        final NodeApi.GetConnectedNodesResult result = Wearable.NodeApi.getConnectedNodes(mClient).await();
+        if (result.getStatus().isSuccess()) {
+            for (Node node : result.getNodes()) {
+                ids.add(node.getId());
+            }
+            registry.seed(ids);
+        } else if (registry.isSeeded()) {
+            // Better an old answer than none
+            return registry.getConnectedNodeIds();
+        }
+        return ids;
+    }
+
+    @Override
+    public boolean putData(String path, byte[] data) {
+        if (!ensureConnected()) {
+            return false;
+        }
+        final PutDataRequest request = PutDataRequest.create(path).setData(data);
+        return Wearable.DataApi.putDataItem(mClient, request).await().getStatus().isSuccess();
+    }
+
+    @Override
+    public boolean sendMessage(String nodeId, String path, byte[] data) {
+        if (!ensureConnected()) {
+            return false;
+        }
+        final boolean sent = Wearable.MessageApi.sendMessage(mClient, nodeId, path, data).await().getStatus().isSuccess();
+        if (!sent) {
+            // The node could be gone without us being notified
+            NodeRegistry.get().invalidate();
+        }
+        return sent;
+    }
+
+    private boolean ensureConnected() {
+        if (mClient.isConnected()) {
+            return true;
+        }
+        // A shared client is connected by its manager, we can only wait for it
+        if (mLease != null) {
+            return mLease.awaitConnected(mConnectTimeout);
+        }
+        if (!mClient.blockingConnect(mConnectTimeout, TimeUnit.MILLISECONDS).isSuccess()) {
+            Log.e(TAG_LOG, "Cannot connect to GoogleApiClient.");
+            return false;
+        }
+        return true;
+    }
+}
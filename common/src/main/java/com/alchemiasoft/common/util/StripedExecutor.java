@@ -0,0 +1,169 @@
+/*
+ * Copyright 2015 Simone Casagranda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alchemiasoft.common.util;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor that runs the tasks with the same key one at a time, in submission order, and the
+ * tasks with different keys in parallel.
+ * <p/>
+ * Keys are striped over a fixed number of single threaded lanes, each one with a bounded
+ * queue: a task that doesn't fit is rejected rather than queued without limits. A barrier
+ * task runs after all the tasks submitted before it and before all the ones submitted after
+ * it, whatever their key. Idle lanes release their thread.
+ * <p/>
+ * Created by Simone Casagranda on 10/05/15.
+ */
+public final class StripedExecutor {
+
+    /**
+     * Tag used for logging.
+     */
+    private static final String TAG_LOG = StripedExecutor.class.getSimpleName();
+
+    private static final long KEEP_ALIVE = 30L;
+
+    private final ThreadPoolExecutor[] mLanes;
+
+    /**
+     * Held while submitting, so that two barriers (or a barrier and a task) are enqueued in the
+     * same order on all the lanes: crossed barriers would wait for each other forever.
+     */
+    private final Object mSubmitLock = new Object();
+
+    /**
+     * @param name     prefix of the names of the threads.
+     * @param lanes    number of tasks that can run in parallel.
+     * @param capacity of the queue of each lane.
+     */
+    public StripedExecutor(@NonNull final String name, int lanes, int capacity) {
+        mLanes = new ThreadPoolExecutor[lanes];
+        for (int i = 0; i < lanes; i++) {
+            final int lane = i;
+            mLanes[i] = new ThreadPoolExecutor(1, 1, KEEP_ALIVE, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(capacity), new ThreadFactory() {
+
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(@NonNull Runnable r) {
+                    return new Thread(r, name + "-" + lane + "-" + mCount.incrementAndGet());
+                }
+            });
+            mLanes[i].allowCoreThreadTimeOut(true);
+        }
+    }
+
+    /**
+     * Runs the task after all the tasks with the same key submitted before it.
+     *
+     * @param key  that identifies the ordered tasks (e.g. the id of a book).
+     * @param task to run.
+     * @return true if the task has been accepted, false if its lane is full.
+     */
+    public boolean execute(long key, @NonNull Runnable task) {
+        synchronized (mSubmitLock) {
+            try {
+                mLanes[laneOf(key)].execute(task);
+                return true;
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG_LOG, "Lane of " + key + " is full, rejecting the task.");
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Runs the task once all the lanes have completed the tasks submitted before it, holding
+     * the tasks submitted after it.
+     *
+     * @param task to run.
+     * @return true if the task has been accepted, false if any lane is full.
+     */
+    public boolean executeBarrier(@NonNull final Runnable task) {
+        final CountDownLatch arrived = new CountDownLatch(mLanes.length);
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        synchronized (mSubmitLock) {
+            for (int i = 0; i < mLanes.length; i++) {
+                final boolean leader = i == 0;
+                try {
+                    mLanes[i].execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            arrived.countDown();
+                            awaitUninterruptibly(arrived);
+                            if (cancelled.get()) {
+                                return;
+                            }
+                            if (leader) {
+                                try {
+                                    task.run();
+                                } finally {
+                                    done.countDown();
+                                }
+                            } else {
+                                awaitUninterruptibly(done);
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    Log.w(TAG_LOG, "Lane " + i + " is full, rejecting the barrier.");
+                    // Releasing the lanes that are already waiting for the barrier
+                    cancelled.set(true);
+                    for (int j = i; j < mLanes.length; j++) {
+                        arrived.countDown();
+                    }
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private int laneOf(long key) {
+        // Spreading the keys, consecutive ids shouldn't end up in the same lane
+        long hash = key * 0x9E3779B97F4A7C15L;
+        hash ^= hash >>> 32;
+        return (int) ((hash & 0x7FFFFFFFL) % mLanes.length);
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
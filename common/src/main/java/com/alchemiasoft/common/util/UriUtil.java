@@ -45,6 +45,11 @@ public final class UriUtil {
      */
     public static final String KEY_WHERE_ARG = "where_arg";
 
+    /**
+     * Key used to ask that the change is also delivered to the other nodes.
+     */
+    public static final String KEY_SYNC = "sync";
+
     /**
      * Creates a new Uri for the given limit.
      *
@@ -170,4 +175,24 @@ public final class UriUtil {
         final String[] result = new String[queryParams.size()];
         return queryParams.toArray(result);
     }
+
+    /**
+     * Creates a new Uri that asks for the change to be synced with the other nodes.
+     *
+     * @param source for the uri.
+     * @return an uri that marks the change as to be synced.
+     */
+    public static Uri withSync(@NonNull Uri source) {
+        return withParam(source, KEY_SYNC, String.valueOf(true));
+    }
+
+    /**
+     * Checks if the change associated with the given uri has to be synced with the other nodes.
+     *
+     * @param uri used to extract the argument.
+     * @return true if the change has to be synced, false otherwise.
+     */
+    public static boolean isSync(@NonNull Uri uri) {
+        return Boolean.parseBoolean(uri.getQueryParameter(KEY_SYNC));
+    }
 }
@@ -18,6 +18,8 @@ package com.alchemiasoft.common.util;
 
 import android.content.Context;
 
+import com.alchemiasoft.common.sync.ApiClientManager;
+import com.alchemiasoft.common.sync.WearableTransport;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.wearable.Node;
 import com.google.android.gms.wearable.Wearable;
@@ -40,15 +42,17 @@ public class WearableUtil {
      * Be aware that is a blocking call that should not be called from the main thread.
      *
      * @param context used to access the Wearable layer through the Google Play Services.
-     * @return the node associated with the current device.
+     * @return the node associated with the current device or null if it's not reachable.
      */
     public static Node getLocalNode(Context context) {
-        final GoogleApiClient client = new GoogleApiClient.Builder(context).addApi(Wearable.API).build();
+        final ApiClientManager.Lease lease = ApiClientManager.get(context).acquire();
         try {
-            client.blockingConnect();
-            return getLocalNode(client);
+            if (!lease.awaitConnected(WearableTransport.DEFAULT_CONNECT_TIMEOUT)) {
+                return null;
+            }
+            return getLocalNode(lease.client());
         } finally {
-            client.disconnect();
+            lease.release();
         }
     }
 
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2015 Simone Casagranda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alchemiasoft.common.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the ordering of the keyed and barrier tasks of the StripedExecutor.
+ * <p/>
+ * Created by Simone Casagranda on 19/05/15.
+ */
+public class StripedExecutorTest {
+
+    private static final int LANES = 4;
+    private static final int CAPACITY = 1024;
+    private static final long TIMEOUT = 10L;
+
+    private StripedExecutor mExecutor;
+
+    @Before
+    public void setUp() {
+        mExecutor = new StripedExecutor("test", LANES, CAPACITY);
+    }
+
+    @Test
+    public void runsTheSameKeyInOrder() throws InterruptedException {
+        final List<Integer> ran = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(100);
+        for (int i = 0; i < 100; i++) {
+            final int index = i;
+            assertTrue(mExecutor.execute(42L, new Runnable() {
+                @Override
+                public void run() {
+                    ran.add(index);
+                    done.countDown();
+                }
+            }));
+        }
+        assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, (int) ran.get(i));
+        }
+    }
+
+    @Test
+    public void barrierRunsBetweenTheKeyedTasks() throws InterruptedException {
+        final AtomicInteger before = new AtomicInteger();
+        final AtomicInteger after = new AtomicInteger();
+        final AtomicInteger beforeAtBarrier = new AtomicInteger(-1);
+        final AtomicInteger afterAtBarrier = new AtomicInteger(-1);
+        final CountDownLatch done = new CountDownLatch(64);
+        for (long key = 0; key < 32; key++) {
+            assertTrue(mExecutor.execute(key, new Runnable() {
+                @Override
+                public void run() {
+                    sleep(1L);
+                    before.incrementAndGet();
+                    done.countDown();
+                }
+            }));
+        }
+        assertTrue(mExecutor.executeBarrier(new Runnable() {
+            @Override
+            public void run() {
+                beforeAtBarrier.set(before.get());
+                afterAtBarrier.set(after.get());
+            }
+        }));
+        for (long key = 0; key < 32; key++) {
+            assertTrue(mExecutor.execute(key, new Runnable() {
+                @Override
+                public void run() {
+                    after.incrementAndGet();
+                    done.countDown();
+                }
+            }));
+        }
+        assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(32, beforeAtBarrier.get());
+        assertEquals(0, afterAtBarrier.get());
+    }
+
+    @Test
+    public void concurrentBarriersDoNotDeadlock() throws InterruptedException {
+        final int threads = 8;
+        final int barriers = 50;
+        final AtomicInteger ran = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads * barriers);
+        for (int t = 0; t < threads; t++) {
+            final long key = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    awaitQuietly(start);
+                    for (int i = 0; i < barriers; i++) {
+                        // Keyed tasks in between, the barriers are enqueued on busy lanes
+                        mExecutor.execute(key, new Runnable() {
+                            @Override
+                            public void run() {
+                            }
+                        });
+                        mExecutor.executeBarrier(new Runnable() {
+                            @Override
+                            public void run() {
+                                ran.incrementAndGet();
+                                done.countDown();
+                            }
+                        });
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        assertTrue("Barriers deadlocked", done.await(TIMEOUT * 3, TimeUnit.SECONDS));
+        assertEquals(threads * barriers, ran.get());
+    }
+
+    @Test
+    public void barriersDoNotOverlap() throws InterruptedException {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(20);
+        for (int i = 0; i < 20; i++) {
+            assertTrue(mExecutor.executeBarrier(new Runnable() {
+                @Override
+                public void run() {
+                    if (running.incrementAndGet() > 1) {
+                        overlaps.incrementAndGet();
+                    }
+                    sleep(1L);
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            }));
+        }
+        assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(0, overlaps.get());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -31,15 +31,19 @@ import com.alchemiasoft.book.R;
 import com.alchemiasoft.book.fragment.BookDetailFragment;
 import com.alchemiasoft.book.fragment.BooksFragment;
 import com.alchemiasoft.book.receiver.SuggestionReceiver;
+import com.alchemiasoft.book.suggestion.WakeupLog;
 import com.alchemiasoft.common.model.Book;
+import com.alchemiasoft.common.sync.ApiClientManager;
 import com.alchemiasoft.common.sync.Event;
-import com.google.android.gms.common.ConnectionResult;
-import com.google.android.gms.common.GooglePlayServicesUtil;
+import com.alchemiasoft.common.sync.EventTrace;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.wearable.MessageApi;
 import com.google.android.gms.wearable.MessageEvent;
 import com.google.android.gms.wearable.Wearable;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 /**
  * Activity that decides weather to display available books or owned books.
  * <p/>
@@ -62,10 +66,12 @@ public class HomeActivity extends ActionBarActivity implements MessageApi.Messag
      * Key for the book Id.
      */
     private static final String KEY_BOOK_ID = "com.alchemiasoft.book.activity.BOOK_ID";
+    private static final String KEY_BOOK = "com.alchemiasoft.book.activity.BOOK";
     private static final long NOT_VALID = -1L;
 
     /**
-     * Intent that should be used to launch HomeActivity for a given book.
+     * Intent that should be used to launch HomeActivity for a given book. The book is passed as
+     * a snapshot, so that it can be shown without loading it again.
      *
      * @param context reference.
      * @param book    that has to be passed.
@@ -74,10 +80,11 @@ public class HomeActivity extends ActionBarActivity implements MessageApi.Messag
     public static Intent createFor(@NonNull Context context, @NonNull Book book) {
         final Intent intent = new Intent(context, HomeActivity.class);
         intent.putExtra(KEY_BOOK_ID, book.getId());
+        intent.putExtra(KEY_BOOK, book);
         return intent;
     }
 
-    private GoogleApiClient mGoogleApiClient;
+    private ApiClientManager.Lease mLease;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -119,37 +126,37 @@ public class HomeActivity extends ActionBarActivity implements MessageApi.Messag
         toolbar.inflateMenu(R.menu.menu_home);
         // Checking if first instance and then attach the first fragment
         if (savedInstanceState == null) {
-            attachBookFragment(getIntent().getLongExtra(KEY_BOOK_ID, NOT_VALID));
-        }
-        // Creating the GoogleApiClient for the Wearable api (if available)
-        if (GooglePlayServicesUtil.isGooglePlayServicesAvailable(this) == ConnectionResult.SUCCESS) {
-            mGoogleApiClient = new GoogleApiClient.Builder(this).addConnectionCallbacks(this).addApi(Wearable.API).build();
+            attachBookFragment(getIntent());
         }
     }
 
     @Override
     protected void onStart() {
         super.onStart();
-        // Trying to bind to the GoogleApiClient
-        if (mGoogleApiClient != null) {
-            mGoogleApiClient.connect();
+        // Leasing the shared GoogleApiClient for the Wearable api (if available)
+        final ApiClientManager manager = ApiClientManager.get(this);
+        if (manager.isAvailable()) {
+            mLease = manager.acquire(this);
         }
     }
 
     @Override
     protected void onStop() {
         super.onStop();
-        // Disconnecting the client and releasing the wearable updates
-        if (mGoogleApiClient != null) {
-            Wearable.MessageApi.removeListener(mGoogleApiClient, this);
-            mGoogleApiClient.disconnect();
+        // Releasing the wearable updates and the client
+        if (mLease != null) {
+            if (mLease.client().isConnected()) {
+                Wearable.MessageApi.removeListener(mLease.client(), this);
+            }
+            mLease.release();
+            mLease = null;
         }
     }
 
     @Override
     public void onConnected(Bundle connectionHint) {
         // The Client is connected => we can register for the wearable updates
-        Wearable.MessageApi.addListener(mGoogleApiClient, this);
+        Wearable.MessageApi.addListener(mLease.client(), this);
     }
 
     @Override
@@ -158,6 +165,7 @@ public class HomeActivity extends ActionBarActivity implements MessageApi.Messag
 
     @Override
     public void onMessageReceived(MessageEvent messageEvent) {
+        EventTrace.record(EventTrace.KIND_UI_MESSAGE, messageEvent.getSourceNodeId(), messageEvent.getPath(), messageEvent.getData());
         final Event.MessageApi.Receiver receiver = Event.MessageApi.Receiver.from(messageEvent);
         switch (receiver.action()) {
             case Event.MessageApi.OPEN:
@@ -169,7 +177,25 @@ public class HomeActivity extends ActionBarActivity implements MessageApi.Messag
     @Override
     protected void onNewIntent(Intent intent) {
         super.onNewIntent(intent);
-        attachBookFragment(intent.getLongExtra(KEY_BOOK_ID, NOT_VALID));
+        attachBookFragment(intent);
+    }
+
+    /**
+     * Adds the suggestion wakeups to "adb shell dumpsys activity top".
+     */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        WakeupLog.dump(this, writer);
+    }
+
+    private void attachBookFragment(Intent intent) {
+        final Book book = intent.getParcelableExtra(KEY_BOOK);
+        if (book != null) {
+            getSupportFragmentManager().beginTransaction().replace(R.id.content, BookDetailFragment.create(book)).commit();
+        } else {
+            attachBookFragment(intent.getLongExtra(KEY_BOOK_ID, NOT_VALID));
+        }
     }
 
     private void attachBookFragment(final long bookId) {
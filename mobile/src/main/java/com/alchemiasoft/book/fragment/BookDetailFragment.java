@@ -17,12 +17,13 @@
 package com.alchemiasoft.book.fragment;
 
 import android.app.Activity;
-import android.database.Cursor;
+import android.content.Context;
 import android.os.Bundle;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
+import android.support.v4.content.AsyncTaskLoader;
 import android.support.v4.content.Loader;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -31,6 +32,7 @@ import android.widget.Button;
 import android.widget.TextView;
 
 import com.alchemiasoft.book.R;
+import com.alchemiasoft.common.content.BookClient;
 import com.alchemiasoft.common.content.BookDB;
 import com.alchemiasoft.common.model.Book;
 import com.alchemiasoft.book.service.BookActionService;
@@ -38,14 +40,18 @@ import com.alchemiasoft.book.service.BookActionService;
 /**
  * Fragment that shows a book in full details.
  * <p/>
+ * When created from a snapshot of the book, the snapshot is shown straight away and the stored
+ * book is loaded only if the snapshot turns out to be stale.
+ * <p/>
  * Created by Simone Casagranda on 27/12/14.
  */
-public class BookDetailFragment extends Fragment implements LoaderManager.LoaderCallbacks<Cursor> {
+public class BookDetailFragment extends Fragment implements LoaderManager.LoaderCallbacks<Book> {
 
     /**
      * Argument used to set/get the book id.
      */
     private static final String ARG_BOOK_ID = "com.alchemiasoft.book.fragment.BOOK_ID";
+    private static final String ARG_BOOK = "com.alchemiasoft.book.fragment.BOOK";
 
     /**
      * Loader id for book.
@@ -66,10 +72,30 @@ public class BookDetailFragment extends Fragment implements LoaderManager.Loader
         return fragment;
     }
 
+    /**
+     * Creates a new BookDetailFragment for the given snapshot of a book.
+     *
+     * @param book that has to be shown.
+     * @return the BookDetailFragment ready to be attached.
+     */
+    public static BookDetailFragment create(@NonNull Book book) {
+        final BookDetailFragment fragment = new BookDetailFragment();
+        final Bundle args = new Bundle();
+        args.putLong(ARG_BOOK_ID, book.getId());
+        args.putParcelable(ARG_BOOK, book);
+        fragment.setArguments(args);
+        return fragment;
+    }
+
     private TextView mTitleTextView, mAuthorTextView, mPagesTextView;
     private TextView mSourceTextView, mDescriptionTextView, mNotesTextView;
     private Button mActionButton;
 
+    /**
+     * Latest version of the shown book, if any.
+     */
+    private Book mBook;
+
     @Override
     public View onCreateView(LayoutInflater inflater, @Nullable ViewGroup container, @Nullable Bundle savedInstanceState) {
         final View view = inflater.inflate(R.layout.fragment_book, container, false);
@@ -83,6 +109,17 @@ public class BookDetailFragment extends Fragment implements LoaderManager.Loader
         return view;
     }
 
+    @Override
+    public void onViewCreated(View view, @Nullable Bundle savedInstanceState) {
+        super.onViewCreated(view, savedInstanceState);
+        if (mBook == null) {
+            mBook = getArguments().getParcelable(ARG_BOOK);
+        }
+        if (mBook != null) {
+            bind(mBook);
+        }
+    }
+
     @Override
     public void onResume() {
         super.onResume();
@@ -96,21 +133,30 @@ public class BookDetailFragment extends Fragment implements LoaderManager.Loader
     }
 
     @Override
-    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+    public Loader<Book> onCreateLoader(int id, Bundle args) {
         switch (id) {
             case ID_LOADER_BOOK:
-                return new CursorLoader(getActivity(), BookDB.Book.create(args.getLong(ARG_BOOK_ID)), null, null, null, null);
+                return new BookLoader(getActivity(), args.getLong(ARG_BOOK_ID), mBook);
             default:
                 throw new IllegalArgumentException("Id=" + id + " is not supported.");
         }
     }
 
     @Override
-    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        if (!data.moveToNext()) {
+    public void onLoadFinished(Loader<Book> loader, Book book) {
+        if (book == null || book == mBook) {
             return;
         }
-        final Book book = Book.oneFrom(data);
+        mBook = book;
+        bind(book);
+    }
+
+    @Override
+    public void onLoaderReset(Loader<Book> loader) {
+
+    }
+
+    private void bind(final Book book) {
         mTitleTextView.setText(book.getTitle());
         mAuthorTextView.setText(book.getAuthor());
         mSourceTextView.setText(getString(R.string.source, book.getSource()));
@@ -130,8 +176,61 @@ public class BookDetailFragment extends Fragment implements LoaderManager.Loader
         mActionButton.setEnabled(true);
     }
 
-    @Override
-    public void onLoaderReset(Loader<Cursor> loader) {
+    /**
+     * Loads the book, checking the snapshot (if any) before loading the whole row, and reloads
+     * it when the book changes.
+     */
+    private static final class BookLoader extends AsyncTaskLoader<Book> {
+
+        private final long mBookId;
+        private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+        private Book mSnapshot;
+        private boolean mObserving;
+
+        private BookLoader(Context context, long bookId, Book snapshot) {
+            super(context);
+            mBookId = bookId;
+            mSnapshot = snapshot;
+        }
+
+        @Override
+        public Book loadInBackground() {
+            final BookClient client = BookClient.from(getContext());
+            return mSnapshot != null ? client.refresh(mSnapshot) : client.get(mBookId);
+        }
 
+        @Override
+        public void deliverResult(Book book) {
+            if (book != null) {
+                mSnapshot = book;
+            }
+            if (isStarted()) {
+                super.deliverResult(book);
+            }
+        }
+
+        @Override
+        protected void onStartLoading() {
+            if (!mObserving) {
+                getContext().getContentResolver().registerContentObserver(BookDB.Book.create(mBookId), false, mObserver);
+                mObserving = true;
+            }
+            forceLoad();
+        }
+
+        @Override
+        protected void onStopLoading() {
+            cancelLoad();
+        }
+
+        @Override
+        protected void onReset() {
+            super.onReset();
+            onStopLoading();
+            if (mObserving) {
+                getContext().getContentResolver().unregisterContentObserver(mObserver);
+                mObserving = false;
+            }
+        }
     }
 }
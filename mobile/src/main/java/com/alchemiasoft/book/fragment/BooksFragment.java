@@ -29,6 +29,7 @@ import android.support.v7.widget.GridLayoutManager;
 import android.support.v7.widget.PopupMenu;
 import android.support.v7.widget.RecyclerView;
 import android.support.v7.widget.StaggeredGridLayoutManager;
+import android.text.format.DateUtils;
 import android.view.Gravity;
 import android.view.MenuInflater;
 import android.view.MenuItem;
@@ -42,6 +43,7 @@ import com.alchemiasoft.common.content.BookDB;
 import com.alchemiasoft.book.fragment.base.RecyclerViewFragment;
 import com.alchemiasoft.common.model.Book;
 import com.alchemiasoft.book.service.BookActionService;
+import com.alchemiasoft.book.service.ReminderService;
 import com.alchemiasoft.common.util.ViewUtil;
 import com.alchemiasoft.book.widget.SmartSwipeRefreshLayout;
 
@@ -109,7 +111,7 @@ public class BooksFragment extends RecyclerViewFragment implements LoaderManager
         public void onBookSelected(@NonNull Book book) {
             final FragmentActivity activity = getActivity();
             if (activity != null) {
-                activity.getSupportFragmentManager().beginTransaction().replace(R.id.content, BookDetailFragment.create(book.getId())).commit();
+                activity.getSupportFragmentManager().beginTransaction().replace(R.id.content, BookDetailFragment.create(book)).commit();
             }
         }
     };
@@ -259,6 +261,9 @@ public class BooksFragment extends RecyclerViewFragment implements LoaderManager
                                         context.startService(BookActionService.IntentBuilder.sell(context, book).build());
                                     }
                                     return true;
+                                case R.id.action_remind:
+                                    context.startService(ReminderService.schedule(context, book, System.currentTimeMillis() + DateUtils.DAY_IN_MILLIS));
+                                    return true;
                                 default:
                                     return false;
                             }
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2015 Simone Casagranda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alchemiasoft.book.notification;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.annotation.NonNull;
+import android.support.v4.util.LruCache;
+
+import com.alchemiasoft.book.R;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Process-wide cache of the backgrounds used by the wearable notifications.
+ * <p/>
+ * A background is decoded once, sampled down to the size that a wearable actually shows, and
+ * kept by tag, so that the books of a category can have their own background: a drawable named
+ * "background_" followed by the tag, falling back to the default one. The returned bitmaps are
+ * shared and can still be in use after their eviction (e.g. by a notification being built on
+ * another thread), so they are immutable and never recycled or reused as inBitmap.
+ * <p/>
+ * Created by Simone Casagranda on 08/05/15.
+ */
+public final class NotificationBitmaps {
+
+    /**
+     * Size of the background of a wearable notification, in pixels.
+     */
+    private static final int BACKGROUND_SIZE = 400;
+
+    private static final String BACKGROUND_PREFIX = "background_";
+
+    private static final int MAX_CACHED = 4;
+
+    private static NotificationBitmaps sInstance;
+
+    private final Resources mResources;
+    private final String mPackageName;
+
+    /**
+     * Drawable for each tag, so that the identifier is looked up only once.
+     */
+    private final Map<String, Integer> mResIds = new HashMap<>();
+    private final LruCache<Integer, Bitmap> mCache = new LruCache<>(MAX_CACHED);
+
+    private NotificationBitmaps(Context context) {
+        mResources = context.getApplicationContext().getResources();
+        mPackageName = context.getPackageName();
+    }
+
+    public static synchronized NotificationBitmaps get(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new NotificationBitmaps(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param tag of the book, can be null.
+     * @return the background of the notifications about the books with the given tag.
+     */
+    public synchronized Bitmap background(String tag) {
+        final int resId = resIdFor(tag);
+        Bitmap bitmap = mCache.get(resId);
+        if (bitmap == null) {
+            bitmap = decode(resId);
+            if (bitmap != null) {
+                mCache.put(resId, bitmap);
+            }
+        }
+        return bitmap;
+    }
+
+    private int resIdFor(String tag) {
+        if (tag == null) {
+            return R.drawable.background;
+        }
+        Integer resId = mResIds.get(tag);
+        if (resId == null) {
+            final String name = BACKGROUND_PREFIX + tag.toLowerCase(Locale.US).replaceAll("[^a-z0-9_]", "_");
+            resId = mResources.getIdentifier(name, "drawable", mPackageName);
+            if (resId == 0) {
+                resId = R.drawable.background;
+            }
+            mResIds.put(tag, resId);
+        }
+        return resId;
+    }
+
+    private Bitmap decode(int resId) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeResource(mResources, resId, options);
+        options.inSampleSize = sampleSize(options.outWidth, options.outHeight);
+        options.inJustDecodeBounds = false;
+        return BitmapFactory.decodeResource(mResources, resId, options);
+    }
+
+    /**
+     * @return the highest power of 2 that keeps both the sides not smaller than the background.
+     */
+    private static int sampleSize(int width, int height) {
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= BACKGROUND_SIZE && height / (sampleSize * 2) >= BACKGROUND_SIZE) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+}
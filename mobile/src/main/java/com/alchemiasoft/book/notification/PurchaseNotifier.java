@@ -0,0 +1,302 @@
+/*
+ * Copyright 2015 Simone Casagranda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alchemiasoft.book.notification;
+
+import android.annotation.TargetApi;
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.os.Build;
+import android.os.Parcel;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.v4.app.NotificationCompat;
+import android.support.v4.app.NotificationManagerCompat;
+import android.text.TextUtils;
+import android.util.Base64;
+import android.util.Log;
+
+import com.alchemiasoft.book.R;
+import com.alchemiasoft.book.activity.HomeActivity;
+import com.alchemiasoft.book.service.BookActionService;
+import com.alchemiasoft.common.content.BookDB;
+import com.alchemiasoft.common.model.Book;
+import com.alchemiasoft.common.util.AlarmUtil;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Coalesces the notifications about purchased and sold books.
+ * <p/>
+ * The changes made within a short window are posted as a single notification: a summary with
+ * a line for each book on the handheld and a page for each book on the wearable. In this way a
+ * bulk action costs one notification (and one transfer to the wearable) instead of one for
+ * each book. The pending changes are kept in the preferences, so they survive the process,
+ * together with the snapshots of the changed books: the notification is built without querying
+ * them again.
+ * <p/>
+ * Created by Simone Casagranda on 09/05/15.
+ */
+public final class PurchaseNotifier {
+
+    /**
+     * Tag used for logging.
+     */
+    private static final String TAG_LOG = PurchaseNotifier.class.getSimpleName();
+
+    public static final int NOTIFICATION_ID = 37;
+
+    /**
+     * The notification is posted once no change happens for this time, but never later than
+     * the max delay since the first pending change.
+     */
+    private static final long WINDOW = 1500L;
+    private static final long MAX_DELAY = 5000L;
+
+    /**
+     * Delay that the system is allowed to add to the alarm, so that it can still be batched.
+     */
+    private static final long ALARM_SLACK = 500L;
+
+    private static final String PREFS_NAME = "purchase_notifications";
+    private static final String KEY_CHANGES = "changes";
+    private static final String KEY_FIRST_AT = "first_at";
+    private static final String PREFIX_BOOK = "book:";
+
+    private static final char BOUGHT = 'B';
+    private static final char SOLD = 'S';
+
+    private final Context mContext;
+    private final SharedPreferences mPrefs;
+
+    private PurchaseNotifier(Context context) {
+        mContext = context.getApplicationContext();
+        mPrefs = mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    public static PurchaseNotifier from(@NonNull Context context) {
+        return new PurchaseNotifier(context);
+    }
+
+    /**
+     * Adds a change to the pending notification, the latest change of a book wins.
+     *
+     * @param book   as updated by the change.
+     * @param bought true if the book has been bought, false if it has been sold.
+     */
+    public void add(@NonNull Book book, boolean bought) {
+        final long bookId = book.getId();
+        synchronized (PurchaseNotifier.class) {
+            final Map<Long, Character> changes = readChanges();
+            changes.remove(bookId);
+            changes.put(bookId, bought ? BOUGHT : SOLD);
+            final long now = SystemClock.elapsedRealtime();
+            long firstAt = mPrefs.getLong(KEY_FIRST_AT, 0L);
+            if (changes.size() == 1 || firstAt > now) {
+                firstAt = now;
+            }
+            mPrefs.edit().putString(KEY_CHANGES, writeChanges(changes)).putLong(KEY_FIRST_AT, firstAt)
+                    .putString(PREFIX_BOOK + bookId, encode(book)).commit();
+            final long at = Math.min(now + WINDOW, firstAt + MAX_DELAY);
+            final PendingIntent pendingIntent = PendingIntent.getService(mContext, 0, BookActionService.flushNotifications(mContext), PendingIntent.FLAG_UPDATE_CURRENT);
+            final AlarmManager alarmManager = AlarmUtil.getAlarmManager(mContext);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                // From KitKat set() is inexact and could defer the notification for minutes
+                setWindow(alarmManager, at, pendingIntent);
+            } else {
+                alarmManager.set(AlarmManager.ELAPSED_REALTIME, at, pendingIntent);
+            }
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static void setWindow(AlarmManager alarmManager, long at, PendingIntent pendingIntent) {
+        alarmManager.setWindow(AlarmManager.ELAPSED_REALTIME, at, ALARM_SLACK, pendingIntent);
+    }
+
+    /**
+     * Posts the pending changes as a single notification.
+     */
+    public void flush() {
+        final Map<Long, Character> changes;
+        final Map<Long, Book> books = new HashMap<>();
+        synchronized (PurchaseNotifier.class) {
+            changes = readChanges();
+            for (Long id : changes.keySet()) {
+                final Book book = decode(mPrefs.getString(PREFIX_BOOK + id, null));
+                if (book != null) {
+                    books.put(id, book);
+                }
+            }
+            mPrefs.edit().clear().commit();
+        }
+        if (changes.isEmpty()) {
+            return;
+        }
+        final List<Long> missing = new ArrayList<>(changes.keySet());
+        missing.removeAll(books.keySet());
+        if (!missing.isEmpty()) {
+            // Only the changes queued by a previous version don't carry their book
+            for (Book book : getBooks(missing)) {
+                books.put(book.getId(), book);
+            }
+        }
+        final List<Book> bought = new ArrayList<>();
+        final List<Book> sold = new ArrayList<>();
+        for (Map.Entry<Long, Character> change : changes.entrySet()) {
+            final Book book = books.get(change.getKey());
+            if (book != null) {
+                (change.getValue() == BOUGHT ? bought : sold).add(book);
+            }
+        }
+        if (bought.size() + sold.size() == 0) {
+            return;
+        }
+        final NotificationCompat.Builder builder = bought.size() + sold.size() == 1 ? single(bought, sold) : summary(bought, sold);
+        NotificationManagerCompat.from(mContext).notify(NOTIFICATION_ID, builder.build());
+        Log.d(TAG_LOG, "Notified " + bought.size() + " purchase(s) and " + sold.size() + " sale(s).");
+    }
+
+    private NotificationCompat.Builder single(List<Book> bought, List<Book> sold) {
+        final boolean purchase = !bought.isEmpty();
+        final Book book = purchase ? bought.get(0) : sold.get(0);
+        final NotificationCompat.Builder builder = new NotificationCompat.Builder(mContext);
+        builder.setSmallIcon(R.drawable.ic_launcher).setAutoCancel(true).setContentText(book.getTitle())
+                .setContentTitle(mContext.getString(purchase ? R.string.book_purchased : R.string.book_sold));
+        builder.setContentIntent(PendingIntent.getActivity(mContext, 0, HomeActivity.createFor(mContext, book), PendingIntent.FLAG_UPDATE_CURRENT));
+        if (purchase) {
+            // ONLY 4 WEARABLE(s)
+            final NotificationCompat.WearableExtender wearableExtender = new NotificationCompat.WearableExtender();
+            wearableExtender.setBackground(NotificationBitmaps.get(mContext).background(book.getTag()));
+            // ACTION TO SELL A BOOK FROM A WEARABLE
+            final PendingIntent sellIntent = PendingIntent.getService(mContext, 0, BookActionService.IntentBuilder.sell(mContext, book)
+                    .notificationId(NOTIFICATION_ID).wearableInput().build(), PendingIntent.FLAG_UPDATE_CURRENT);
+            wearableExtender.addAction(new NotificationCompat.Action.Builder(R.drawable.ic_action_sell, mContext.getString(R.string.action_sell), sellIntent).build());
+            builder.extend(wearableExtender);
+        }
+        return builder;
+    }
+
+    private NotificationCompat.Builder summary(List<Book> bought, List<Book> sold) {
+        final List<String> parts = new ArrayList<>();
+        if (!bought.isEmpty()) {
+            parts.add(mContext.getResources().getQuantityString(R.plurals.books_purchased, bought.size(), bought.size()));
+        }
+        if (!sold.isEmpty()) {
+            parts.add(mContext.getResources().getQuantityString(R.plurals.books_sold, sold.size(), sold.size()));
+        }
+        final String title = TextUtils.join(", ", parts);
+        final NotificationCompat.InboxStyle inbox = new NotificationCompat.InboxStyle().setBigContentTitle(title);
+        final NotificationCompat.WearableExtender wearableExtender = new NotificationCompat.WearableExtender();
+        final List<Book> all = new ArrayList<>(bought);
+        all.addAll(sold);
+        for (Book book : all) {
+            final String status = mContext.getString(bought.contains(book) ? R.string.book_purchased : R.string.book_sold);
+            inbox.addLine(book.getTitle());
+            // A page for each book on the wearable
+            wearableExtender.addPage(new NotificationCompat.Builder(mContext).setContentTitle(book.getTitle())
+                    .setStyle(new NotificationCompat.BigTextStyle().bigText(status + "\n" + book.getAuthor())).build());
+        }
+        wearableExtender.setBackground(NotificationBitmaps.get(mContext).background(all.get(0).getTag()));
+        final NotificationCompat.Builder builder = new NotificationCompat.Builder(mContext);
+        builder.setSmallIcon(R.drawable.ic_launcher).setAutoCancel(true).setContentTitle(title).setNumber(all.size())
+                .setContentText(all.get(0).getTitle()).setStyle(inbox);
+        builder.setContentIntent(PendingIntent.getActivity(mContext, 0, new Intent(mContext, HomeActivity.class), PendingIntent.FLAG_UPDATE_CURRENT));
+        builder.extend(wearableExtender);
+        return builder;
+    }
+
+    private List<Book> getBooks(Iterable<Long> ids) {
+        final List<String> args = new ArrayList<>();
+        final StringBuilder selection = new StringBuilder(BookDB.Book._ID).append(" IN (");
+        for (Long id : ids) {
+            selection.append(args.isEmpty() ? "?" : ",?");
+            args.add(String.valueOf(id));
+        }
+        selection.append(')');
+        final Cursor c = mContext.getContentResolver().query(BookDB.Book.CONTENT_URI, null, selection.toString(), args.toArray(new String[args.size()]), null);
+        try {
+            return Book.allFrom(c);
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Changes are stored as "id:B" or "id:S" separated by commas, in order.
+     */
+    private Map<Long, Character> readChanges() {
+        final Map<Long, Character> changes = new LinkedHashMap<>();
+        for (String change : TextUtils.split(mPrefs.getString(KEY_CHANGES, ""), ",")) {
+            final int separator = change.indexOf(':');
+            if (separator > 0 && separator < change.length() - 1) {
+                changes.put(Long.parseLong(change.substring(0, separator)), change.charAt(separator + 1));
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * The snapshot lives only until the notification is posted, a few seconds, so the Parcel
+     * form of the Book is good enough to store it.
+     */
+    private static String encode(Book book) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            book.writeToParcel(parcel, 0);
+            return Base64.encodeToString(parcel.marshall(), Base64.NO_WRAP);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static Book decode(String value) {
+        if (value == null) {
+            return null;
+        }
+        final Parcel parcel = Parcel.obtain();
+        try {
+            final byte[] bytes = Base64.decode(value, Base64.NO_WRAP);
+            parcel.unmarshall(bytes, 0, bytes.length);
+            parcel.setDataPosition(0);
+            return Book.CREATOR.createFromParcel(parcel);
+        } catch (RuntimeException e) {
+            Log.w(TAG_LOG, "Cannot restore a pending book.", e);
+            return null;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static String writeChanges(Map<Long, Character> changes) {
+        final StringBuilder builder = new StringBuilder();
+        for (Map.Entry<Long, Character> change : changes.entrySet()) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(change.getKey()).append(':').append(change.getValue());
+        }
+        return builder.toString();
+    }
+}
@@ -20,8 +20,11 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 
+import com.alchemiasoft.book.service.ReminderService;
+
 /**
- * Receiver that detects when the device boot has complete and schedule a book suggestion if set.
+ * Receiver that detects when the device boot has complete and schedule a book suggestion if set,
+ * arming again the alarm of the reading reminders.
  * <p/>
  * Created by Simone Casagranda on 27/12/14.
  */
@@ -31,5 +34,7 @@ public class BootCompletedReceiver extends BroadcastReceiver {
     public void onReceive(Context context, Intent intent) {
         // Start scheduling the suggestion
         SuggestionReceiver.scheduleSuggestion(context);
+        // The alarms don't survive a reboot while the reminders do
+        context.startService(ReminderService.rearm(context));
     }
 }
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2015 Simone Casagranda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alchemiasoft.book.receiver;
+
+import android.content.Context;
+import android.content.Intent;
+import android.support.v4.content.WakefulBroadcastReceiver;
+
+import com.alchemiasoft.book.service.ReminderService;
+
+/**
+ * WakefulBroadcastReceiver that spawns a ReminderService when the next reading reminder is due.
+ * <p/>
+ * Created by Simone Casagranda on 12/05/15.
+ */
+public class ReminderReceiver extends WakefulBroadcastReceiver {
+
+    /**
+     * Reminder action.
+     */
+    public static final String REMINDER_ACTION = "com.alchemiasoft.book.receiver.REMINDER";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        startWakefulService(context, ReminderService.fire(context));
+    }
+}
@@ -16,15 +16,21 @@
 
 package com.alchemiasoft.book.receiver;
 
+import android.annotation.TargetApi;
 import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Build;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
 import android.support.v4.content.WakefulBroadcastReceiver;
 import android.text.format.DateUtils;
 import android.util.Log;
 
 import com.alchemiasoft.book.service.SuggestionService;
+import com.alchemiasoft.book.suggestion.SuggestionScheduler;
+import com.alchemiasoft.book.suggestion.WakeupLog;
 import com.alchemiasoft.book.user.UserData;
 import com.alchemiasoft.common.util.AlarmUtil;
 
@@ -47,45 +53,120 @@ public class SuggestionReceiver extends WakefulBroadcastReceiver {
     private static final String SUGGESTION_ACTION = "com.alchemiasoft.book.receiver.SUGGESTION";
 
     /**
-     * Pending intent used for the Suggestion update.
+     * Extras used to account the wakeups.
      */
-    private static PendingIntent sPendingIntent;
+    public static final String EXTRA_SCHEDULED_AT = "com.alchemiasoft.book.receiver.SCHEDULED_AT";
+    public static final String EXTRA_RECEIVED_AT = "com.alchemiasoft.book.receiver.RECEIVED_AT";
+    public static final String EXTRA_RECEIVED_ELAPSED = "com.alchemiasoft.book.receiver.RECEIVED_ELAPSED";
+    public static final String EXTRA_TRIGGER = "com.alchemiasoft.book.receiver.TRIGGER";
 
     /**
-     * Schedule a suggestion alarm.
+     * Scheduler of the suggestion alarm, created with the first request.
+     */
+    private static SuggestionScheduler sScheduler;
+
+    /**
+     * Reschedules the suggestion when the user changes its interval.
+     */
+    private static UserData.Listener sIntervalListener;
+
+    /**
+     * Schedule a suggestion alarm, once the user data is available. The schedule follows the
+     * changes of the suggestion interval from then on.
      *
      * @param context reference.
-     * @return true if the alarm has been successfully scheduled, false otherwise.
      */
-    public static boolean scheduleSuggestion(Context context) {
-        final AlarmManager alarmManager = AlarmUtil.getAlarmManager(context);
-        if (sPendingIntent != null) {
-            alarmManager.cancel(sPendingIntent);
+    public static void scheduleSuggestion(Context context) {
+        final Context appContext = context.getApplicationContext();
+        final UserData userData = UserData.load(appContext);
+        if (sIntervalListener == null) {
+            sIntervalListener = new UserData.Listener() {
+                @Override
+                public void onUserDataChanged(@NonNull UserData.Snapshot snapshot, String key) {
+                    if (UserData.KEY_SUGGESTION_INTERVAL.equals(key)) {
+                        // The pending suggestion follows the old interval
+                        getScheduler(appContext).cancel();
+                        scheduleSuggestion(appContext, snapshot.suggestionInterval());
+                    }
+                }
+            };
+            userData.addListener(sIntervalListener);
         }
-        final UserData userData = UserData.load(context);
-        final UserData.SuggestionInterval interval = userData.suggestionInterval();
+        userData.whenLoaded(new UserData.Listener() {
+            @Override
+            public void onUserDataChanged(@NonNull UserData.Snapshot snapshot, String key) {
+                scheduleSuggestion(appContext, snapshot.suggestionInterval());
+            }
+        });
+    }
+
+    /**
+     * Schedule a suggestion alarm.
+     *
+     * @param context  reference.
+     * @param interval of the suggestion.
+     * @return true if the alarm has been armed, false if it's not needed or the armed one fits.
+     */
+    private static boolean scheduleSuggestion(Context context, UserData.SuggestionInterval interval) {
         if (interval == UserData.SuggestionInterval.NEVER) {
+            getScheduler(context).cancel();
             return false;
         }
-        final Intent intent = new Intent(SUGGESTION_ACTION);
-        sPendingIntent = PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_CANCEL_CURRENT);
-        final long refreshInMills = interval.seconds() * DateUtils.SECOND_IN_MILLIS;
-        Log.d(TAG_LOG, "AlarmReceiver: scheduling suggestion in " + interval.seconds() + " sec(s).");
-        alarmManager.set(AlarmManager.RTC, System.currentTimeMillis() + refreshInMills, sPendingIntent);
-        return true;
+        return getScheduler(context).schedule(interval.seconds() * DateUtils.SECOND_IN_MILLIS);
     }
 
     public static void cancelSuggestion(Context context) {
-        if (sPendingIntent != null) {
-            Log.d(TAG_LOG, "AlarmReceiver: cancelling pending suggestion.");
-            final AlarmManager alarmManager = AlarmUtil.getAlarmManager(context);
-            alarmManager.cancel(sPendingIntent);
+        Log.d(TAG_LOG, "AlarmReceiver: cancelling pending suggestion.");
+        getScheduler(context).cancel();
+    }
+
+    private static synchronized SuggestionScheduler getScheduler(Context context) {
+        if (sScheduler == null) {
+            final Context appContext = context.getApplicationContext();
+            sScheduler = new SuggestionScheduler(SuggestionScheduler.Clock.SYSTEM, new SuggestionScheduler.AlarmSink() {
+
+                @Override
+                public void arm(long at, long window) {
+                    final AlarmManager alarmManager = AlarmUtil.getAlarmManager(appContext);
+                    final Intent intent = new Intent(SUGGESTION_ACTION).putExtra(EXTRA_SCHEDULED_AT, at);
+                    final PendingIntent pendingIntent = PendingIntent.getBroadcast(appContext, 0, intent, PendingIntent.FLAG_CANCEL_CURRENT);
+                    Log.d(TAG_LOG, "AlarmReceiver: scheduling suggestion at " + at + " within " + window + " ms.");
+                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                        setWindow(alarmManager, at, window, pendingIntent);
+                    } else {
+                        alarmManager.set(AlarmManager.RTC, at, pendingIntent);
+                    }
+                }
+
+                @Override
+                public void disarm() {
+                    // Looking for the same broadcast, it could have been armed by a previous process
+                    final Intent intent = new Intent(SUGGESTION_ACTION);
+                    final PendingIntent pendingIntent = PendingIntent.getBroadcast(appContext, 0, intent, PendingIntent.FLAG_NO_CREATE);
+                    if (pendingIntent != null) {
+                        AlarmUtil.getAlarmManager(appContext).cancel(pendingIntent);
+                        pendingIntent.cancel();
+                    }
+                }
+            });
         }
+        return sScheduler;
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static void setWindow(AlarmManager alarmManager, long at, long window, PendingIntent pendingIntent) {
+        alarmManager.setWindow(AlarmManager.RTC, at, window, pendingIntent);
     }
 
     @Override
     public void onReceive(Context context, Intent intent) {
+        getScheduler(context).onFired();
         final Intent serviceIntent = new Intent(context, SuggestionService.class);
+        // Timing the wakeup from here, the wakelock is acquired right after
+        serviceIntent.putExtra(EXTRA_RECEIVED_AT, System.currentTimeMillis());
+        serviceIntent.putExtra(EXTRA_RECEIVED_ELAPSED, SystemClock.elapsedRealtime());
+        serviceIntent.putExtra(EXTRA_SCHEDULED_AT, intent.getLongExtra(EXTRA_SCHEDULED_AT, 0L));
+        serviceIntent.putExtra(EXTRA_TRIGGER, SUGGESTION_ACTION.equals(intent.getAction()) ? WakeupLog.TRIGGER_ALARM : WakeupLog.TRIGGER_UNKNOWN);
         startWakefulService(context, serviceIntent);
     }
 }
@@ -0,0 +1,396 @@
+/*
+ * Copyright 2015 Simone Casagranda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alchemiasoft.book.reminder;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.alchemiasoft.common.util.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistent hierarchical timing wheel that holds the reading reminders, one for each book.
+ * <p/>
+ * Time is divided in ticks of a minute. The reminders of the current hour sit in a wheel of
+ * minutes, the ones of the current day in a wheel of hours, the ones of the current 64 days in a
+ * wheel of days and the farther ones in an overflow list. When the time crosses an hour (or a
+ * day) the matching slot of the upper wheel is spread in the lower one. Scheduling and
+ * cancelling are O(1), and the next due reminder is found by looking at the first non-empty
+ * slot of the lowest non-empty wheel, so a single alarm is enough whatever the number of
+ * reminders and the reminders of the same minute are fired together.
+ * <p/>
+ * Created by Simone Casagranda on 12/05/15.
+ */
+public final class ReminderWheel {
+
+    /**
+     * Tag used for logging.
+     */
+    private static final String TAG_LOG = ReminderWheel.class.getSimpleName();
+
+    private static final String FILE_NAME = "reminders";
+    private static final int FORMAT_VERSION = 1;
+
+    private static final long TICK = DateUtils.MINUTE_IN_MILLIS;
+
+    /**
+     * Slots of each wheel and ticks covered by a slot of each wheel.
+     */
+    private static final int MINUTES = 60;
+    private static final int HOURS = 24;
+    private static final int DAYS = 64;
+    private static final long TICKS_PER_HOUR = MINUTES;
+    private static final long TICKS_PER_DAY = TICKS_PER_HOUR * HOURS;
+    private static final long TICKS_PER_SPAN = TICKS_PER_DAY * DAYS;
+
+    private static ReminderWheel sInstance;
+
+    private final File mFile;
+
+    /**
+     * Due time of the reminder of each book, the wheels hold the book ids.
+     */
+    private final Map<Long, Long> mDueAt = new HashMap<>();
+    private final Wheel mMinutes = new Wheel(MINUTES);
+    private final Wheel mHours = new Wheel(HOURS);
+    private final Wheel mDays = new Wheel(DAYS);
+    private final Set<Long> mOverflow = new HashSet<>();
+    private final Set<Long> mOverdue = new HashSet<>();
+
+    private long mCurrent;
+
+    private ReminderWheel(Context context) {
+        this(new File(context.getApplicationContext().getFilesDir(), FILE_NAME), System.currentTimeMillis());
+    }
+
+    /**
+     * @param file where the reminders are persisted.
+     * @param now  wall clock time the wheels start from.
+     */
+    ReminderWheel(File file, long now) {
+        mFile = file;
+        mCurrent = tickOf(now);
+    }
+
+    public static synchronized ReminderWheel get(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new ReminderWheel(context);
+            sInstance.load();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Schedules the reminder of a book, replacing the previous one (if any).
+     *
+     * @param bookId of the book to remind.
+     * @param at     wall clock time of the reminder.
+     */
+    public synchronized void schedule(long bookId, long at) {
+        remove(bookId);
+        mDueAt.put(bookId, at);
+        insert(bookId, at);
+        save();
+    }
+
+    /**
+     * @param bookId of the book.
+     * @return true if a reminder has been cancelled, false if there was none.
+     */
+    public synchronized boolean cancel(long bookId) {
+        if (!remove(bookId)) {
+            return false;
+        }
+        save();
+        return true;
+    }
+
+    /**
+     * @param bookId of the book.
+     * @return the time of the reminder of the book or 0 if there's none.
+     */
+    public synchronized long getReminder(long bookId) {
+        final Long at = mDueAt.get(bookId);
+        return at == null ? 0L : at;
+    }
+
+    /**
+     * Moves the wheels up to the given time, removing the due reminders.
+     *
+     * @param now wall clock time.
+     * @return the ids of the books whose reminder is due.
+     */
+    public synchronized List<Long> advance(long now) {
+        final long target = tickOf(now);
+        while (mCurrent < target) {
+            mCurrent = skip(target);
+            if (mCurrent % TICKS_PER_HOUR == 0) {
+                if (mCurrent % TICKS_PER_DAY == 0) {
+                    if (mCurrent % TICKS_PER_SPAN == 0) {
+                        final List<Long> bookIds = new ArrayList<>(mOverflow);
+                        mOverflow.clear();
+                        reinsert(bookIds);
+                    }
+                    cascade(mDays, mCurrent / TICKS_PER_DAY);
+                }
+                cascade(mHours, mCurrent / TICKS_PER_HOUR);
+            }
+            final Set<Long> slot = mMinutes.slot(mCurrent);
+            mOverdue.addAll(slot);
+            mMinutes.clear(slot);
+        }
+        final List<Long> due = new ArrayList<>(mOverdue);
+        for (Long bookId : due) {
+            mDueAt.remove(bookId);
+        }
+        mOverdue.clear();
+        if (!due.isEmpty()) {
+            save();
+        }
+        Log.d(TAG_LOG, due.size() + " due reminder(s), " + mDueAt.size() + " pending.");
+        return due;
+    }
+
+    /**
+     * @return the wall clock time of the next due reminder or 0 if there's none.
+     */
+    public synchronized long nextDueAt() {
+        if (!mOverdue.isEmpty()) {
+            return System.currentTimeMillis();
+        }
+        Set<Long> slot = null;
+        if (mMinutes.size() > 0) {
+            slot = firstSlot(mMinutes, mCurrent + 1, TICKS_PER_HOUR, 1L);
+        } else if (mHours.size() > 0) {
+            slot = firstSlot(mHours, mCurrent / TICKS_PER_HOUR + 1, HOURS, TICKS_PER_HOUR);
+        } else if (mDays.size() > 0) {
+            slot = firstSlot(mDays, mCurrent / TICKS_PER_DAY + 1, DAYS, TICKS_PER_DAY);
+        } else if (!mOverflow.isEmpty()) {
+            slot = mOverflow;
+        }
+        if (slot == null) {
+            return 0L;
+        }
+        long next = Long.MAX_VALUE;
+        for (Long bookId : slot) {
+            next = Math.min(next, mDueAt.get(bookId));
+        }
+        return next;
+    }
+
+    /**
+     * @return the first non-empty slot of the wheel starting from the given position up to the
+     * end of the span of the upper wheel.
+     */
+    private Set<Long> firstSlot(Wheel wheel, long from, long span, long ticksPerSlot) {
+        final long end = (mCurrent / (ticksPerSlot * span) + 1) * span;
+        for (long i = from; i < end; i++) {
+            final Set<Long> slot = wheel.slot(i);
+            if (!slot.isEmpty()) {
+                return slot;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the next tick that has something to do, jumping the empty wheels.
+     */
+    private long skip(long target) {
+        long next = mCurrent + 1;
+        if (mMinutes.size() == 0) {
+            next = Math.max(next, ceil(mCurrent + 1, TICKS_PER_HOUR));
+            if (mHours.size() == 0) {
+                next = Math.max(next, ceil(mCurrent + 1, TICKS_PER_DAY));
+                if (mDays.size() == 0) {
+                    next = Math.max(next, ceil(mCurrent + 1, TICKS_PER_SPAN));
+                }
+            }
+        }
+        return Math.min(next, target);
+    }
+
+    private static long ceil(long tick, long unit) {
+        return (tick + unit - 1) / unit * unit;
+    }
+
+    /**
+     * Spreads a slot of an upper wheel in the lower ones.
+     */
+    private void cascade(Wheel wheel, long position) {
+        final Set<Long> slot = wheel.slot(position);
+        if (slot.isEmpty()) {
+            return;
+        }
+        final List<Long> bookIds = new ArrayList<>(slot);
+        wheel.clear(slot);
+        reinsert(bookIds);
+    }
+
+    private void reinsert(List<Long> bookIds) {
+        for (Long bookId : bookIds) {
+            insert(bookId, mDueAt.get(bookId));
+        }
+    }
+
+    private void insert(long bookId, long at) {
+        final long tick = tickOf(at);
+        if (tick <= mCurrent) {
+            mOverdue.add(bookId);
+        } else if (tick / TICKS_PER_HOUR == mCurrent / TICKS_PER_HOUR) {
+            mMinutes.add(tick, bookId);
+        } else if (tick / TICKS_PER_DAY == mCurrent / TICKS_PER_DAY) {
+            mHours.add(tick / TICKS_PER_HOUR, bookId);
+        } else if (tick / TICKS_PER_SPAN == mCurrent / TICKS_PER_SPAN) {
+            mDays.add(tick / TICKS_PER_DAY, bookId);
+        } else {
+            mOverflow.add(bookId);
+        }
+    }
+
+    /**
+     * The position of a reminder only depends on its due time and on the current tick.
+     */
+    private boolean remove(long bookId) {
+        final Long at = mDueAt.remove(bookId);
+        if (at == null) {
+            return false;
+        }
+        final long tick = tickOf(at);
+        if (tick <= mCurrent) {
+            mOverdue.remove(bookId);
+        } else if (tick / TICKS_PER_HOUR == mCurrent / TICKS_PER_HOUR) {
+            mMinutes.remove(tick, bookId);
+        } else if (tick / TICKS_PER_DAY == mCurrent / TICKS_PER_DAY) {
+            mHours.remove(tick / TICKS_PER_HOUR, bookId);
+        } else if (tick / TICKS_PER_SPAN == mCurrent / TICKS_PER_SPAN) {
+            mDays.remove(tick / TICKS_PER_DAY, bookId);
+        } else {
+            mOverflow.remove(bookId);
+        }
+        return true;
+    }
+
+    private static long tickOf(long time) {
+        return time / TICK;
+    }
+
+    void load() {
+        if (!mFile.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != FORMAT_VERSION) {
+                return;
+            }
+            final int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                final long bookId = in.readLong();
+                final long at = in.readLong();
+                mDueAt.put(bookId, at);
+                // The reminders missed while the process was dead end up overdue
+                insert(bookId, at);
+            }
+        } catch (IOException e) {
+            Log.e(TAG_LOG, "Cannot restore the reminders.", e);
+        } finally {
+            IOUtils.closeSilently(in);
+        }
+    }
+
+    private void save() {
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(mDueAt.size());
+            for (Map.Entry<Long, Long> entry : mDueAt.entrySet()) {
+                out.writeLong(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mFile)) {
+                Log.e(TAG_LOG, "Cannot replace " + mFile);
+            }
+        } catch (IOException e) {
+            Log.e(TAG_LOG, "Cannot save the reminders.", e);
+        } finally {
+            IOUtils.closeSilently(out);
+        }
+    }
+
+    /**
+     * Ring of slots that keeps count of the reminders it holds.
+     */
+    private static final class Wheel {
+
+        private final List<Set<Long>> mSlots;
+        private int mSize;
+
+        private Wheel(int slots) {
+            mSlots = new ArrayList<>(slots);
+            for (int i = 0; i < slots; i++) {
+                mSlots.add(new HashSet<Long>());
+            }
+        }
+
+        private Set<Long> slot(long position) {
+            return mSlots.get((int) (position % mSlots.size()));
+        }
+
+        private void add(long position, long bookId) {
+            if (slot(position).add(bookId)) {
+                mSize++;
+            }
+        }
+
+        private void remove(long position, long bookId) {
+            if (slot(position).remove(bookId)) {
+                mSize--;
+            }
+        }
+
+        private void clear(Set<Long> slot) {
+            mSize -= slot.size();
+            slot.clear();
+        }
+
+        private int size() {
+            return mSize;
+        }
+    }
+}
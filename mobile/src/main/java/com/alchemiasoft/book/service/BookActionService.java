@@ -17,55 +17,42 @@
 package com.alchemiasoft.book.service;
 
 import android.annotation.TargetApi;
-import android.app.IntentService;
-import android.app.PendingIntent;
-import android.content.ContentResolver;
-import android.content.ContentValues;
+import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
-import android.graphics.BitmapFactory;
-import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.support.annotation.NonNull;
-import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.NotificationManagerCompat;
 import android.support.v4.app.RemoteInput;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.alchemiasoft.book.R;
-import com.alchemiasoft.book.activity.HomeActivity;
-import com.alchemiasoft.common.content.BookDB;
+import com.alchemiasoft.book.notification.PurchaseNotifier;
+import com.alchemiasoft.book.suggestion.Recommender;
+import com.alchemiasoft.common.content.BookClient;
 import com.alchemiasoft.common.model.Book;
-import com.alchemiasoft.common.sync.Event;
-import com.google.android.gms.common.ConnectionResult;
-import com.google.android.gms.common.GooglePlayServicesUtil;
-import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.wearable.Wearable;
-
-import java.util.concurrent.TimeUnit;
+import com.alchemiasoft.common.sync.OutboxService;
+import com.alchemiasoft.common.util.StripedExecutor;
 
 /**
  * Service that allows to perform actions like purchase, sell and annotate books.
  * <p/>
+ * The actions on the same book are performed one at a time and in order, while the actions on
+ * different books run in parallel, so that tapping several books doesn't queue each action
+ * behind the previous ones. The service stops once all the submitted actions are completed.
+ * <p/>
  * Created by Simone Casagranda on 28/12/14.
  */
-public class BookActionService extends IntentService {
+public class BookActionService extends Service {
 
     /**
      * Tag used for logging purposes.
      */
     private static final String TAG_LOG = BookActionService.class.getSimpleName();
 
-    private static final int NOTIFICATION_ID = 37;
-
-    /**
-     * Timeout for the GooglePlayClient connection in milliseconds.
-     */
-    private static final long GOOGLE_PLAY_TIMEOUT = 2000L;
-
     /**
      * Available params.
      */
@@ -84,11 +71,27 @@ public class BookActionService extends IntentService {
      */
     private static final int NOT_VALID_NOTIFICATION = -1;
 
+    /**
+     * Lanes (books served in parallel) and actions that can be queued in each lane.
+     */
+    private static final int LANES = 4;
+    private static final int LANE_CAPACITY = 32;
+
+    private static final StripedExecutor EXECUTOR = new StripedExecutor(TAG_LOG, LANES, LANE_CAPACITY);
+
     /**
      * Available actions.
      */
     private static enum Action {
-        BUY, SELL, ADD_NOTE
+        BUY, SELL, ADD_NOTE, FLUSH_NOTIFICATIONS
+    }
+
+    /**
+     * @param context used to create the Intent.
+     * @return the Intent that posts the pending purchase notifications.
+     */
+    public static Intent flushNotifications(@NonNull Context context) {
+        return new Intent(context, BookActionService.class).setAction(Action.FLUSH_NOTIFICATIONS.name());
     }
 
     public static final class IntentBuilder {
@@ -153,31 +156,22 @@ public class BookActionService extends IntentService {
 
     }
 
-    private GoogleApiClient mGoogleApiClient;
-
-    public BookActionService() {
-        super(TAG_LOG);
-    }
+    /**
+     * Actions submitted and not completed yet, and the id of the latest start request.
+     */
+    private int mPending;
+    private int mLastStartId;
 
     @Override
-    public void onCreate() {
-        super.onCreate();
-        if (GooglePlayServicesUtil.isGooglePlayServicesAvailable(this) == ConnectionResult.SUCCESS) {
-            mGoogleApiClient = new GoogleApiClient.Builder(this).addApi(Wearable.API).build();
+    public int onStartCommand(final Intent intent, int flags, int startId) {
+        synchronized (this) {
+            mPending++;
+            mLastStartId = startId;
         }
-    }
-
-    @Override
-    public void onDestroy() {
-        super.onDestroy();
-        // Always disconnect the client
-        if (mGoogleApiClient != null) {
-            mGoogleApiClient.disconnect();
+        if (intent == null) {
+            onCompleted();
+            return START_NOT_STICKY;
         }
-    }
-
-    @Override
-    protected void onHandleIntent(Intent intent) {
         final int notificationId = intent.getIntExtra(EXTRA_NOTIFICATION_ID, NOT_VALID_NOTIFICATION);
         // Cancelling any shown notification
         if (notificationId != NOT_VALID_NOTIFICATION) {
@@ -185,60 +179,73 @@ public class BookActionService extends IntentService {
             NotificationManagerCompat.from(this).cancel(notificationId);
         }
         final long bookId = intent.getLongExtra(EXTRA_BOOK_ID, NOT_VALID_BOOK);
+        final boolean accepted = EXECUTOR.execute(bookId, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handle(intent, bookId);
+                } finally {
+                    onCompleted();
+                }
+            }
+        });
+        if (!accepted) {
+            Log.e(TAG_LOG, "Too many pending actions, dropping " + intent.getAction() + " on book with id=" + bookId);
+            onCompleted();
+        }
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    private synchronized void onCompleted() {
+        if (--mPending == 0) {
+            stopSelf(mLastStartId);
+        }
+    }
+
+    private void handle(Intent intent, long bookId) {
+        if (Action.FLUSH_NOTIFICATIONS.name().equals(intent.getAction())) {
+            PurchaseNotifier.from(this).flush();
+            return;
+        }
         if (bookId != NOT_VALID_BOOK) {
-            final ContentResolver cr = getContentResolver();
+            final BookClient client = BookClient.from(this);
             final Action action = Action.valueOf(intent.getAction());
             Log.d(TAG_LOG, "Performing action=" + action + " on book with id=" + bookId);
-            final ContentValues cv = new ContentValues();
-            cv.put(BookDB.Book.UPDATED_AT, System.currentTimeMillis());
-            final Uri uri = BookDB.Book.create(bookId);
+            // The provider stores the change in the outbox and returns the updated book
             switch (action) {
                 case BUY:
-                    cv.put(BookDB.Book.OWNED, 1);
-                    if (cr.update(uri, cv, null, null) == 1 && intent.getBooleanExtra(EXTRA_WEARABLE_INPUT, false)) {
-                        final Book book = getBook(bookId);
-                        if (book != null) {
-                            final NotificationCompat.Builder builder = new NotificationCompat.Builder(this);
-                            builder.setSmallIcon(R.drawable.ic_launcher).setAutoCancel(true).setContentTitle(getString(R.string.book_purchased)).setContentText(book.getTitle());
-                            builder.setContentIntent(PendingIntent.getActivity(this, 0, HomeActivity.createFor(this, book), PendingIntent.FLAG_UPDATE_CURRENT));
-
-                            // ONLY 4 WEARABLE(s)
-                            final NotificationCompat.WearableExtender wearableExtender = new NotificationCompat.WearableExtender();
-                            wearableExtender.setBackground(BitmapFactory.decodeResource(getResources(), R.drawable.background));
-                            // ACTION TO SELL A BOOK FROM A WEARABLE
-                            final PendingIntent sellIntent = PendingIntent.getService(this, 0, BookActionService.IntentBuilder.sell(this, book).notificationId(NOTIFICATION_ID).wearableInput().build(), PendingIntent.FLAG_UPDATE_CURRENT);
-                            wearableExtender.addAction(new NotificationCompat.Action.Builder(R.drawable.ic_action_sell, getString(R.string.action_sell), sellIntent).build());
-                            // Finally extending the notification
-                            builder.extend(wearableExtender);
-
-                            NotificationManagerCompat.from(this).notify(NOTIFICATION_ID, builder.build());
+                    final Book bought = client.buy(bookId);
+                    if (bought != null) {
+                        Recommender.get(this).onBought(bought);
+                        if (intent.getBooleanExtra(EXTRA_WEARABLE_INPUT, false)) {
+                            PurchaseNotifier.from(this).add(bought, true);
                         }
                     }
                     // We want to sync with the wearable
-                    trySyncDataWithWearableLayer(uri, cv);
+                    OutboxService.drain(this);
                     break;
                 case SELL:
-                    cv.put(BookDB.Book.OWNED, 0);
-                    if (cr.update(uri, cv, null, null) == 1 && intent.getBooleanExtra(EXTRA_WEARABLE_INPUT, false)) {
-                        final Book book = getBook(bookId);
-                        if (book != null) {
-                            final NotificationCompat.Builder builder = new NotificationCompat.Builder(this);
-                            builder.setSmallIcon(R.drawable.ic_launcher).setAutoCancel(true).setContentTitle(getString(R.string.book_sold)).setContentText(book.getTitle());
-                            builder.setContentIntent(PendingIntent.getActivity(this, 0, HomeActivity.createFor(this, book), PendingIntent.FLAG_UPDATE_CURRENT));
-
-                            NotificationManagerCompat.from(this).notify(NOTIFICATION_ID, builder.build());
+                    final Book sold = client.sell(bookId);
+                    if (sold != null) {
+                        Recommender.get(this).onSold(sold);
+                        if (intent.getBooleanExtra(EXTRA_WEARABLE_INPUT, false)) {
+                            PurchaseNotifier.from(this).add(sold, false);
                         }
                     }
                     // We want to sync with the wearable
-                    trySyncDataWithWearableLayer(uri, cv);
+                    OutboxService.drain(this);
                     break;
                 case ADD_NOTE:
                     final CharSequence notes = getExtraNotes(intent);
                     if (!TextUtils.isEmpty(notes)) {
-                        cv.put(BookDB.Book.NOTES, notes.toString());
-                        cr.update(uri, cv, null, null);
+                        client.addNote(bookId, notes.toString());
                         // We want to sync with the wearable
-                        trySyncDataWithWearableLayer(uri, cv);
+                        OutboxService.drain(this);
                     }
                     break;
                 default:
@@ -247,30 +254,6 @@ public class BookActionService extends IntentService {
         }
     }
 
-    private void trySyncDataWithWearableLayer(final Uri uri, ContentValues data) {
-        if (mGoogleApiClient != null) {
-            if (!mGoogleApiClient.isConnected() && !mGoogleApiClient.blockingConnect(GOOGLE_PLAY_TIMEOUT, TimeUnit.MILLISECONDS).isSuccess()) {
-                Log.e(TAG_LOG, "Cannot connect to GoogleApiClient.");
-                return;
-            }
-            Wearable.DataApi.putDataItem(mGoogleApiClient, Event.DataApi.Builder.create(uri, data).asRequest());
-        } else {
-            Log.e(TAG_LOG, "GoogleApiClient not available.");
-        }
-    }
-
-    private Book getBook(long bookId) {
-        final Cursor c = getContentResolver().query(BookDB.Book.create(bookId), null, null, null, null);
-        try {
-            if (c.moveToNext()) {
-                return Book.oneFrom(c);
-            }
-        } finally {
-            c.close();
-        }
-        return null;
-    }
-
     @TargetApi(Build.VERSION_CODES.KITKAT_WATCH)
     private CharSequence getExtraNotes(Intent intent) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT_WATCH) {
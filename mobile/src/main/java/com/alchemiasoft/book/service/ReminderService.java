@@ -0,0 +1,196 @@
+/*
+ * Copyright 2015 Simone Casagranda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alchemiasoft.book.service;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.support.annotation.NonNull;
+import android.support.v4.app.NotificationCompat;
+import android.support.v4.app.NotificationManagerCompat;
+import android.util.Log;
+
+import com.alchemiasoft.book.R;
+import com.alchemiasoft.book.activity.HomeActivity;
+import com.alchemiasoft.book.notification.NotificationBitmaps;
+import com.alchemiasoft.book.receiver.ReminderReceiver;
+import com.alchemiasoft.book.reminder.ReminderWheel;
+import com.alchemiasoft.common.content.BookDB;
+import com.alchemiasoft.common.model.Book;
+import com.alchemiasoft.common.util.AlarmUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * IntentService that schedules the reading reminders and notifies the due ones.
+ * <p/>
+ * A single alarm is armed for the next due reminder of the {@link ReminderWheel}, and all the
+ * reminders due when it fires are notified together.
+ * <p/>
+ * Created by Simone Casagranda on 12/05/15.
+ */
+public class ReminderService extends IntentService {
+
+    /**
+     * Tag used for logging.
+     */
+    private static final String TAG_LOG = ReminderService.class.getSimpleName();
+
+    private static final int NOTIFICATION_ID = 41;
+
+    /**
+     * Available params.
+     */
+    private static final String EXTRA_BOOK_ID = "com.alchemiasoft.book.service.reminder.BOOK_ID";
+    private static final String EXTRA_AT = "com.alchemiasoft.book.service.reminder.AT";
+
+    /**
+     * Available actions.
+     */
+    private static enum Action {
+        SCHEDULE, CANCEL, FIRE, REARM
+    }
+
+    /**
+     * @param context used to create the Intent.
+     * @param book    to remind.
+     * @param at      wall clock time of the reminder.
+     * @return the Intent that schedules the reminder of the book.
+     */
+    public static Intent schedule(@NonNull Context context, @NonNull Book book, long at) {
+        return new Intent(context, ReminderService.class).setAction(Action.SCHEDULE.name())
+                .putExtra(EXTRA_BOOK_ID, book.getId()).putExtra(EXTRA_AT, at);
+    }
+
+    /**
+     * @param context used to create the Intent.
+     * @param book    whose reminder has to be cancelled.
+     * @return the Intent that cancels the reminder of the book.
+     */
+    public static Intent cancel(@NonNull Context context, @NonNull Book book) {
+        return new Intent(context, ReminderService.class).setAction(Action.CANCEL.name()).putExtra(EXTRA_BOOK_ID, book.getId());
+    }
+
+    /**
+     * @param context used to create the Intent.
+     * @return the Intent that notifies the due reminders.
+     */
+    public static Intent fire(@NonNull Context context) {
+        return new Intent(context, ReminderService.class).setAction(Action.FIRE.name());
+    }
+
+    /**
+     * @param context used to create the Intent.
+     * @return the Intent that arms the alarm again, e.g. after a reboot.
+     */
+    public static Intent rearm(@NonNull Context context) {
+        return new Intent(context, ReminderService.class).setAction(Action.REARM.name());
+    }
+
+    public ReminderService() {
+        super(TAG_LOG);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        final ReminderWheel wheel = ReminderWheel.get(this);
+        final long bookId = intent.getLongExtra(EXTRA_BOOK_ID, Book.NOT_VALID);
+        switch (Action.valueOf(intent.getAction())) {
+            case SCHEDULE:
+                wheel.schedule(bookId, intent.getLongExtra(EXTRA_AT, 0L));
+                break;
+            case CANCEL:
+                wheel.cancel(bookId);
+                break;
+            case FIRE:
+                notify(wheel.advance(System.currentTimeMillis()));
+                break;
+            case REARM:
+                break;
+        }
+        arm(wheel.nextDueAt());
+        // Completing the Wakeful Intent (if any)
+        ReminderReceiver.completeWakefulIntent(intent);
+    }
+
+    /**
+     * Keeps a single alarm for the next due reminder.
+     */
+    private void arm(long at) {
+        final AlarmManager alarmManager = AlarmUtil.getAlarmManager(this);
+        final PendingIntent pendingIntent = PendingIntent.getBroadcast(this, 0, new Intent(ReminderReceiver.REMINDER_ACTION), PendingIntent.FLAG_UPDATE_CURRENT);
+        if (at == 0L) {
+            alarmManager.cancel(pendingIntent);
+            return;
+        }
+        Log.d(TAG_LOG, "Next reminder at " + at);
+        alarmManager.set(AlarmManager.RTC_WAKEUP, at, pendingIntent);
+    }
+
+    private void notify(List<Long> bookIds) {
+        final List<Book> books = getBooks(bookIds);
+        if (books.isEmpty()) {
+            return;
+        }
+        final Book first = books.get(0);
+        final NotificationCompat.Builder builder = new NotificationCompat.Builder(this);
+        builder.setSmallIcon(R.drawable.ic_launcher).setAutoCancel(true);
+        final NotificationCompat.WearableExtender wearableExtender = new NotificationCompat.WearableExtender();
+        wearableExtender.setBackground(NotificationBitmaps.get(this).background(first.getTag()));
+        if (books.size() == 1) {
+            builder.setContentTitle(getString(R.string.reminder_title)).setContentText(first.getTitle());
+            builder.setContentIntent(PendingIntent.getActivity(this, 0, HomeActivity.createFor(this, first), PendingIntent.FLAG_UPDATE_CURRENT));
+        } else {
+            final String title = getResources().getQuantityString(R.plurals.books_to_read, books.size(), books.size());
+            final NotificationCompat.InboxStyle inbox = new NotificationCompat.InboxStyle().setBigContentTitle(title);
+            for (Book book : books) {
+                inbox.addLine(book.getTitle());
+                // A page for each book on the wearable
+                wearableExtender.addPage(new NotificationCompat.Builder(this).setContentTitle(book.getTitle())
+                        .setStyle(new NotificationCompat.BigTextStyle().bigText(book.getAuthor())).build());
+            }
+            builder.setContentTitle(title).setContentText(first.getTitle()).setNumber(books.size()).setStyle(inbox);
+            builder.setContentIntent(PendingIntent.getActivity(this, 0, new Intent(this, HomeActivity.class), PendingIntent.FLAG_UPDATE_CURRENT));
+        }
+        builder.extend(wearableExtender);
+        NotificationManagerCompat.from(this).notify(NOTIFICATION_ID, builder.build());
+        Log.d(TAG_LOG, "Notified " + books.size() + " reminder(s).");
+    }
+
+    private List<Book> getBooks(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+        final List<String> args = new ArrayList<>();
+        final StringBuilder selection = new StringBuilder(BookDB.Book._ID).append(" IN (");
+        for (Long id : ids) {
+            selection.append(args.isEmpty() ? "?" : ",?");
+            args.add(String.valueOf(id));
+        }
+        selection.append(')');
+        final Cursor c = getContentResolver().query(BookDB.Book.CONTENT_URI, null, selection.toString(), args.toArray(new String[args.size()]), null);
+        try {
+            return Book.allFrom(c);
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -18,10 +18,9 @@ package com.alchemiasoft.book.service;
 
 import android.app.IntentService;
 import android.app.PendingIntent;
-import android.content.ContentResolver;
 import android.content.Intent;
 import android.database.Cursor;
-import android.graphics.BitmapFactory;
+import android.os.SystemClock;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.NotificationManagerCompat;
 import android.support.v4.app.RemoteInput;
@@ -29,9 +28,12 @@ import android.util.Log;
 
 import com.alchemiasoft.book.R;
 import com.alchemiasoft.book.activity.HomeActivity;
+import com.alchemiasoft.book.notification.NotificationBitmaps;
 import com.alchemiasoft.common.content.BookDB;
 import com.alchemiasoft.common.model.Book;
 import com.alchemiasoft.book.receiver.SuggestionReceiver;
+import com.alchemiasoft.book.suggestion.Recommender;
+import com.alchemiasoft.book.suggestion.WakeupLog;
 
 /**
  * IntentService that takes care of suggesting the user to buy a book that he doesn't already own.
@@ -44,8 +46,10 @@ public class SuggestionService extends IntentService {
 
     private static final int ID_SUGGESTION = 23;
 
-    private static final String SELECTION = BookDB.Book.OWNED + " = ?";
-    private static final String[] SELECT_NOT_OWNED = {String.valueOf(0)};
+    /**
+     * Candidates that are checked before giving up, when the ranking is stale.
+     */
+    private static final int MAX_ATTEMPTS = 3;
 
     public SuggestionService() {
         super(TAG_LOG);
@@ -54,16 +58,30 @@ public class SuggestionService extends IntentService {
     @Override
     protected void onHandleIntent(Intent intent) {
         Log.d(TAG_LOG, "Starting a new book suggestion...");
-        final ContentResolver cr = getContentResolver();
-        final Cursor c = cr.query(BookDB.Book.CONTENT_URI, null, SELECTION, SELECT_NOT_OWNED, null);
+        final long startedAt = SystemClock.elapsedRealtime();
+        final long receivedAt = intent.getLongExtra(SuggestionReceiver.EXTRA_RECEIVED_ELAPSED, startedAt);
+        final long scheduledAt = intent.getLongExtra(SuggestionReceiver.EXTRA_SCHEDULED_AT, 0L);
+        final WakeupLog.Wakeup wakeup = WakeupLog.Wakeup.create(intent.getLongExtra(SuggestionReceiver.EXTRA_RECEIVED_AT, System.currentTimeMillis()),
+                intent.getIntExtra(SuggestionReceiver.EXTRA_TRIGGER, WakeupLog.TRIGGER_UNKNOWN)).startDelay(startedAt - receivedAt);
+        if (scheduledAt > 0L) {
+            wakeup.alarmDelay(wakeup.at() - scheduledAt);
+        }
+        final Recommender recommender = Recommender.get(this);
         Book book = null;
-        try {
-            if (c.moveToNext()) {
-                book = Book.oneFrom(c);
+        for (int attempt = 0; attempt < MAX_ATTEMPTS && book == null; attempt++) {
+            final long bookId = recommender.next();
+            if (bookId == Book.NOT_VALID) {
+                break;
+            }
+            book = getBook(bookId);
+            if (book != null && book.isOwned()) {
+                // Bought on another node, the ranking learns it now
+                recommender.onBought(book);
+                book = null;
             }
-        } finally {
-            c.close();
         }
+        final long queriedAt = SystemClock.elapsedRealtime();
+        wakeup.queryTime(queriedAt - startedAt);
         // Showing a notification if a not owned book is found
         if (book != null) {
             Log.d(TAG_LOG, "Found book that can be suggested: " + book);
@@ -78,7 +96,7 @@ public class SuggestionService extends IntentService {
             // SECOND PAGE WITH BOOK DESCRIPTION
             wearableExtender.addPage(new NotificationCompat.Builder(this).setContentTitle(getString(R.string.description))
                     .setStyle(new NotificationCompat.BigTextStyle().bigText(book.getDescrition())).build());
-            wearableExtender.setBackground(BitmapFactory.decodeResource(getResources(), R.drawable.background));
+            wearableExtender.setBackground(NotificationBitmaps.get(this).background(book.getTag()));
             // ACTION TO PURCHASE A BOOK FROM A WEARABLE
             final PendingIntent purchaseIntent = PendingIntent.getService(this, 0, BookActionService.IntentBuilder.buy(this, book).notificationId(ID_SUGGESTION)
                     .wearableInput().build(), PendingIntent.FLAG_UPDATE_CURRENT);
@@ -95,7 +113,23 @@ public class SuggestionService extends IntentService {
             // Sending the notification
             NotificationManagerCompat.from(this).notify(ID_SUGGESTION, builder.build());
         }
+        final long builtAt = SystemClock.elapsedRealtime();
+        wakeup.buildTime(builtAt - queriedAt);
+        // The record is the last piece of work done under the wakelock
+        WakeupLog.record(this, wakeup.holdTime(builtAt - receivedAt));
         // Completing the Wakeful Intent
         SuggestionReceiver.completeWakefulIntent(intent);
     }
+
+    private Book getBook(long bookId) {
+        final Cursor c = getContentResolver().query(BookDB.Book.create(bookId), null, null, null, null);
+        try {
+            if (c.moveToNext()) {
+                return Book.oneFrom(c);
+            }
+        } finally {
+            c.close();
+        }
+        return null;
+    }
 }
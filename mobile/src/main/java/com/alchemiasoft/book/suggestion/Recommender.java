@@ -0,0 +1,433 @@
+/*
+ * Copyright 2015 Simone Casagranda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alchemiasoft.book.suggestion;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.support.annotation.NonNull;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.alchemiasoft.common.content.BookDB;
+import com.alchemiasoft.common.model.Book;
+import com.alchemiasoft.common.util.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ranks the books the user doesn't own by affinity with the ones he owns.
+ * <p/>
+ * Every owned book adds to the affinity of its tag and of its author (twice as much if the user
+ * has written notes about it). A candidate scores the affinity of its author, that counts
+ * double, plus the one of its tag. The ranking is kept in memory and in a file: a purchase or a
+ * sale only rescores the candidates that share the tag or the author of the book, and the next
+ * suggestion is read from the ranking without touching the database. The ranking is rebuilt
+ * from the database once a day, to catch the changes made on the other nodes.
+ * <p/>
+ * A suggestion only persists the last suggested book, that is where the next one resumes from.
+ * The ranking file is written in background after a rebuild or a change, a burst of purchases
+ * results in a single write.
+ * <p/>
+ * Created by Simone Casagranda on 07/05/15.
+ */
+public final class Recommender {
+
+    /**
+     * Tag used for logging.
+     */
+    private static final String TAG_LOG = Recommender.class.getSimpleName();
+
+    private static final String FILE_NAME = "recommender";
+    private static final int FORMAT_VERSION = 2;
+
+    private static final String PREFS_NAME = "recommender";
+    private static final String KEY_LAST_SUGGESTED = "last_suggested";
+
+    /**
+     * Time the changes are collected before the ranking file is written.
+     */
+    private static final long SAVE_DELAY = TimeUnit.SECONDS.toMillis(5);
+
+    private static final int AUTHOR_WEIGHT = 2;
+    private static final int TAG_WEIGHT = 1;
+    private static final int NOTES_BONUS = 1;
+
+    private static final long REBUILD_INTERVAL = TimeUnit.DAYS.toMillis(1);
+
+    private static final String[] PROJECTION = {BookDB.Book._ID, BookDB.Book.TAG, BookDB.Book.AUTHOR, BookDB.Book.OWNED, BookDB.Book.NOTES};
+
+    private static Recommender sInstance;
+
+    /**
+     * Book that can be suggested.
+     */
+    private static final class Candidate {
+
+        private final long mId;
+        private final String mTag;
+        private final String mAuthor;
+        private int mScore;
+
+        private Candidate(long id, String tag, String author) {
+            mId = id;
+            mTag = tag;
+            mAuthor = author;
+        }
+    }
+
+    /**
+     * Highest score first, ties broken by id so that the order is stable.
+     */
+    private static final Comparator<Candidate> RANK_ORDER = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate lhs, Candidate rhs) {
+            if (lhs.mScore != rhs.mScore) {
+                return lhs.mScore > rhs.mScore ? -1 : 1;
+            }
+            return lhs.mId < rhs.mId ? -1 : lhs.mId == rhs.mId ? 0 : 1;
+        }
+    };
+
+    private final Context mContext;
+    private final File mFile;
+    private final SharedPreferences mPrefs;
+    private final ScheduledExecutorService mWriter = Executors.newSingleThreadScheduledExecutor();
+    private final Runnable mSaveTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (Recommender.this) {
+                mSaveScheduled = false;
+                save();
+            }
+        }
+    };
+    private boolean mSaveScheduled;
+
+    private final Map<String, Integer> mTagAffinity = new HashMap<>();
+    private final Map<String, Integer> mAuthorAffinity = new HashMap<>();
+
+    private final Map<Long, Candidate> mCandidates = new HashMap<>();
+    private final Map<String, Set<Candidate>> mByTag = new HashMap<>();
+    private final Map<String, Set<Candidate>> mByAuthor = new HashMap<>();
+    private final TreeSet<Candidate> mRanking = new TreeSet<>(RANK_ORDER);
+
+    /**
+     * Snapshot of the ranking that is read by {@link #next()}, rebuilt only after a change.
+     */
+    private final List<Candidate> mRanked = new ArrayList<>();
+    private boolean mRankedValid;
+    private int mCursor;
+    private long mLastSuggested = Book.NOT_VALID;
+
+    private long mBuiltAt;
+
+    private Recommender(Context context) {
+        mContext = context.getApplicationContext();
+        mFile = new File(mContext.getFilesDir(), FILE_NAME);
+        mPrefs = mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    public static synchronized Recommender get(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new Recommender(context);
+            if (!sInstance.load()) {
+                sInstance.rebuild();
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return the id of the next book to suggest or {@link Book#NOT_VALID} if the user owns them all.
+     */
+    public synchronized long next() {
+        if (System.currentTimeMillis() - mBuiltAt > REBUILD_INTERVAL) {
+            rebuild();
+        }
+        if (!mRankedValid) {
+            mRanked.clear();
+            mRanked.addAll(mRanking);
+            mRankedValid = true;
+            mCursor = 0;
+        }
+        if (mRanked.isEmpty()) {
+            return Book.NOT_VALID;
+        }
+        if (mCursor >= mRanked.size()) {
+            // All the candidates have been suggested, starting again from the best one
+            mCursor = 0;
+        }
+        Candidate candidate = mRanked.get(mCursor++);
+        if (candidate.mId == mLastSuggested && mRanked.size() > 1) {
+            // Never the same book twice in a row
+            candidate = mRanked.get(mCursor++ % mRanked.size());
+        }
+        mLastSuggested = candidate.mId;
+        // The ranking hasn't changed, only the position in it
+        mPrefs.edit().putLong(KEY_LAST_SUGGESTED, mLastSuggested).apply();
+        return candidate.mId;
+    }
+
+    /**
+     * Updates the ranking after the user has bought the given book.
+     *
+     * @param book that has been bought.
+     */
+    public synchronized void onBought(@NonNull Book book) {
+        final Candidate candidate = mCandidates.remove(book.getId());
+        if (candidate != null) {
+            mRanking.remove(candidate);
+            unindex(mByTag, candidate.mTag, candidate);
+            unindex(mByAuthor, candidate.mAuthor, candidate);
+        }
+        final int weight = 1 + (TextUtils.isEmpty(book.getNotes()) ? 0 : NOTES_BONUS);
+        addAffinity(book.getTag(), book.getAuthor(), weight);
+        invalidate();
+    }
+
+    /**
+     * Updates the ranking after the user has sold the given book.
+     *
+     * @param book that has been sold.
+     */
+    public synchronized void onSold(@NonNull Book book) {
+        if (mCandidates.containsKey(book.getId())) {
+            return;
+        }
+        final int weight = 1 + (TextUtils.isEmpty(book.getNotes()) ? 0 : NOTES_BONUS);
+        addAffinity(book.getTag(), book.getAuthor(), -weight);
+        addCandidate(new Candidate(book.getId(), book.getTag(), book.getAuthor()));
+        invalidate();
+    }
+
+    private void addAffinity(String tag, String author, int delta) {
+        if (tag != null) {
+            mTagAffinity.put(tag, Math.max(0, get(mTagAffinity, tag) + delta));
+        }
+        if (author != null) {
+            mAuthorAffinity.put(author, Math.max(0, get(mAuthorAffinity, author) + delta));
+        }
+        // Only the candidates that share the tag or the author change their score
+        final Set<Candidate> affected = new HashSet<>();
+        if (tag != null && mByTag.containsKey(tag)) {
+            affected.addAll(mByTag.get(tag));
+        }
+        if (author != null && mByAuthor.containsKey(author)) {
+            affected.addAll(mByAuthor.get(author));
+        }
+        for (Candidate candidate : affected) {
+            mRanking.remove(candidate);
+            candidate.mScore = score(candidate);
+            mRanking.add(candidate);
+        }
+    }
+
+    private void addCandidate(Candidate candidate) {
+        candidate.mScore = score(candidate);
+        mCandidates.put(candidate.mId, candidate);
+        mRanking.add(candidate);
+        index(mByTag, candidate.mTag, candidate);
+        index(mByAuthor, candidate.mAuthor, candidate);
+    }
+
+    private int score(Candidate candidate) {
+        return AUTHOR_WEIGHT * get(mAuthorAffinity, candidate.mAuthor) + TAG_WEIGHT * get(mTagAffinity, candidate.mTag);
+    }
+
+    private void invalidate() {
+        mRankedValid = false;
+        if (!mSaveScheduled) {
+            mSaveScheduled = true;
+            mWriter.schedule(mSaveTask, SAVE_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Rebuilds the whole ranking from the database.
+     */
+    private void rebuild() {
+        mTagAffinity.clear();
+        mAuthorAffinity.clear();
+        mCandidates.clear();
+        mByTag.clear();
+        mByAuthor.clear();
+        mRanking.clear();
+        final List<Candidate> candidates = new ArrayList<>();
+        final Cursor c = mContext.getContentResolver().query(BookDB.Book.CONTENT_URI, PROJECTION, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                final String tag = c.getString(1);
+                final String author = c.getString(2);
+                if (c.getInt(3) == 1) {
+                    final int weight = 1 + (TextUtils.isEmpty(c.getString(4)) ? 0 : NOTES_BONUS);
+                    if (tag != null) {
+                        mTagAffinity.put(tag, get(mTagAffinity, tag) + weight);
+                    }
+                    if (author != null) {
+                        mAuthorAffinity.put(author, get(mAuthorAffinity, author) + weight);
+                    }
+                } else {
+                    candidates.add(new Candidate(c.getLong(0), tag, author));
+                }
+            }
+        } finally {
+            c.close();
+        }
+        // Scores are computed once all the affinities are known
+        for (Candidate candidate : candidates) {
+            addCandidate(candidate);
+        }
+        mBuiltAt = System.currentTimeMillis();
+        Log.d(TAG_LOG, "Ranked " + mCandidates.size() + " candidate(s).");
+        invalidate();
+    }
+
+    private boolean load() {
+        if (!mFile.exists()) {
+            return false;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != FORMAT_VERSION) {
+                return false;
+            }
+            mBuiltAt = in.readLong();
+            mLastSuggested = mPrefs.getLong(KEY_LAST_SUGGESTED, Book.NOT_VALID);
+            readAffinity(in, mTagAffinity);
+            readAffinity(in, mAuthorAffinity);
+            final int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                addCandidate(new Candidate(in.readLong(), readString(in), readString(in)));
+            }
+            // Resuming from the candidate after the last suggested one
+            mRanked.addAll(mRanking);
+            mRankedValid = true;
+            for (int i = 0; i < mRanked.size(); i++) {
+                if (mRanked.get(i).mId == mLastSuggested) {
+                    mCursor = i + 1;
+                    break;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG_LOG, "Cannot restore the ranking, rebuilding it.", e);
+            return false;
+        } finally {
+            IOUtils.closeSilently(in);
+        }
+    }
+
+    private void save() {
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(mBuiltAt);
+            writeAffinity(out, mTagAffinity);
+            writeAffinity(out, mAuthorAffinity);
+            out.writeInt(mCandidates.size());
+            for (Candidate candidate : mCandidates.values()) {
+                out.writeLong(candidate.mId);
+                writeString(out, candidate.mTag);
+                writeString(out, candidate.mAuthor);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mFile)) {
+                Log.e(TAG_LOG, "Cannot replace " + mFile);
+            }
+        } catch (IOException e) {
+            Log.e(TAG_LOG, "Cannot save the ranking.", e);
+        } finally {
+            IOUtils.closeSilently(out);
+        }
+    }
+
+    private static void readAffinity(DataInputStream in, Map<String, Integer> affinity) throws IOException {
+        final int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            affinity.put(in.readUTF(), in.readInt());
+        }
+    }
+
+    private static void writeAffinity(DataOutputStream out, Map<String, Integer> affinity) throws IOException {
+        out.writeInt(affinity.size());
+        for (Map.Entry<String, Integer> entry : affinity.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeInt(entry.getValue());
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static int get(Map<String, Integer> affinity, String key) {
+        final Integer value = key == null ? null : affinity.get(key);
+        return value == null ? 0 : value;
+    }
+
+    private static void index(Map<String, Set<Candidate>> index, String key, Candidate candidate) {
+        if (key == null) {
+            return;
+        }
+        Set<Candidate> candidates = index.get(key);
+        if (candidates == null) {
+            candidates = new HashSet<>();
+            index.put(key, candidates);
+        }
+        candidates.add(candidate);
+    }
+
+    private static void unindex(Map<String, Set<Candidate>> index, String key, Candidate candidate) {
+        final Set<Candidate> candidates = key == null ? null : index.get(key);
+        if (candidates != null) {
+            candidates.remove(candidate);
+            if (candidates.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2015 Simone Casagranda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alchemiasoft.book.suggestion;
+
+/**
+ * Decides when the suggestion alarm has to be armed.
+ * <p/>
+ * The time of a suggestion is aligned to a grid and delivered within an inexact window, both
+ * proportional to the requested delay, so that the system can batch it with the other alarms.
+ * A request that the armed alarm already satisfies (pending and due no later than the new
+ * time, give or take the window) is dropped rather than re-arming and postponing the alarm.
+ * The scheduler doesn't depend on the Android framework: the time comes from a {@link Clock}
+ * and the alarm is an {@link AlarmSink}, so it's unit tested on the JVM.
+ * <p/>
+ * Created by Simone Casagranda on 14/05/15.
+ */
+public final class SuggestionScheduler {
+
+    /**
+     * Source of the wall clock time.
+     */
+    public static interface Clock {
+
+        Clock SYSTEM = new Clock() {
+            @Override
+            public long now() {
+                return System.currentTimeMillis();
+            }
+        };
+
+        long now();
+    }
+
+    /**
+     * The alarm driven by the scheduler, there's at most one armed at a time.
+     */
+    public static interface AlarmSink {
+
+        /**
+         * Arms the alarm replacing the previous one.
+         *
+         * @param at     earliest wall clock time of the alarm.
+         * @param window after that time within which the alarm can be delivered.
+         */
+        void arm(long at, long window);
+
+        void disarm();
+    }
+
+    /**
+     * Grid (and window) of a suggestion as a fraction of its delay, and its bounds.
+     */
+    private static final int GRID_DIVISOR = 8;
+    private static final long MIN_GRID = 1000L;
+    private static final long MAX_GRID = 15 * 60 * 1000L;
+
+    private static final long NOT_ARMED = -1L;
+
+    private final Clock mClock;
+    private final AlarmSink mSink;
+
+    private long mArmedAt = NOT_ARMED;
+    private long mArmedWindow;
+
+    private int mRequests;
+    private int mArms;
+
+    public SuggestionScheduler(Clock clock, AlarmSink sink) {
+        mClock = clock;
+        mSink = sink;
+    }
+
+    /**
+     * Schedules the suggestion after the given delay.
+     *
+     * @param delay in ms, a negative one cancels the suggestion.
+     * @return true if the alarm has been armed, false if the armed one already fits.
+     */
+    public synchronized boolean schedule(long delay) {
+        mRequests++;
+        if (delay < 0L) {
+            cancel();
+            return false;
+        }
+        final long now = mClock.now();
+        final long target = now + delay;
+        final long grid = gridFor(delay);
+        if (mArmedAt != NOT_ARMED && mArmedAt + mArmedWindow >= now && mArmedAt <= target + grid) {
+            return false;
+        }
+        // Aligning to the grid, so that close requests end up on the same time
+        final long at = grid == 0L ? target : (target + grid - 1) / grid * grid;
+        mArmedAt = at;
+        mArmedWindow = grid;
+        mArms++;
+        mSink.arm(at, grid);
+        return true;
+    }
+
+    /**
+     * Cancels the pending suggestion (if any). The alarm is always disarmed, it could have been
+     * armed before the scheduler was created.
+     */
+    public synchronized void cancel() {
+        mArmedAt = NOT_ARMED;
+        mSink.disarm();
+    }
+
+    /**
+     * To be called when the alarm fires.
+     */
+    public synchronized void onFired() {
+        mArmedAt = NOT_ARMED;
+    }
+
+    /**
+     * @return the number of scheduling requests received.
+     */
+    public synchronized int getRequests() {
+        return mRequests;
+    }
+
+    /**
+     * @return the number of times the alarm has been armed.
+     */
+    public synchronized int getArms() {
+        return mArms;
+    }
+
+    private static long gridFor(long delay) {
+        if (delay == 0L) {
+            return 0L;
+        }
+        return Math.max(MIN_GRID, Math.min(MAX_GRID, delay / GRID_DIVISOR));
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2015 Simone Casagranda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alchemiasoft.book.suggestion;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.alchemiasoft.common.util.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Accounting of the wakeups of the suggestion pipeline: for each wakeup it keeps what triggered
+ * it and how long the wakelock has been held, split in its phases.
+ * <p/>
+ * The wakeups are kept in a ring buffer of fixed size records written in place in a file, so
+ * they survive the process (that usually dies between two alarms) at the cost of a single
+ * small write for each wakeup.
+ * <p/>
+ * Created by Simone Casagranda on 13/05/15.
+ */
+public final class WakeupLog {
+
+    /**
+     * Tag used for logging.
+     */
+    private static final String TAG_LOG = WakeupLog.class.getSimpleName();
+
+    private static final String FILE_NAME = "wakeups";
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int CAPACITY = 128;
+
+    /**
+     * Header: version, next slot and count. Record: time, trigger and five durations.
+     */
+    private static final int HEADER_SIZE = 12;
+    private static final int RECORD_SIZE = 8 + 1 + 5 * 4;
+
+    /**
+     * What triggered a wakeup.
+     */
+    public static final int TRIGGER_UNKNOWN = 0;
+    public static final int TRIGGER_ALARM = 1;
+
+    /**
+     * A wakeup of the suggestion pipeline.
+     */
+    public static final class Wakeup {
+
+        private final long mAt;
+        private final int mTrigger;
+        private int mAlarmDelay;
+        private int mStartDelay;
+        private int mQueryTime;
+        private int mBuildTime;
+        private int mHoldTime;
+
+        private Wakeup(long at, int trigger) {
+            mAt = at;
+            mTrigger = trigger;
+        }
+
+        /**
+         * @param at      wall clock time of the wakeup.
+         * @param trigger of the wakeup.
+         * @return a new Wakeup whose timings have to be set.
+         */
+        public static Wakeup create(long at, int trigger) {
+            return new Wakeup(at, trigger);
+        }
+
+        /**
+         * @param alarmDelay ms between the time the alarm was scheduled for and the wakeup.
+         */
+        public Wakeup alarmDelay(long alarmDelay) {
+            mAlarmDelay = clamp(alarmDelay);
+            return this;
+        }
+
+        /**
+         * @param startDelay ms between the wakeup and the start of the service.
+         */
+        public Wakeup startDelay(long startDelay) {
+            mStartDelay = clamp(startDelay);
+            return this;
+        }
+
+        /**
+         * @param queryTime ms spent looking for the book to suggest.
+         */
+        public Wakeup queryTime(long queryTime) {
+            mQueryTime = clamp(queryTime);
+            return this;
+        }
+
+        /**
+         * @param buildTime ms spent building and posting the notification.
+         */
+        public Wakeup buildTime(long buildTime) {
+            mBuildTime = clamp(buildTime);
+            return this;
+        }
+
+        /**
+         * @param holdTime ms the wakelock has been held for.
+         */
+        public Wakeup holdTime(long holdTime) {
+            mHoldTime = clamp(holdTime);
+            return this;
+        }
+
+        public long at() {
+            return mAt;
+        }
+
+        public int trigger() {
+            return mTrigger;
+        }
+
+        public int holdTime() {
+            return mHoldTime;
+        }
+
+        private static int clamp(long value) {
+            return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value));
+        }
+
+        @Override
+        public String toString() {
+            final String at = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US).format(new Date(mAt));
+            return at + " trigger=" + (mTrigger == TRIGGER_ALARM ? "alarm" : "unknown") + " alarmDelay=" + mAlarmDelay
+                    + "ms start=" + mStartDelay + "ms query=" + mQueryTime + "ms build=" + mBuildTime + "ms hold=" + mHoldTime + "ms";
+        }
+    }
+
+    private WakeupLog() {
+        throw new RuntimeException("Use static methods rather than trying to instantiate this class");
+    }
+
+    /**
+     * Adds a wakeup, overwriting the oldest one if the buffer is full.
+     *
+     * @param context reference.
+     * @param wakeup  to record.
+     */
+    public static synchronized void record(@NonNull Context context, @NonNull Wakeup wakeup) {
+        RandomAccessFile file = null;
+        try {
+            file = open(context);
+            final int next = file.readInt();
+            final int count = file.readInt();
+            file.seek(HEADER_SIZE + (long) next * RECORD_SIZE);
+            file.writeLong(wakeup.mAt);
+            file.writeByte(wakeup.mTrigger);
+            file.writeInt(wakeup.mAlarmDelay);
+            file.writeInt(wakeup.mStartDelay);
+            file.writeInt(wakeup.mQueryTime);
+            file.writeInt(wakeup.mBuildTime);
+            file.writeInt(wakeup.mHoldTime);
+            file.seek(4);
+            file.writeInt((next + 1) % CAPACITY);
+            file.writeInt(Math.min(count + 1, CAPACITY));
+        } catch (IOException e) {
+            Log.e(TAG_LOG, "Cannot record " + wakeup, e);
+        } finally {
+            IOUtils.closeSilently(file);
+        }
+        Log.d(TAG_LOG, "Wakeup: " + wakeup);
+    }
+
+    /**
+     * @param context reference.
+     * @return the recorded wakeups, from the oldest to the newest.
+     */
+    public static synchronized List<Wakeup> getWakeups(@NonNull Context context) {
+        final List<Wakeup> wakeups = new ArrayList<>();
+        RandomAccessFile file = null;
+        try {
+            file = open(context);
+            final int next = file.readInt();
+            final int count = file.readInt();
+            for (int i = 0; i < count; i++) {
+                final int slot = (next - count + i + CAPACITY) % CAPACITY;
+                file.seek(HEADER_SIZE + (long) slot * RECORD_SIZE);
+                final Wakeup wakeup = new Wakeup(file.readLong(), file.readByte());
+                wakeup.mAlarmDelay = file.readInt();
+                wakeup.mStartDelay = file.readInt();
+                wakeup.mQueryTime = file.readInt();
+                wakeup.mBuildTime = file.readInt();
+                wakeup.mHoldTime = file.readInt();
+                wakeups.add(wakeup);
+            }
+        } catch (IOException e) {
+            Log.e(TAG_LOG, "Cannot read the wakeups.", e);
+        } finally {
+            IOUtils.closeSilently(file);
+        }
+        return wakeups;
+    }
+
+    /**
+     * Prints a summary of the recorded wakeups followed by each of them.
+     *
+     * @param context reference.
+     * @param writer  where the wakeups are printed.
+     */
+    public static void dump(@NonNull Context context, @NonNull PrintWriter writer) {
+        final List<Wakeup> wakeups = getWakeups(context);
+        long total = 0L;
+        int max = 0;
+        for (Wakeup wakeup : wakeups) {
+            total += wakeup.mHoldTime;
+            max = Math.max(max, wakeup.mHoldTime);
+        }
+        writer.println("Suggestion wakeups: " + wakeups.size() + ", wakelock held " + total + "ms in total, "
+                + (wakeups.isEmpty() ? 0L : total / wakeups.size()) + "ms on average, " + max + "ms at most");
+        for (Wakeup wakeup : wakeups) {
+            writer.println("  " + wakeup);
+        }
+    }
+
+    /**
+     * Opens the file positioned after the version, creating it if needed.
+     */
+    private static RandomAccessFile open(Context context) throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(new File(context.getFilesDir(), FILE_NAME), "rw");
+        if (file.length() < HEADER_SIZE || file.readInt() != FORMAT_VERSION) {
+            // New or unknown file, starting from an empty buffer
+            file.setLength(0L);
+            file.writeInt(FORMAT_VERSION);
+            file.writeInt(0);
+            file.writeInt(0);
+            file.seek(4);
+        }
+        return file;
+    }
+}
@@ -16,25 +16,51 @@
 
 package com.alchemiasoft.book.user;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Entity that wraps the data related to the current user.
  * <p/>
+ * The preferences are loaded in background as soon as the UserData is requested, and the
+ * values are served from an immutable {@link Snapshot} that is replaced on each change, so
+ * readers never take a lock or touch the disk. The changes made within a short window are
+ * written with a single flush. Listeners are notified on the main thread once the data is
+ * loaded and then on every change.
+ * <p/>
  * Created by Simone Casagranda on 20/12/14.
  */
 public class UserData {
 
-    private static final String PREF_NAME = "userdata.pref";
+    /**
+     * Tag used for logging.
+     */
+    private static final String TAG_LOG = UserData.class.getSimpleName();
 
-    private static final long DOES_NOT_EXPIRE = Long.MAX_VALUE;
+    private static final String PREF_NAME = "userdata.pref";
 
     public static final String KEY_USERNAME = "username";
     public static final String KEY_SUGGESTION_INTERVAL = "suggestion_interval";
 
+    /**
+     * Writes happening within this delay are coalesced in a single flush.
+     */
+    private static final long FLUSH_DELAY = 500L;
+    private static final long KEEP_ALIVE = 30L;
+
     public static enum SuggestionInterval {
 
         NEVER(-1), NOW(0), TEN_SECS(10), TWENTY_SECS(20), THIRTY_SECS(30);
@@ -50,24 +76,75 @@ public class UserData {
         }
     }
 
-    private final Context mContext;
-    private final SharedPreferences mPrefs;
+    /**
+     * Immutable view of the user data at a given time.
+     */
+    public static final class Snapshot {
+
+        private final String mUsername;
+        private final SuggestionInterval mSuggestionInterval;
+
+        private Snapshot(String username, SuggestionInterval suggestionInterval) {
+            mUsername = username;
+            mSuggestionInterval = suggestionInterval;
+        }
+
+        public String username() {
+            return mUsername;
+        }
+
+        public SuggestionInterval suggestionInterval() {
+            return mSuggestionInterval;
+        }
+    }
+
+    /**
+     * Allows to be notified (on the main thread) about the user data.
+     */
+    public static interface Listener {
 
-    private final ContentValues mValues;
+        /**
+         * @param snapshot of the user data.
+         * @param key      that has changed or null if the data has just been loaded.
+         */
+        void onUserDataChanged(@NonNull Snapshot snapshot, String key);
+    }
 
     private static UserData sUserData;
     private static final Object LOCK = new Object();
 
+    private final Context mContext;
+    private final ScheduledThreadPoolExecutor mExecutor = new ScheduledThreadPoolExecutor(1);
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final CountDownLatch mLoaded = new CountDownLatch(1);
+
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private final List<Listener> mWaiting = new ArrayList<>();
+
+    private SharedPreferences mPrefs;
+    private volatile Snapshot mSnapshot;
+
+    /**
+     * Values written and not flushed yet.
+     */
+    private final Map<String, Object> mPending = new HashMap<>();
+    private boolean mFlushScheduled;
+
     private UserData(@NonNull Context context) {
         mContext = context.getApplicationContext();
-        mPrefs = mContext.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
-        mValues = new ContentValues();
-        username(mPrefs.getString(KEY_USERNAME, null));
-        suggestionInterval(suggestionInterval(mPrefs.getInt(KEY_SUGGESTION_INTERVAL, SuggestionInterval.NOW.ordinal())));
+        mExecutor.setKeepAliveTime(KEEP_ALIVE, TimeUnit.SECONDS);
+        mExecutor.allowCoreThreadTimeOut(true);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                preload();
+            }
+        });
     }
 
     /**
-     * Allows to load the data available for the current user.
+     * Allows to load the data available for the current user. The data is loaded in background,
+     * use {@link #whenLoaded(Listener)} to avoid waiting for it.
      *
      * @param context
      * @return the current active UserData.
@@ -84,27 +161,167 @@ public class UserData {
         return sUserData;
     }
 
+    /**
+     * Delivers the snapshot to the listener once, as soon as the data is loaded.
+     *
+     * @param listener to notify.
+     */
+    public void whenLoaded(@NonNull final Listener listener) {
+        synchronized (mWaiting) {
+            if (mSnapshot == null) {
+                mWaiting.add(listener);
+                return;
+            }
+        }
+        post(listener, mSnapshot, null);
+    }
+
+    /**
+     * Registers a listener that is notified once the data is loaded and on every change.
+     *
+     * @param listener to notify.
+     */
+    public void addListener(@NonNull Listener listener) {
+        if (!mListeners.contains(listener)) {
+            mListeners.add(listener);
+            whenLoaded(listener);
+        }
+    }
+
+    public void removeListener(@NonNull Listener listener) {
+        mListeners.remove(listener);
+        synchronized (mWaiting) {
+            mWaiting.remove(listener);
+        }
+    }
+
+    /**
+     * @return the current snapshot, waiting for the data to be loaded if needed.
+     */
+    public Snapshot snapshot() {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot == null) {
+            Log.w(TAG_LOG, "Waiting for the user data to be loaded.");
+            awaitLoaded();
+            snapshot = mSnapshot;
+        }
+        return snapshot;
+    }
+
     public UserData username(String username) {
-        mValues.put(KEY_USERNAME, username);
+        synchronized (mPending) {
+            final Snapshot snapshot = snapshot();
+            mSnapshot = new Snapshot(username, snapshot.mSuggestionInterval);
+            write(KEY_USERNAME, username);
+        }
+        notifyChanged(KEY_USERNAME);
         return this;
     }
 
     public String username() {
-        return mValues.getAsString(KEY_USERNAME);
+        return snapshot().username();
     }
 
     public UserData suggestionInterval(@NonNull SuggestionInterval interval) {
-        mValues.put(KEY_SUGGESTION_INTERVAL, interval.ordinal());
+        synchronized (mPending) {
+            final Snapshot snapshot = snapshot();
+            mSnapshot = new Snapshot(snapshot.mUsername, interval);
+            write(KEY_SUGGESTION_INTERVAL, interval.ordinal());
+        }
+        notifyChanged(KEY_SUGGESTION_INTERVAL);
         return this;
     }
 
     public SuggestionInterval suggestionInterval() {
-        final int index = mValues.getAsInteger(KEY_SUGGESTION_INTERVAL);
-        return suggestionInterval(index);
+        return snapshot().suggestionInterval();
     }
 
     protected SuggestionInterval suggestionInterval(int index) {
         final SuggestionInterval[] intervals = SuggestionInterval.values();
         return index < 0 || index >= intervals.length ? SuggestionInterval.NEVER : intervals[index];
     }
+
+    private void preload() {
+        mPrefs = mContext.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+        final Snapshot snapshot = new Snapshot(mPrefs.getString(KEY_USERNAME, null),
+                suggestionInterval(mPrefs.getInt(KEY_SUGGESTION_INTERVAL, SuggestionInterval.NOW.ordinal())));
+        final List<Listener> waiting;
+        synchronized (mWaiting) {
+            mSnapshot = snapshot;
+            waiting = new ArrayList<>(mWaiting);
+            mWaiting.clear();
+        }
+        mLoaded.countDown();
+        for (Listener listener : waiting) {
+            post(listener, snapshot, null);
+        }
+    }
+
+    /**
+     * Called holding the pending lock.
+     */
+    private void write(String key, Object value) {
+        mPending.put(key, value);
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, FLUSH_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flush() {
+        final Map<String, Object> pending;
+        synchronized (mPending) {
+            pending = new HashMap<>(mPending);
+            mPending.clear();
+            mFlushScheduled = false;
+        }
+        final SharedPreferences.Editor editor = mPrefs.edit();
+        for (Map.Entry<String, Object> entry : pending.entrySet()) {
+            final Object value = entry.getValue();
+            if (value instanceof Integer) {
+                editor.putInt(entry.getKey(), (Integer) value);
+            } else {
+                editor.putString(entry.getKey(), (String) value);
+            }
+        }
+        if (!editor.commit()) {
+            Log.e(TAG_LOG, "Cannot flush " + pending.keySet());
+        }
+    }
+
+    private void notifyChanged(String key) {
+        final Snapshot snapshot = mSnapshot;
+        for (Listener listener : mListeners) {
+            post(listener, snapshot, key);
+        }
+    }
+
+    private void post(final Listener listener, final Snapshot snapshot, final String key) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onUserDataChanged(snapshot, key);
+            }
+        });
+    }
+
+    private void awaitLoaded() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mLoaded.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
 }
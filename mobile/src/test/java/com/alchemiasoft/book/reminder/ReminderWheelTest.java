@@ -0,0 +1,180 @@
+/*
+ * Copyright 2015 Simone Casagranda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alchemiasoft.book.reminder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the ReminderWheel across the boundaries of its wheels, with a file of its own.
+ * <p/>
+ * Created by Simone Casagranda on 19/05/15.
+ */
+public class ReminderWheelTest {
+
+    private static final long MINUTE = 60 * 1000L;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long DAY = 24 * HOUR;
+    private static final long SPAN = 64 * DAY;
+
+    /**
+     * Ten minutes before the end of an hour, in the middle of a span of the days wheel.
+     */
+    private static final long START = 1431500000000L / SPAN * SPAN + 10 * DAY + 13 * HOUR + 50 * MINUTE;
+
+    private File mFile;
+    private ReminderWheel mWheel;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("reminders", null);
+        mFile.delete();
+        mWheel = new ReminderWheel(mFile, START);
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void firesWithinTheHour() {
+        mWheel.schedule(1L, START + 5 * MINUTE);
+        assertEquals(START + 5 * MINUTE, mWheel.nextDueAt());
+        assertTrue(mWheel.advance(START + 4 * MINUTE).isEmpty());
+        assertEquals(Collections.singletonList(1L), mWheel.advance(START + 5 * MINUTE));
+        assertEquals(0L, mWheel.getReminder(1L));
+        assertEquals(0L, mWheel.nextDueAt());
+    }
+
+    @Test
+    public void crossesTheHour() {
+        final long at = START + 25 * MINUTE;
+        mWheel.schedule(1L, at);
+        assertEquals(at, mWheel.nextDueAt());
+        // Spread in the minutes once the hour is crossed
+        assertTrue(mWheel.advance(START + 10 * MINUTE).isEmpty());
+        assertEquals(at, mWheel.nextDueAt());
+        assertTrue(mWheel.advance(at - MINUTE).isEmpty());
+        assertEquals(Collections.singletonList(1L), mWheel.advance(at));
+    }
+
+    @Test
+    public void crossesTheDay() {
+        final long at = START + DAY + 3 * HOUR + 7 * MINUTE;
+        mWheel.schedule(1L, at);
+        assertEquals(at, mWheel.nextDueAt());
+        assertTrue(mWheel.advance(START + DAY).isEmpty());
+        assertEquals(at, mWheel.nextDueAt());
+        assertTrue(mWheel.advance(at - MINUTE).isEmpty());
+        assertEquals(Collections.singletonList(1L), mWheel.advance(at));
+    }
+
+    @Test
+    public void crossesTheSpan() {
+        final long at = START + 100 * DAY + 5 * HOUR;
+        mWheel.schedule(1L, at);
+        assertEquals(at, mWheel.nextDueAt());
+        assertTrue(mWheel.advance(START + 60 * DAY).isEmpty());
+        assertEquals(at, mWheel.nextDueAt());
+        assertTrue(mWheel.advance(at - MINUTE).isEmpty());
+        assertEquals(Collections.singletonList(1L), mWheel.advance(at));
+    }
+
+    @Test
+    public void firesInOrderOfDueTime() {
+        final long[] times = {START + 2 * MINUTE, START + 3 * HOUR, START + 2 * DAY, START + 90 * DAY};
+        for (int i = times.length - 1; i >= 0; i--) {
+            mWheel.schedule(i, times[i]);
+        }
+        for (int i = 0; i < times.length; i++) {
+            assertEquals(times[i], mWheel.nextDueAt());
+            assertEquals(Collections.singletonList((long) i), mWheel.advance(mWheel.nextDueAt()));
+        }
+        assertEquals(0L, mWheel.nextDueAt());
+    }
+
+    @Test
+    public void advancesAfterALongGap() {
+        final Random random = new Random(START);
+        final List<Long> expected = new ArrayList<>();
+        for (long bookId = 1; bookId <= 500; bookId++) {
+            mWheel.schedule(bookId, START + 1 + (long) (random.nextDouble() * 300 * DAY));
+            expected.add(bookId);
+        }
+        final List<Long> due = mWheel.advance(START + 365 * DAY);
+        Collections.sort(due);
+        assertEquals(expected, due);
+        assertTrue(mWheel.advance(START + 366 * DAY).isEmpty());
+        assertEquals(0L, mWheel.nextDueAt());
+    }
+
+    @Test
+    public void cancelsAfterACascade() {
+        final long at = START + DAY + 2 * HOUR + 30 * MINUTE;
+        mWheel.schedule(1L, at);
+        mWheel.schedule(2L, at);
+        // The reminders are now in the minutes wheel
+        assertTrue(mWheel.advance(at - 10 * MINUTE).isEmpty());
+        assertTrue(mWheel.cancel(1L));
+        assertFalse(mWheel.cancel(1L));
+        assertEquals(0L, mWheel.getReminder(1L));
+        assertEquals(Collections.singletonList(2L), mWheel.advance(at + DAY));
+    }
+
+    @Test
+    public void reschedulingReplacesTheReminder() {
+        mWheel.schedule(1L, START + 2 * DAY);
+        mWheel.schedule(1L, START + 5 * MINUTE);
+        assertEquals(START + 5 * MINUTE, mWheel.getReminder(1L));
+        assertEquals(Collections.singletonList(1L), mWheel.advance(START + 5 * MINUTE));
+        assertTrue(mWheel.advance(START + 3 * DAY).isEmpty());
+    }
+
+    @Test
+    public void restoresTheSavedReminders() {
+        mWheel.schedule(1L, START + 5 * MINUTE);
+        mWheel.schedule(2L, START + 3 * HOUR);
+        mWheel.schedule(3L, START + 80 * DAY);
+        mWheel.schedule(4L, START + 6 * HOUR);
+        mWheel.cancel(4L);
+
+        // Restarted after the first reminder was due
+        final ReminderWheel restored = new ReminderWheel(mFile, START + HOUR);
+        restored.load();
+        assertEquals(START + 5 * MINUTE, restored.getReminder(1L));
+        assertEquals(START + 3 * HOUR, restored.getReminder(2L));
+        assertEquals(START + 80 * DAY, restored.getReminder(3L));
+        assertEquals(0L, restored.getReminder(4L));
+        assertEquals(Collections.singletonList(1L), restored.advance(START + HOUR));
+        assertEquals(START + 3 * HOUR, restored.nextDueAt());
+        assertEquals(Collections.singletonList(2L), restored.advance(START + 3 * HOUR));
+        assertEquals(Collections.singletonList(3L), restored.advance(START + 80 * DAY));
+    }
+}
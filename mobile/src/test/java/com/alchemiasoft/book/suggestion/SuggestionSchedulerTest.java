@@ -0,0 +1,169 @@
+/*
+ * Copyright 2015 Simone Casagranda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alchemiasoft.book.suggestion;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the SuggestionScheduler with a fake clock and alarm, up to a simulated day of use.
+ * <p/>
+ * Created by Simone Casagranda on 14/05/15.
+ */
+public class SuggestionSchedulerTest {
+
+    private static final long START = 1431500000000L;
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+    private static final long DELAY = 30 * 1000L;
+
+    private FakeClock mClock;
+    private FakeAlarm mAlarm;
+    private SuggestionScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mClock = new FakeClock(START);
+        mAlarm = new FakeAlarm();
+        mScheduler = new SuggestionScheduler(mClock, mAlarm);
+    }
+
+    @Test
+    public void alignsTheAlarmToTheGrid() {
+        assertTrue(mScheduler.schedule(DELAY));
+        final long grid = DELAY / 8;
+        assertEquals(0L, mAlarm.mAt % grid);
+        assertTrue(mAlarm.mAt >= START + DELAY);
+        assertTrue(mAlarm.mAt < START + DELAY + grid);
+        assertEquals(grid, mAlarm.mWindow);
+    }
+
+    @Test
+    public void dropsTheRequestsThatTheArmedAlarmSatisfies() {
+        assertTrue(mScheduler.schedule(DELAY));
+        final long armedAt = mAlarm.mAt;
+        mClock.mNow += 1000L;
+        // Re-arming would postpone the suggestion
+        assertFalse(mScheduler.schedule(DELAY));
+        assertEquals(armedAt, mAlarm.mAt);
+        assertEquals(1, mAlarm.mArms);
+    }
+
+    @Test
+    public void negativeDelayCancels() {
+        mScheduler.schedule(DELAY);
+        assertFalse(mScheduler.schedule(-1L));
+        assertFalse(mAlarm.isArmed());
+        // A new request arms again
+        assertTrue(mScheduler.schedule(DELAY));
+        assertTrue(mAlarm.isArmed());
+    }
+
+    @Test
+    public void cancelDisarmsAnAlarmArmedByAPreviousScheduler() {
+        mScheduler.schedule(DELAY);
+        // As after the process has been restarted
+        final SuggestionScheduler restarted = new SuggestionScheduler(mClock, mAlarm);
+        restarted.cancel();
+        assertFalse(mAlarm.isArmed());
+    }
+
+    /**
+     * A user interacting every 0-20 s for a day, each interaction asking for a suggestion in 30 s.
+     */
+    @Test
+    public void simulatedDay() {
+        final Random random = new Random(3L);
+        final long end = START + DAY;
+        int fired = 0;
+        long maxLateness = 0L;
+        while (mClock.mNow < end) {
+            final long next = mClock.mNow + (long) (random.nextDouble() * 20000);
+            if (mAlarm.isArmed() && mAlarm.mAt <= next) {
+                // The alarm fires at the earliest time of its window
+                mClock.mNow = mAlarm.mAt;
+                maxLateness = Math.max(maxLateness, mAlarm.mAt - mAlarm.mRequestedBy);
+                mAlarm.disarm();
+                mScheduler.onFired();
+                fired++;
+                continue;
+            }
+            mClock.mNow = next;
+            if (mScheduler.schedule(DELAY)) {
+                mAlarm.mRequestedBy = mClock.mNow + DELAY;
+            } else {
+                // The armed alarm satisfies the request within a grid
+                assertTrue(mAlarm.isArmed());
+                assertTrue(mAlarm.mAt <= mClock.mNow + DELAY + DELAY / 8);
+            }
+        }
+        final int requests = mScheduler.getRequests();
+        final int arms = mScheduler.getArms();
+        assertEquals(arms, mAlarm.mArms);
+        // Most of the requests are absorbed by the armed alarm
+        assertTrue("arms=" + arms + " requests=" + requests, arms * 3 < requests);
+        // Every armed alarm has fired, except the one still pending at the end of the day
+        assertTrue("arms=" + arms + " fired=" + fired, arms - fired <= 1);
+        // Aligning to the grid never delays a suggestion by more than a grid
+        assertTrue(maxLateness < DELAY / 8);
+    }
+
+    private static final class FakeClock implements SuggestionScheduler.Clock {
+
+        private long mNow;
+
+        private FakeClock(long now) {
+            mNow = now;
+        }
+
+        @Override
+        public long now() {
+            return mNow;
+        }
+    }
+
+    private static final class FakeAlarm implements SuggestionScheduler.AlarmSink {
+
+        private static final long NOT_ARMED = -1L;
+
+        private long mAt = NOT_ARMED;
+        private long mWindow;
+        private long mRequestedBy;
+        private int mArms;
+
+        @Override
+        public void arm(long at, long window) {
+            mAt = at;
+            mWindow = window;
+            mArms++;
+        }
+
+        @Override
+        public void disarm() {
+            mAt = NOT_ARMED;
+        }
+
+        private boolean isArmed() {
+            return mAt != NOT_ARMED;
+        }
+    }
+}
@@ -37,12 +37,13 @@ import com.alchemiasoft.books.fragment.AddNoteFragment;
 import com.alchemiasoft.books.fragment.BuyBookFragment;
 import com.alchemiasoft.books.fragment.InfoFragment;
 import com.alchemiasoft.books.fragment.SettingsFragment;
+import com.alchemiasoft.common.sync.ApiClientManager;
 import com.alchemiasoft.common.sync.Event;
+import com.alchemiasoft.common.sync.WearableTransport;
 import com.alchemiasoft.common.util.UriUtil;
-import com.google.android.gms.common.ConnectionResult;
-import com.google.android.gms.common.GooglePlayServicesUtil;
 import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.wearable.Wearable;
+
+import java.util.Map;
 
 import static com.alchemiasoft.common.content.BookDB.Book;
 
@@ -64,6 +65,11 @@ public class BooksActivity extends FragmentActivity implements LoaderManager.Loa
 
     private static final int NOT_VALID = -1;
 
+    /**
+     * Time the user has to stay on a page before the book is opened on the handheld.
+     */
+    private static final long OPEN_DEBOUNCE = 500L;
+
     /**
      * Fading values.
      */
@@ -88,9 +94,9 @@ public class BooksActivity extends FragmentActivity implements LoaderManager.Loa
     private CrossfadeDrawable mCrossfadeDrawable;
 
     /**
-     * Client used by the wearable api to notify about the current book.
+     * Lease on the client used by the wearable api to notify about the current book.
      */
-    private GoogleApiClient mGoogleApiClient;
+    private ApiClientManager.Lease mLease;
 
     private int mOldRow = NOT_VALID;
 
@@ -112,10 +118,6 @@ public class BooksActivity extends FragmentActivity implements LoaderManager.Loa
         mPageIndicator.setPager(mViewPager);
         // Adding the page change listener
         mViewPager.setOnPageChangeListener(this);
-        // Creating the GoogleApiClient for the Wearable api (if available)
-        if (GooglePlayServicesUtil.isGooglePlayServicesAvailable(this) == ConnectionResult.SUCCESS) {
-            mGoogleApiClient = new GoogleApiClient.Builder(this).addConnectionCallbacks(this).addApi(Wearable.API).build();
-        }
         // Initializing the loader
         getLoaderManager().initLoader(LOADER_ID_SUGGESTIONS, null, this);
     }
@@ -123,9 +125,10 @@ public class BooksActivity extends FragmentActivity implements LoaderManager.Loa
     @Override
     protected void onStart() {
         super.onStart();
-        // Trying to bind to the GoogleApiClient
-        if (mGoogleApiClient != null) {
-            mGoogleApiClient.connect();
+        // Leasing the shared GoogleApiClient for the Wearable api (if available)
+        final ApiClientManager manager = ApiClientManager.get(this);
+        if (manager.isAvailable()) {
+            mLease = manager.acquire(this);
         }
     }
 
@@ -133,8 +136,9 @@ public class BooksActivity extends FragmentActivity implements LoaderManager.Loa
     protected void onStop() {
         super.onStop();
         // Releasing the client when not needed
-        if (mGoogleApiClient != null) {
-            mGoogleApiClient.disconnect();
+        if (mLease != null) {
+            mLease.release();
+            mLease = null;
         }
     }
 
@@ -149,7 +153,7 @@ public class BooksActivity extends FragmentActivity implements LoaderManager.Loa
         if (mOldRow != NOT_VALID) {
             long bookId = mAdapter.getBookId(mOldRow);
             if (bookId >= 0) {
-                Event.MessageApi.Sender.create(mGoogleApiClient, bookId).action(Event.MessageApi.OPEN).asyncSend();
+                sendOpen(bookId);
             }
         }
     }
@@ -192,8 +196,8 @@ public class BooksActivity extends FragmentActivity implements LoaderManager.Loa
             mCrossfadeDrawable.setBase(mAdapter.getBaseDrawable(row));
             // Notifying that the user is looking at the X row.
             final long bookId = mAdapter.getBookId(row);
-            if (mGoogleApiClient != null && mGoogleApiClient.isConnected() && bookId >= 0L) {
-                Event.MessageApi.Sender.create(mGoogleApiClient, bookId).action(Event.MessageApi.OPEN).asyncSend();
+            if (mLease != null && mLease.client().isConnected() && bookId >= 0L) {
+                sendOpen(bookId);
             }
         }
         mCrossfadeDrawable.setProgress(mAdapter.isCard(row, column) ? NO_FADE : PARTIAL_FADE);
@@ -205,6 +209,25 @@ public class BooksActivity extends FragmentActivity implements LoaderManager.Loa
         mPageIndicator.onPageScrollStateChanged(state);
     }
 
+    /**
+     * Notifies the other nodes that the user is looking at the given book. The debounced send can
+     * run after onStop(), so it holds its own lease until it's sent or superseded.
+     */
+    private void sendOpen(long bookId) {
+        final ApiClientManager.Lease lease = ApiClientManager.get(this).acquire();
+        Event.MessageApi.Sender.create(new WearableTransport(lease), bookId).action(Event.MessageApi.OPEN).debounce(OPEN_DEBOUNCE)
+                .callback(new Event.MessageApi.Callback() {
+                    @Override
+                    public void onResult(String nodeId, boolean sent) {
+                    }
+
+                    @Override
+                    public void onComplete(Map<String, Boolean> results) {
+                        lease.release();
+                    }
+                }).asyncSend();
+    }
+
     /**
      * Adapter used to display books in pages. Following the Android Wear Design Guidelines,
      * all the elements will be displayed per row and in the columns the user will be able to find
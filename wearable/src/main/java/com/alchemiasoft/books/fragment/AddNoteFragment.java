@@ -149,7 +149,7 @@ public class AddNoteFragment extends Fragment implements DelayedConfirmationView
         final long bookId = getArguments().getLong(ARG_ID);
         final String notes = mAddNotesTextView.getText().toString();
         // Scheduling the job in on the BookService
-        BookService.Invoker.get(activity).bookId(bookId).notes(notes).invoke();
+        BookService.Invoker.get(activity).addNote(bookId, notes).invoke();
         // We want to close the wear app
         activity.finish();
     }
@@ -118,7 +118,7 @@ public class BuyBookFragment extends Fragment implements DelayedConfirmationView
         }
         // Updating the book state
         final long bookId = getArguments().getLong(ARG_ID);
-        BookService.Invoker.get(activity).bookId(bookId).owned(true).invoke();
+        BookService.Invoker.get(activity).buy(bookId).invoke();
         // Starting the confirmation screen
         Intent intent = new Intent(activity, ConfirmationActivity.class);
         intent.putExtra(ConfirmationActivity.EXTRA_ANIMATION_TYPE, ConfirmationActivity.SUCCESS_ANIMATION);
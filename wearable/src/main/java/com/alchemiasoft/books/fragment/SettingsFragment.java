@@ -99,17 +99,17 @@ public class SettingsFragment extends Fragment implements WearableListView.Click
         switch (position) {
             case 0:
                 // Sell all the owned books
-                BookService.Invoker.get(activity).where(WHERE_OWNED, OWNED).owned(false).invoke();
+                BookService.Invoker.get(activity).setOwnedWhere(false, WHERE_OWNED, OWNED).invoke();
                 activity.finish();
                 break;
             case 1:
                 // Buy all the available books
-                BookService.Invoker.get(activity).where(WHERE_OWNED, NOT_OWNED).owned(true).invoke();
+                BookService.Invoker.get(activity).setOwnedWhere(true, WHERE_OWNED, NOT_OWNED).invoke();
                 activity.finish();
                 break;
             case 2:
                 // Resetting the DB
-                BookService.Invoker.get(activity).notes(null).owned(false).invoke();
+                BookService.Invoker.get(activity).reset().invoke();
                 activity.finish();
                 break;
         }
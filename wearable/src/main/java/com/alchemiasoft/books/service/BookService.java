@@ -16,49 +16,40 @@
 
 package com.alchemiasoft.books.service;
 
-import android.app.IntentService;
-import android.content.ContentResolver;
-import android.content.ContentValues;
+import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
-import android.net.Uri;
-import android.os.Bundle;
+import android.os.IBinder;
 import android.util.Log;
 
-import com.alchemiasoft.common.content.BookDB;
-import com.alchemiasoft.common.sync.Event;
-import com.google.android.gms.common.ConnectionResult;
-import com.google.android.gms.common.GooglePlayServicesUtil;
-import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.wearable.Wearable;
+import com.alchemiasoft.common.content.BookClient;
+import com.alchemiasoft.common.sync.OutboxService;
+import com.alchemiasoft.common.util.StripedExecutor;
 
 import java.util.Arrays;
-import java.util.concurrent.TimeUnit;
-
-import static com.alchemiasoft.common.content.BookDB.Book;
 
 /**
- * IntentService that takes care of executing in the background any Book update.
+ * Service that takes care of executing in the background any Book update.
+ * <p/>
+ * The updates of the same book are executed in order, the ones of different books in parallel.
+ * An update that selects the books with a where clause waits for all the previous updates and
+ * holds the following ones.
  * <p/>
  * Created by Simone Casagranda on 28/01/15.
  */
-public class BookService extends IntentService {
+public class BookService extends Service {
 
     /**
      * Tag used for logging.
      */
     private static final String TAG_LOG = BookService.class.getSimpleName();
 
-    /**
-     * Timeout for the GooglePlayClient connection in milliseconds.
-     */
-    private static final long GOOGLE_PLAY_TIMEOUT = 2000L;
-
     /**
      * Params.
      */
     private static final String KEY_PARAM_BOOK_ID = "com.alchemiasoft.books.service.book.PARAM_BOOK_ID";
-    private static final String KEY_PARAM_DB_VALUES = "com.alchemiasoft.books.service.book.PARAM_DB_VALUES";
+    private static final String KEY_PARAM_NOTES = "com.alchemiasoft.books.service.book.PARAM_NOTES";
+    private static final String KEY_PARAM_OWNED = "com.alchemiasoft.books.service.book.PARAM_OWNED";
     private static final String KEY_PARAM_WHERE = "com.alchemiasoft.books.service.book.WHERE";
     private static final String KEY_PARAM_WHERE_ARGS = "com.alchemiasoft.books.service.book.WHERE_ARGS";
 
@@ -67,6 +58,21 @@ public class BookService extends IntentService {
      */
     private static final long NOT_VALID = -1;
 
+    /**
+     * Available actions.
+     */
+    private static enum Action {
+        BUY, SELL, ADD_NOTE, SET_OWNED_WHERE, RESET
+    }
+
+    /**
+     * Lanes (books updated in parallel) and updates that can be queued in each lane.
+     */
+    private static final int LANES = 3;
+    private static final int LANE_CAPACITY = 16;
+
+    private static final StripedExecutor EXECUTOR = new StripedExecutor(TAG_LOG, LANES, LANE_CAPACITY);
+
     /**
      * Builder that allows to create in a simple manner the Intents with whom the
      * BookService should be invoked.
@@ -74,114 +80,128 @@ public class BookService extends IntentService {
     public static class Invoker {
 
         private final Context mContext;
-
-        /**
-         * Meta-data used to identify target and operation.
-         */
-        private final Bundle mMetaData = new Bundle();
-
-        /**
-         * Params that will be passed directly to the ContentProvider.
-         */
-        private final ContentValues mDBValues = new ContentValues();
+        private final Intent mIntent;
 
         private Invoker(Context context) {
             this.mContext = context.getApplicationContext();
+            this.mIntent = new Intent(mContext, BookService.class);
         }
 
         public static Invoker get(Context context) {
             return new Invoker(context);
         }
 
-        public Invoker bookId(long id) {
-            mMetaData.putLong(KEY_PARAM_BOOK_ID, id);
+        public Invoker buy(long bookId) {
+            mIntent.setAction(Action.BUY.name()).putExtra(KEY_PARAM_BOOK_ID, bookId);
             return this;
         }
 
-        public Invoker where(String where, String... whereArgs) {
-            mMetaData.putString(KEY_PARAM_WHERE, where);
-            mMetaData.putStringArray(KEY_PARAM_WHERE_ARGS, whereArgs);
+        public Invoker sell(long bookId) {
+            mIntent.setAction(Action.SELL.name()).putExtra(KEY_PARAM_BOOK_ID, bookId);
             return this;
         }
 
-        public Invoker notes(String notes) {
-            mDBValues.put(Book.NOTES, notes);
+        public Invoker addNote(long bookId, String notes) {
+            mIntent.setAction(Action.ADD_NOTE.name()).putExtra(KEY_PARAM_BOOK_ID, bookId).putExtra(KEY_PARAM_NOTES, notes);
             return this;
         }
 
-        public Invoker owned(boolean owned) {
-            mDBValues.put(Book.OWNED, owned ? 1 : 0);
+        public Invoker setOwnedWhere(boolean owned, String where, String... whereArgs) {
+            mIntent.setAction(Action.SET_OWNED_WHERE.name()).putExtra(KEY_PARAM_OWNED, owned)
+                    .putExtra(KEY_PARAM_WHERE, where).putExtra(KEY_PARAM_WHERE_ARGS, whereArgs);
+            return this;
+        }
+
+        /**
+         * Sells all the books and removes their notes.
+         */
+        public Invoker reset() {
+            mIntent.setAction(Action.RESET.name());
             return this;
         }
 
         public void invoke() {
-            final Intent intent = new Intent(mContext, BookService.class);
-            intent.putExtras(mMetaData);
-            intent.putExtra(KEY_PARAM_DB_VALUES, mDBValues);
-            mContext.startService(intent);
+            mContext.startService(mIntent);
         }
     }
 
-    private GoogleApiClient mGoogleApiClient;
-
-    public BookService() {
-        super(BookService.class.getSimpleName());
-    }
+    /**
+     * Updates submitted and not completed yet, and the id of the latest start request.
+     */
+    private int mPending;
+    private int mLastStartId;
 
     @Override
-    public void onCreate() {
-        super.onCreate();
-        if (GooglePlayServicesUtil.isGooglePlayServicesAvailable(this) == ConnectionResult.SUCCESS) {
-            mGoogleApiClient = new GoogleApiClient.Builder(this).addApi(Wearable.API).build();
+    public int onStartCommand(final Intent intent, int flags, int startId) {
+        synchronized (this) {
+            mPending++;
+            mLastStartId = startId;
         }
+        if (intent == null) {
+            onCompleted();
+            return START_NOT_STICKY;
+        }
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handle(intent);
+                } finally {
+                    onCompleted();
+                }
+            }
+        };
+        final long bookId = intent.getLongExtra(KEY_PARAM_BOOK_ID, NOT_VALID);
+        final boolean accepted = bookId != NOT_VALID ? EXECUTOR.execute(bookId, task) : EXECUTOR.executeBarrier(task);
+        if (!accepted) {
+            Log.e(TAG_LOG, "Too many pending updates, dropping " + intent);
+            onCompleted();
+        }
+        return START_NOT_STICKY;
     }
 
     @Override
-    public void onDestroy() {
-        super.onDestroy();
-        // Always disconnect the client
-        if (mGoogleApiClient != null) {
-            mGoogleApiClient.disconnect();
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    private synchronized void onCompleted() {
+        if (--mPending == 0) {
+            stopSelf(mLastStartId);
         }
     }
 
-    @Override
-    protected void onHandleIntent(Intent intent) {
+    private void handle(Intent intent) {
         Log.d(TAG_LOG, "New intent: " + intent);
-        final ContentValues values = intent.getParcelableExtra(KEY_PARAM_DB_VALUES);
-        if (values == null || values.size() == 0) {
-            Log.e(TAG_LOG, "Trying to update the DB with values=" + values);
+        if (intent.getAction() == null) {
+            Log.e(TAG_LOG, "Trying to update the DB without an action.");
             return;
         }
-        values.put(BookDB.Book.UPDATED_AT, System.currentTimeMillis());
-        final ContentResolver resolver = getContentResolver();
+        final BookClient client = BookClient.from(this);
         final long bookId = intent.getLongExtra(KEY_PARAM_BOOK_ID, NOT_VALID);
-        if (bookId != NOT_VALID) {
-            Uri uri = Book.create(bookId);
-            final int updated = resolver.update(uri, values, null, null);
-            Log.d(TAG_LOG, "Updated " + updated + " with Uri=" + uri);
-            // We want to sync with the wearable
-            trySyncDataWithWearableLayer(Event.DataApi.Builder.create(uri, values));
-        } else {
-            Uri uri = Book.CONTENT_URI;
-            final String where = intent.getStringExtra(KEY_PARAM_WHERE);
-            final String[] whereArgs = intent.getStringArrayExtra(KEY_PARAM_WHERE_ARGS);
-            final int updated = resolver.update(uri, values, where, whereArgs);
-            Log.d(TAG_LOG, "Updated " + updated + " with Uri=" + uri + ", where=" + where + " <= " + Arrays.toString(whereArgs));
-            // We want to sync with the wearable
-            trySyncDataWithWearableLayer(Event.DataApi.Builder.create(uri, values).where(where, whereArgs));
-        }
-    }
-
-    private void trySyncDataWithWearableLayer(Event.DataApi.Builder builder) {
-        if (mGoogleApiClient != null) {
-            if (!mGoogleApiClient.isConnected() && !mGoogleApiClient.blockingConnect(GOOGLE_PLAY_TIMEOUT, TimeUnit.MILLISECONDS).isSuccess()) {
-                Log.e(TAG_LOG, "Cannot connect to GoogleApiClient.");
-                return;
-            }
-            Wearable.DataApi.putDataItem(mGoogleApiClient, builder.asRequest());
-        } else {
-            Log.e(TAG_LOG, "GoogleApiClient not available.");
+        // The provider stores the change in the outbox, within the same transaction
+        switch (Action.valueOf(intent.getAction())) {
+            case BUY:
+                Log.d(TAG_LOG, "Bought " + client.buy(bookId));
+                break;
+            case SELL:
+                Log.d(TAG_LOG, "Sold " + client.sell(bookId));
+                break;
+            case ADD_NOTE:
+                Log.d(TAG_LOG, "Annotated " + client.addNote(bookId, intent.getStringExtra(KEY_PARAM_NOTES)));
+                break;
+            case SET_OWNED_WHERE:
+                final String where = intent.getStringExtra(KEY_PARAM_WHERE);
+                final String[] whereArgs = intent.getStringArrayExtra(KEY_PARAM_WHERE_ARGS);
+                // The selection is resolved locally: the handheld receives the ids of the updated books
+                final int updated = client.setOwnedWhere(intent.getBooleanExtra(KEY_PARAM_OWNED, false), where, whereArgs);
+                Log.d(TAG_LOG, "Updated " + updated + " with where=" + where + " <= " + Arrays.toString(whereArgs));
+                break;
+            case RESET:
+                Log.d(TAG_LOG, "Reset " + client.reset() + " books.");
+                break;
         }
+        // We want to sync with the handheld
+        OutboxService.drain(this);
     }
 }